@@ -0,0 +1,118 @@
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Class decides how many messages to ask for and how long to wait before the next GetMessages call on one partition.
+ * - A full batch doubles the limit, up to the service maximum, and polls again right away.
+ * - A partial batch means the consumer has caught up, the limit stays and the next poll comes after a short pause.
+ * - An empty batch grows the pause by half each time, up to the maximum idle interval.
+ * - A throttled (429) call doubles the pause from at least the throttle floor.
+ * Calls are also spaced so one partition never goes over the GetMessages request rate, so throttling should be rare.
+ * The current limit and interval are published through volatile getters so other threads can report them, and, once
+ * reportTo was called, into a StreamMetrics PartitionPoll so they show up in JMX and on the Prometheus endpoint.
+ */
+public class AdaptivePollScheduler {
+
+    // Largest limit GetMessages accepts.
+    public static final int SERVICE_MAX_LIMIT = 10000;
+    // GetMessages allows five calls per second per partition.
+    public static final long DEFAULT_MIN_REQUEST_SPACING_MILLIS = 200;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long caughtUpIntervalMillis;
+    private final long maxIdleIntervalMillis;
+    private final long throttleIntervalMillis;
+    private final long minRequestSpacingNanos;
+
+    private volatile int limit;
+    private volatile long intervalMillis = 0;
+    private volatile long throttledCount = 0;
+    private long lastRequestNanos = 0;
+    private StreamMetrics.PartitionPoll poll;
+
+    public AdaptivePollScheduler(int minLimit, int maxLimit, long maxIdleIntervalMillis) {
+        this(minLimit, maxLimit, 50, maxIdleIntervalMillis, 1000, DEFAULT_MIN_REQUEST_SPACING_MILLIS);
+    }
+
+    public AdaptivePollScheduler(int minLimit, int maxLimit, long caughtUpIntervalMillis, long maxIdleIntervalMillis,
+                                 long throttleIntervalMillis, long minRequestSpacingMillis) {
+        if (minLimit < 1 || maxLimit < minLimit || maxLimit > SERVICE_MAX_LIMIT) {
+            throw new IllegalArgumentException(String.format("Limits must satisfy 1 <= %s <= %s <= %s.", minLimit, maxLimit, SERVICE_MAX_LIMIT));
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.caughtUpIntervalMillis = caughtUpIntervalMillis;
+        this.maxIdleIntervalMillis = maxIdleIntervalMillis;
+        this.throttleIntervalMillis = throttleIntervalMillis;
+        this.minRequestSpacingNanos = TimeUnit.MILLISECONDS.toNanos(minRequestSpacingMillis);
+        this.limit = minLimit;
+    }
+
+    /*
+     * Publishes the limit and interval into the given metrics from now on; returns this scheduler.
+     */
+    public AdaptivePollScheduler reportTo(StreamMetrics.PartitionPoll poll) {
+        this.poll = poll;
+        publish();
+        return this;
+    }
+
+    /*
+     * Sleeps for the current interval, or longer if the previous call was too recent for the request rate limit.
+     */
+    public void awaitNextPoll() throws InterruptedException {
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        if (lastRequestNanos != 0) {
+            waitNanos = Math.max(waitNanos, lastRequestNanos + minRequestSpacingNanos - System.nanoTime());
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        lastRequestNanos = System.nanoTime();
+    }
+
+    public void onMessages(int received) {
+        if (received >= limit) {
+            limit = Math.min(maxLimit, limit * 2);
+            intervalMillis = 0;
+        } else if (received > 0) {
+            intervalMillis = caughtUpIntervalMillis;
+        } else {
+            long grown = Math.max(caughtUpIntervalMillis, intervalMillis + intervalMillis / 2);
+            intervalMillis = Math.min(maxIdleIntervalMillis, grown);
+            // Nothing is waiting, shrink the limit back so a quiet partition does not keep asking for huge batches.
+            limit = Math.max(minLimit, limit / 2);
+        }
+        publish();
+    }
+
+    public void onThrottled() {
+        throttledCount++;
+        intervalMillis = Math.min(Math.max(maxIdleIntervalMillis, throttleIntervalMillis) * 4,
+                Math.max(throttleIntervalMillis, intervalMillis * 2));
+        publish();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public long getThrottledCount() {
+        return throttledCount;
+    }
+
+    private void publish() {
+        if (poll != null) {
+            poll.record(limit, intervalMillis, throttledCount);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("limit=%s, intervalMillis=%s, throttled=%s", limit, intervalMillis, throttledCount);
+    }
+}
@@ -0,0 +1,302 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class takes console or file output off the consumer threads. Lines are appended as UTF-8 bytes to an in-memory
+ * LineBuffer under a short lock, and a writer thread swaps that buffer for an empty one and writes the whole batch with
+ * a single call, every flushIntervalMillis or as soon as the buffer passes batchBytes. Message bytes that already are
+ * UTF-8, such as json values, are copied in as they are without being decoded to chars and encoded back. The two
+ * buffers are reused, so steady state output allocates nothing, and handler threads never wait on the terminal.
+ * When output cannot keep up, writers block once the buffer holds maxBufferBytes, so memory stays bounded.
+ * Lines written from one thread keep their order; lines from different threads interleave by whole lines.
+ * The lock is a ReentrantLock rather than a monitor so a virtual thread blocked on a full buffer unmounts instead of
+ * pinning its carrier thread.
+ */
+public class AsyncBatchedWriter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(UTF_8);
+
+    private final OutputStream out;
+    private final long flushIntervalNanos;
+    private final int batchBytes;
+    private final int maxBufferBytes;
+    private final Thread writerThread;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled whenever the buffers, closed, flushRequested or writtenLines change.
+    private final Condition changed = lock.newCondition();
+    private LineBuffer filling;
+    private LineBuffer draining;
+    private boolean closed = false;
+    private boolean flushRequested = false;
+    private long lines = 0;
+    private long writtenLines = 0;
+
+    private AsyncBatchedWriter(Builder builder) {
+        this.out = builder.out;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.flushIntervalMillis);
+        this.batchBytes = builder.batchBytes;
+        this.maxBufferBytes = builder.maxBufferBytes;
+        this.filling = new LineBuffer(batchBytes * 2);
+        this.draining = new LineBuffer(batchBytes * 2);
+        this.writerThread = new Thread(this::writeLoop, "async-batched-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /*
+     * Writer for standard output; System.out is then locked and flushed once per batch instead of once per line.
+     */
+    public static AsyncBatchedWriter stdout() {
+        return builder().build();
+    }
+
+    public void writeLine(String line) {
+        writeLine(buffer -> buffer.append(line));
+    }
+
+    /*
+     * Lets the caller write a line straight into the buffer, without building a String first. The line separator is
+     * added afterwards. The buffer must not be kept past the call.
+     */
+    public void writeLine(Consumer<LineBuffer> line) {
+        lock.lock();
+        try {
+            while (filling.length() >= maxBufferBytes && !closed) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (closed) {
+                throw new IllegalStateException("Writer is closed.");
+            }
+            line.accept(filling);
+            filling.append(LINE_SEPARATOR);
+            lines++;
+            if (filling.length() >= batchBytes) {
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Writes out everything buffered so far and waits until it has been handed to the underlying writer.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            long target = lines;
+            flushRequested = true;
+            changed.signalAll();
+            while (writtenLines < target && writerThread.isAlive()) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getLines() {
+        lock.lock();
+        try {
+            return lines;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        boolean stopping = false;
+        long batchLines = 0;
+        while (!stopping) {
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (!closed && !flushRequested && filling.length() < batchBytes) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 && filling.length() > 0) {
+                        break;
+                    }
+                    try {
+                        // Without anything buffered there is no deadline to keep, just wait to be signalled.
+                        changed.awaitNanos(remaining > 0 ? remaining : flushIntervalNanos);
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                stopping = closed;
+                flushRequested = false;
+                batchLines = lines;
+                LineBuffer full = filling;
+                filling = draining;
+                draining = full;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                if (draining.length() > 0) {
+                    out.write(draining.bytes, 0, draining.length);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                logger.error("Writing output failed: " + e.toString());
+            }
+            draining.length = 0;
+            lock.lock();
+            try {
+                writtenLines = batchLines;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * Growable byte buffer a line is written into. Strings are encoded as UTF-8, with a fast path for ASCII.
+     */
+    public static final class LineBuffer {
+        private byte[] bytes;
+        private int length;
+
+        private LineBuffer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        public LineBuffer append(byte[] source) {
+            return source == null ? append("null") : append(source, 0, source.length);
+        }
+
+        public LineBuffer append(byte[] source, int offset, int count) {
+            ensureCapacity(count);
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+            return this;
+        }
+
+        public LineBuffer append(String text) {
+            if (text == null) {
+                text = "null";
+            }
+            ensureCapacity(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    return append(text.substring(i).getBytes(UTF_8));
+                }
+                bytes[length++] = (byte) c;
+            }
+            return this;
+        }
+
+        public LineBuffer append(char c) {
+            return c < 0x80 ? appendByte(c) : append(String.valueOf(c));
+        }
+
+        public LineBuffer append(long value) {
+            return append(Long.toString(value));
+        }
+
+        public int length() {
+            return length;
+        }
+
+        private LineBuffer appendByte(char c) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) c;
+            return this;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+
+    public static class Builder {
+        private OutputStream out = System.out;
+        private long flushIntervalMillis = 100;
+        private int batchBytes = 64 * 1024;
+        private int maxBufferBytes = 1024 * 1024;
+
+        public Builder out(OutputStream out) {
+            this.out = out;
+            return this;
+        }
+
+        // Longest a line waits in the buffer before it is written.
+        public Builder flushIntervalMillis(long flushIntervalMillis) {
+            this.flushIntervalMillis = flushIntervalMillis;
+            return this;
+        }
+
+        // Buffered bytes that trigger a write before the interval is over.
+        public Builder batchBytes(int batchBytes) {
+            this.batchBytes = batchBytes;
+            return this;
+        }
+
+        // Buffered bytes at which writers start to wait for output to catch up.
+        public Builder maxBufferBytes(int maxBufferBytes) {
+            this.maxBufferBytes = maxBufferBytes;
+            return this;
+        }
+
+        public AsyncBatchedWriter build() {
+            if (out == null) {
+                throw new IllegalArgumentException("A writer is required.");
+            }
+            if (flushIntervalMillis < 1 || batchBytes < 1 || maxBufferBytes < batchBytes) {
+                throw new IllegalArgumentException("Interval and batch must be positive, the buffer limit at least one batch.");
+            }
+            return new AsyncBatchedWriter(this);
+        }
+    }
+}
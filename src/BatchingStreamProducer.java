@@ -0,0 +1,784 @@
+import com.oracle.bmc.streaming.StreamClient;
+import com.oracle.bmc.streaming.model.PutMessagesDetails;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+import com.oracle.bmc.streaming.requests.PutMessagesRequest;
+import com.oracle.bmc.streaming.responses.PutMessagesResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Class wraps a StreamClient and publishes messages in batches instead of one PutMessages call per message.
+ * Messages are buffered in a bounded queue and a single sender thread flushes them when the batch reaches its
+ * message count or byte limit, or when the linger time since the first buffered message runs out.
+ * Every send returns a CompletableFuture that completes with the partition and offset the service assigned.
+ * Entries the service rejects with a transient error are handed to a PutMessagesRetrier and resubmitted at the front of
+ * a later batch, merged with newer messages, once their backoff has passed.
+ * With a StreamPartitioner each request is ordered into one run per partition and no partition may take more than
+ * maxPartitionBytes of it; the rest waits, in order, for the next request, while newer messages of other partitions fill
+ * the space it leaves. Every acknowledged entry is counted in PartitionSkewStats under the partition the service placed
+ * it on.
+ * With a SpillBuffer, a request that fails because the stream is unreachable or throttled is spilled to disk instead of
+ * being held in memory, and its futures complete with a spilled PublishResult. While anything is spilled, later
+ * batches are spilled behind it so nothing overtakes older data, and a replayer thread publishes the spilled messages
+ * in order, backing off while the stream stays down; once it has caught up, batches are sent directly again. A spilled
+ * message the service refuses with a non-retryable error is logged and dropped so it cannot hold back the rest.
+ * Every PutMessages call is timed into the StreamMetrics PutMessages stats of the stream, with its batch size.
+ * The client is used as given, so pointing it at a local endpoint with setEndpoint is enough to test against a fake.
+ * The sender and replayer run on threads of the builder's ThreadMode, virtual ones let thousands of producers, one per
+ * simulated host, share a JVM without an OS thread each.
+ */
+public class BatchingStreamProducer implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    // PutMessages accepts at most 1 MB per request.
+    public static final int MAX_REQUEST_BYTES = 1024 * 1024;
+    // Rough allowance for the json field names and separators around each base64 encoded entry.
+    private static final int ENTRY_OVERHEAD_BYTES = 32;
+
+    private final StreamClient streamClient;
+    private final String streamId;
+    private final int maxBatchMessages;
+    private final int maxBatchBytes;
+    private final long lingerNanos;
+    private final BlockingQueue<PendingMessage> queue;
+    private final PutMessagesRetrier retrier;
+    private final PayloadCompressor compressor;
+    private final StreamPartitioner partitioner;
+    private final int partitions;
+    private final int maxPartitionBytes;
+    private final PartitionSkewStats skewStats = new PartitionSkewStats();
+    private final SpillBuffer spill;
+    private final long replayIdleNanos;
+    private final Thread replayer;
+    private final StreamMetrics.OperationStats putStats;
+    // Only touched by the sender thread.
+    private final Deque<PendingMessage> retries = new ArrayDeque<>();
+    // Entries over their partition's share of the last request, sent ahead of the queue but after the retries.
+    private final Deque<PendingMessage> deferred = new ArrayDeque<>();
+    // Deferred entries per partition and in bytes; newer messages of a partition with deferred entries queue behind them.
+    private final int[] deferredCounts;
+    private int deferredBytes = 0;
+    private long retryNotBefore = System.nanoTime();
+    private final Thread sender;
+    // Sends and flushes check closed and enqueue under the read lock; close sets it under the write lock, so nothing
+    // can be queued behind the close marker.
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean closed = false;
+
+    private BatchingStreamProducer(Builder builder) {
+        this.streamClient = builder.streamClient;
+        this.streamId = builder.streamId;
+        this.maxBatchMessages = builder.maxBatchMessages;
+        this.maxBatchBytes = builder.maxBatchBytes;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(builder.lingerMillis);
+        this.queue = new ArrayBlockingQueue<>(builder.queueCapacity);
+        this.compressor = builder.compressor;
+        this.partitioner = builder.partitioner;
+        this.partitions = builder.partitions;
+        this.maxPartitionBytes = builder.maxPartitionBytes > 0 ? builder.maxPartitionBytes : maxBatchBytes;
+        this.deferredCounts = new int[Math.max(partitions, 1)];
+        this.retrier = builder.retrier != null ? builder.retrier : PutMessagesRetrier.builder().build();
+        this.spill = builder.spill;
+        this.replayIdleNanos = TimeUnit.MILLISECONDS.toNanos(builder.replayIdleMillis);
+        this.putStats = builder.metrics.operation(streamId, StreamMetrics.Operation.PUT_MESSAGES);
+        this.sender = builder.threadMode.factory("stream-producer-" + streamId).newThread(this::sendLoop);
+        this.sender.start();
+        if (spill != null) {
+            this.replayer = builder.threadMode.factory("stream-replayer-" + streamId).newThread(this::replayLoop);
+            this.replayer.start();
+        } else {
+            this.replayer = null;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public PutMessagesRetrier getRetrier() {
+        return retrier;
+    }
+
+    public PartitionSkewStats getSkewStats() {
+        return skewStats;
+    }
+
+    /*
+     * Queues a message for the next batch. Blocks while the queue is full so a slow stream pushes back on the caller.
+     * The returned future completes on the sender thread once the batch holding the message has been acknowledged.
+     * With a compressor the value is compressed here, on the calling thread, so batches are sized by what is sent.
+     */
+    public CompletableFuture<PublishResult> send(byte[] key, byte[] value) {
+        if (compressor != null && value != null) {
+            value = compressor.compress(value);
+        }
+        PendingMessage message = new PendingMessage(
+                PutMessagesDetailsEntry.builder().key(key).value(value).build(), encodedSize(key, value));
+        if (partitioner != null) {
+            message.partition = partitioner.partition(key, partitions);
+        }
+        if (message.size > maxBatchBytes) {
+            message.result.completeExceptionally(new IllegalArgumentException(
+                    String.format("Message of %s bytes exceeds the batch limit of %s bytes.", message.size, maxBatchBytes)));
+            return message.result;
+        }
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                message.result.completeExceptionally(new IllegalStateException("Producer for stream " + streamId + " is closed."));
+                return message.result;
+            }
+            queue.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            message.result.completeExceptionally(e);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        return message.result;
+    }
+
+    /*
+     * Sends everything queued so far without waiting for the linger time and blocks until it is acknowledged,
+     * including any retries still pending for it.
+     */
+    public void flush() {
+        PendingMessage marker = PendingMessage.flushMarker();
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            queue.put(marker);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        marker.result.join();
+    }
+
+    /*
+     * Stops accepting messages, sends whatever is still buffered and waits for the sender thread to finish.
+     * Messages still spilled stay on disk and are replayed by the next producer opened on the same SpillBuffer directory.
+     */
+    @Override
+    public void close() {
+        // Waits for sends still putting into the queue, the sender keeps taking from it meanwhile.
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        PendingMessage marker = PendingMessage.closeMarker();
+        try {
+            queue.put(marker);
+            sender.join();
+            if (replayer != null) {
+                replayer.interrupt();
+                replayer.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Only left when the sender stopped early, on an interrupt.
+        PendingMessage leftover;
+        while ((leftover = queue.poll()) != null) {
+            leftover.result.completeExceptionally(new IllegalStateException("Producer for stream " + streamId + " is closed."));
+        }
+    }
+
+    private void sendLoop() {
+        List<PendingMessage> batch = new ArrayList<>(maxBatchMessages);
+        List<PendingMessage> markers = new ArrayList<>();
+        PendingMessage carried = null;
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                int batchBytes = 0;
+                boolean heldBack = false;
+                // Entries that failed last time go first so they stay ahead of newer messages with the same key.
+                while (!retries.isEmpty() && batch.size() < maxBatchMessages
+                        && batchBytes + retries.peekFirst().size <= maxBatchBytes) {
+                    PendingMessage retry = retries.pollFirst();
+                    batch.add(retry);
+                    batchBytes += retry.size;
+                }
+                while (!deferred.isEmpty() && batch.size() < maxBatchMessages
+                        && batchBytes + deferred.peekFirst().size <= maxBatchBytes) {
+                    PendingMessage next = pollDeferred();
+                    batch.add(next);
+                    batchBytes += next.size;
+                    heldBack = true;
+                }
+                if (heldBack) {
+                    // Cut the held back entries to their share now, so the queue can fill the space they leave.
+                    batchBytes = arrangeByPartition(batch, batchBytes);
+                }
+                boolean marked = false;
+                if (batch.isEmpty()) {
+                    PendingMessage first = carried != null ? carried : queue.take();
+                    carried = null;
+                    if (first.isMarker()) {
+                        markers.add(first);
+                        marked = true;
+                    } else {
+                        batch.add(first);
+                        batchBytes = first.size;
+                    }
+                }
+                long deadline = Math.max(System.nanoTime() + lingerNanos, retryNotBefore);
+                // Keep collecting until the batch is full, the linger time is over or a flush or close comes in.
+                // Newer messages of a partition with entries still held back queue behind them instead of overtaking
+                // them, as long as the held back entries stay within one request.
+                while (!marked && batch.size() < maxBatchMessages) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingMessage next = carried;
+                    carried = null;
+                    if (next == null) {
+                        next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    }
+                    if (next == null) {
+                        break;
+                    }
+                    if (next.isMarker()) {
+                        markers.add(next);
+                        marked = true;
+                    } else if (deferredCounts[next.partition] > 0) {
+                        if (deferredBytes + next.size > maxBatchBytes) {
+                            carried = next;
+                            break;
+                        }
+                        defer(next, false);
+                    } else if (batchBytes + next.size > maxBatchBytes) {
+                        carried = next;
+                        break;
+                    } else {
+                        batch.add(next);
+                        batchBytes += next.size;
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    // A flush does not skip the backoff the service asked for.
+                    long backoff = retryNotBefore - System.nanoTime();
+                    if (backoff > 0) {
+                        TimeUnit.NANOSECONDS.sleep(backoff);
+                    }
+                    try {
+                        if (partitioner != null) {
+                            batchBytes = arrangeByPartition(batch, batchBytes);
+                        }
+                        publishBatch(batch, batchBytes);
+                        if (partitioner != null) {
+                            partitioner.onBatchSent();
+                        }
+                    } catch (RuntimeException e) {
+                        // Only this batch fails, the sender goes on so later sends and pending flushes still complete.
+                        logger.error("Error publishing a batch to stream " + streamId + ": " + e.toString());
+                        for (PendingMessage message : batch) {
+                            if (!retries.contains(message)) {
+                                message.result.completeExceptionally(e);
+                            }
+                        }
+                    }
+                    batch.clear();
+                }
+                // Markers wait until nothing they cover is still being retried or held back.
+                if (retries.isEmpty() && deferred.isEmpty()) {
+                    for (PendingMessage marker : markers) {
+                        stopping |= marker.closing;
+                        marker.result.complete(null);
+                    }
+                    markers.clear();
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Producer sender for stream " + streamId + " interrupted, stopping.");
+                stopping = true;
+                batch.addAll(retries);
+                batch.addAll(deferred);
+                retries.clear();
+                deferred.clear();
+                Arrays.fill(deferredCounts, 0);
+                deferredBytes = 0;
+                for (PendingMessage message : batch) {
+                    message.result.completeExceptionally(e);
+                }
+                for (PendingMessage marker : markers) {
+                    marker.result.complete(null);
+                }
+            }
+        }
+    }
+
+    /*
+     * Orders the batch into one run per partition and moves whatever exceeds a partition's share to the deferred queue.
+     * The sort is stable, so entries of one partition keep their order, and retries stay ahead of newer entries.
+     * Returns the byte size of what is left in the batch.
+     */
+    private int arrangeByPartition(List<PendingMessage> batch, int batchBytes) {
+        batch.sort(Comparator.comparingInt(message -> message.partition));
+        List<PendingMessage> overflow = new ArrayList<>();
+        int runPartition = -1;
+        int runBytes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            PendingMessage message = batch.get(i);
+            if (message.partition != runPartition) {
+                runPartition = message.partition;
+                runBytes = 0;
+            }
+            // A run always keeps its first entry, so even an oversized message makes progress.
+            if (runBytes > 0 && runBytes + message.size > maxPartitionBytes) {
+                overflow.add(message);
+            }
+            runBytes += message.size;
+        }
+        if (overflow.isEmpty()) {
+            return batchBytes;
+        }
+        batch.removeAll(overflow);
+        // Whatever is still deferred of these partitions arrived after every entry of this batch, so the overflow goes
+        // in front of it.
+        for (int i = overflow.size() - 1; i >= 0; i--) {
+            defer(overflow.get(i), true);
+            batchBytes -= overflow.get(i).size;
+        }
+        return batchBytes;
+    }
+
+    private void defer(PendingMessage message, boolean first) {
+        if (first) {
+            deferred.addFirst(message);
+        } else {
+            deferred.addLast(message);
+        }
+        deferredCounts[message.partition]++;
+        deferredBytes += message.size;
+    }
+
+    private PendingMessage pollDeferred() {
+        PendingMessage message = deferred.pollFirst();
+        deferredCounts[message.partition]--;
+        deferredBytes -= message.size;
+        return message;
+    }
+
+    private void publishBatch(List<PendingMessage> batch, int batchBytes) {
+        if (spill != null && !spill.isEmpty()) {
+            // Older messages are still on disk, going straight to the stream would put these ahead of them.
+            spillMessages(batch);
+            return;
+        }
+        List<PutMessagesDetailsEntry> entries = new ArrayList<>(batch.size());
+        for (PendingMessage message : batch) {
+            entries.add(message.entry);
+            message.attempts++;
+        }
+        PutMessagesRequest putRequest = PutMessagesRequest.builder()
+                .streamId(streamId)
+                .putMessagesDetails(PutMessagesDetails.builder().messages(entries).build())
+                .build();
+        logger.debug(String.format("Publishing %s messages (%s bytes) to stream %s.", batch.size(), batchBytes, streamId));
+
+        PutMessagesResponse putResponse;
+        long start = System.nanoTime();
+        try {
+            putResponse = streamClient.putMessages(putRequest);
+        } catch (Exception e) {
+            putStats.recordFailure(System.nanoTime() - start, e);
+            logger.error("Error in publishBatch: " + e.toString());
+            if (spill != null && PutMessagesRetrier.isRetryable(e)) {
+                spillMessages(batch);
+                return;
+            }
+            for (PendingMessage message : batch) {
+                if (retrier.shouldRetry(e, message.attempts)) {
+                    scheduleRetry(message);
+                } else {
+                    message.result.completeExceptionally(e);
+                }
+            }
+            return;
+        }
+        putStats.recordSuccess(System.nanoTime() - start, batch.size());
+
+        // Result entries come back in the same order as the request entries.
+        List<PutMessagesResultEntry> results = putResponse.getPutMessagesResult().getEntries();
+        List<PendingMessage> toSpill = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            PutMessagesResultEntry entry = results.get(i);
+            PendingMessage message = batch.get(i);
+            if (StringUtils.isBlank(entry.getError())) {
+                retrier.recordSuccess();
+                skewStats.record(entry.getPartition(), message.size);
+                message.result.complete(new PublishResult(entry.getPartition(), entry.getOffset()));
+                continue;
+            }
+            putStats.recordEntryFailure(entry.getError());
+            if (retrier.shouldRetry(entry.getError(), message.attempts)) {
+                scheduleRetry(message);
+            } else if (spill != null && PutMessagesRetrier.isRetryable(entry.getError())) {
+                toSpill.add(message);
+            } else {
+                message.result.completeExceptionally(new PublishException(entry.getError(), entry.getErrorMessage()));
+            }
+        }
+        if (!toSpill.isEmpty()) {
+            spillMessages(toSpill);
+        }
+    }
+
+    // Writes the messages to the spill buffer; what does not fit its disk quota fails.
+    private void spillMessages(List<PendingMessage> messages) {
+        List<PutMessagesDetailsEntry> entries = new ArrayList<>(messages.size());
+        for (PendingMessage message : messages) {
+            entries.add(message.entry);
+        }
+        int stored = 0;
+        Exception failure = null;
+        try {
+            stored = spill.append(entries);
+        } catch (RuntimeException e) {
+            logger.error("Unable to spill messages: " + e.toString());
+            failure = e;
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            if (i < stored) {
+                messages.get(i).result.complete(PublishResult.spilled());
+            } else {
+                messages.get(i).result.completeExceptionally(failure != null ? failure
+                        : new IllegalStateException("Spill buffer is full, message for stream " + streamId + " dropped."));
+            }
+        }
+        logger.debug(String.format("Spilled %s messages for stream %s, %s pending replay.", stored, streamId, spill.getPending()));
+    }
+
+    /*
+     * Publishes spilled messages oldest first and commits them once acknowledged, or once the service refused them for
+     * good. Only the entries before the first one failing with a retryable error are committed, so order is kept; entries
+     * after it that did get through are sent again later. Backs off only while the failures are retryable.
+     */
+    private void replayLoop() {
+        int failures = 0;
+        while (!closed) {
+            try {
+                SpillBuffer.Batch batch = spill.peek(maxBatchMessages, maxBatchBytes);
+                if (batch.isEmpty()) {
+                    TimeUnit.NANOSECONDS.sleep(replayIdleNanos);
+                    continue;
+                }
+                int replayed = replayEntries(batch.getEntries());
+                logger.debug(String.format("Replayed %s of %s spilled messages to stream %s.", replayed, batch.size(), streamId));
+                spill.commit(batch, replayed);
+                if (replayed < batch.size()) {
+                    failures++;
+                    TimeUnit.NANOSECONDS.sleep(retrier.backoffNanos(failures));
+                } else {
+                    failures = 0;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Error replaying spilled messages: " + e.toString());
+                try {
+                    TimeUnit.NANOSECONDS.sleep(retrier.backoffNanos(++failures));
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Returns how many leading entries are done with, accepted or refused for good, before the first retryable failure.
+    private int replayEntries(List<PutMessagesDetailsEntry> entries) {
+        PutMessagesRequest putRequest = PutMessagesRequest.builder()
+                .streamId(streamId)
+                .putMessagesDetails(PutMessagesDetails.builder().messages(entries).build())
+                .build();
+        PutMessagesResponse putResponse;
+        long start = System.nanoTime();
+        try {
+            putResponse = streamClient.putMessages(putRequest);
+        } catch (Exception e) {
+            putStats.recordFailure(System.nanoTime() - start, e);
+            if (PutMessagesRetrier.isRetryable(e)) {
+                logger.warn(String.format("Stream %s still unavailable, %s messages spilled: %s", streamId, spill.getPending(), e.toString()));
+                return 0;
+            }
+            if (entries.size() == 1) {
+                dropSpilled(entries.get(0), e.toString());
+                return 1;
+            }
+            // The request was refused as a whole, so send its entries one by one and drop only those refused themselves.
+            int done = 0;
+            while (done < entries.size() && replayEntries(entries.subList(done, done + 1)) == 1) {
+                done++;
+            }
+            return done;
+        }
+        putStats.recordSuccess(System.nanoTime() - start, entries.size());
+        List<PutMessagesResultEntry> results = putResponse.getPutMessagesResult().getEntries();
+        int done = 0;
+        for (; done < results.size(); done++) {
+            PutMessagesResultEntry result = results.get(done);
+            PutMessagesDetailsEntry entry = entries.get(done);
+            if (StringUtils.isBlank(result.getError())) {
+                retrier.recordSuccess();
+                skewStats.record(result.getPartition(), encodedSize(entry.getKey(), entry.getValue()));
+                continue;
+            }
+            putStats.recordEntryFailure(result.getError());
+            if (PutMessagesRetrier.isRetryable(result.getError())) {
+                break;
+            }
+            dropSpilled(entry, String.format("Error(%s): %s", result.getError(), result.getErrorMessage()));
+        }
+        for (int i = done + 1; i < results.size(); i++) {
+            if (StringUtils.isNotBlank(results.get(i).getError())) {
+                putStats.recordEntryFailure(results.get(i).getError());
+            }
+        }
+        return done;
+    }
+
+    // A spilled message the service will never accept is logged and committed, so it cannot hold up the spill forever.
+    private void dropSpilled(PutMessagesDetailsEntry entry, String error) {
+        logger.error(String.format("Dropping spilled message with key %s for stream %s, the service refused it: %s",
+                entry.getKey() == null ? null : new String(entry.getKey(), StandardCharsets.UTF_8), streamId, error));
+    }
+
+    // Batch order is kept in the retry queue, which keeps the original order of messages sharing a key.
+    private void scheduleRetry(PendingMessage message) {
+        retries.addLast(message);
+        retryNotBefore = Math.max(retryNotBefore, System.nanoTime() + retrier.backoffNanos(message.attempts));
+    }
+
+    // Size of the entry once the key and value are base64 encoded into the request body.
+    static int encodedSize(byte[] key, byte[] value) {
+        int keyLength = key == null ? 0 : key.length;
+        int valueLength = value == null ? 0 : value.length;
+        return 4 * ((keyLength + 2) / 3) + 4 * ((valueLength + 2) / 3) + ENTRY_OVERHEAD_BYTES;
+    }
+
+    private static class PendingMessage {
+        private final PutMessagesDetailsEntry entry;
+        private final int size;
+        private final boolean closing;
+        private int attempts = 0;
+        private int partition = 0;
+        private final CompletableFuture<PublishResult> result = new CompletableFuture<>();
+
+        private PendingMessage(PutMessagesDetailsEntry entry, int size) {
+            this(entry, size, false);
+        }
+
+        private PendingMessage(PutMessagesDetailsEntry entry, int size, boolean closing) {
+            this.entry = entry;
+            this.size = size;
+            this.closing = closing;
+        }
+
+        // Markers carry no entry; they cut the current batch short and complete once it has been sent.
+        private static PendingMessage flushMarker() {
+            return new PendingMessage(null, 0, false);
+        }
+
+        private static PendingMessage closeMarker() {
+            return new PendingMessage(null, 0, true);
+        }
+
+        private boolean isMarker() {
+            return entry == null;
+        }
+    }
+
+    /*
+     * Partition and offset the service assigned to a published message.
+     */
+    public static class PublishResult {
+        private final String partition;
+        private final Long offset;
+        private final boolean spilled;
+
+        public PublishResult(String partition, Long offset) {
+            this(partition, offset, false);
+        }
+
+        private PublishResult(String partition, Long offset, boolean spilled) {
+            this.partition = partition;
+            this.offset = offset;
+            this.spilled = spilled;
+        }
+
+        // The message went to the spill buffer; partition and offset are unknown until it is replayed.
+        static PublishResult spilled() {
+            return new PublishResult(null, null, true);
+        }
+
+        public boolean isSpilled() {
+            return spilled;
+        }
+
+        public String getPartition() {
+            return partition;
+        }
+
+        public Long getOffset() {
+            return offset;
+        }
+
+        @Override
+        public String toString() {
+            if (spilled) {
+                return "spilled";
+            }
+            return String.format("partition %s, offset %s", partition, offset);
+        }
+    }
+
+    /*
+     * Raised through the future when the service rejects an individual entry of a batch.
+     */
+    public static class PublishException extends RuntimeException {
+        private final String error;
+
+        public PublishException(String error, String errorMessage) {
+            super(String.format("Error(%s): %s", error, errorMessage));
+            this.error = error;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    public static class Builder {
+        private StreamClient streamClient;
+        private String streamId;
+        private int maxBatchMessages = 500;
+        private int maxBatchBytes = MAX_REQUEST_BYTES;
+        private long lingerMillis = 100;
+        private int queueCapacity = 10000;
+        private PutMessagesRetrier retrier;
+        private PayloadCompressor compressor;
+        private StreamPartitioner partitioner;
+        private int partitions;
+        private int maxPartitionBytes;
+        private SpillBuffer spill;
+        private long replayIdleMillis = 1000;
+        private StreamMetrics metrics = StreamMetrics.shared();
+        private ThreadMode threadMode = ThreadMode.configured();
+
+        public Builder streamClient(StreamClient streamClient) {
+            this.streamClient = streamClient;
+            return this;
+        }
+
+        public Builder streamId(String streamId) {
+            this.streamId = streamId;
+            return this;
+        }
+
+        public Builder maxBatchMessages(int maxBatchMessages) {
+            this.maxBatchMessages = maxBatchMessages;
+            return this;
+        }
+
+        public Builder maxBatchBytes(int maxBatchBytes) {
+            this.maxBatchBytes = Math.min(maxBatchBytes, MAX_REQUEST_BYTES);
+            return this;
+        }
+
+        public Builder lingerMillis(long lingerMillis) {
+            this.lingerMillis = lingerMillis;
+            return this;
+        }
+
+        public Builder queueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder retrier(PutMessagesRetrier retrier) {
+            this.retrier = retrier;
+            return this;
+        }
+
+        // Compresses every value before it is queued; consumers need a compressor with the same codecs to read them.
+        public Builder compressor(PayloadCompressor compressor) {
+            this.compressor = compressor;
+            return this;
+        }
+
+        // Groups each request by the partition the partitioner picks out of the stream's partition count.
+        public Builder partitioner(StreamPartitioner partitioner, int partitions) {
+            this.partitioner = partitioner;
+            this.partitions = partitions;
+            return this;
+        }
+
+        // Most a single partition may take of one request; defaults to the whole request.
+        public Builder maxPartitionBytes(int maxPartitionBytes) {
+            this.maxPartitionBytes = maxPartitionBytes;
+            return this;
+        }
+
+        // Spills requests that fail while the stream is unreachable or throttled, and replays them in order.
+        public Builder spillBuffer(SpillBuffer spill) {
+            this.spill = spill;
+            return this;
+        }
+
+        // How often the replayer looks for spilled messages while there are none.
+        public Builder replayIdleMillis(long replayIdleMillis) {
+            this.replayIdleMillis = replayIdleMillis;
+            return this;
+        }
+
+        // Where PutMessages latency, batch sizes and failures are recorded; the shared metrics by default.
+        public Builder metrics(StreamMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        // Threads the sender and replayer run on; defaults to the streaming.threads system property.
+        public Builder threadMode(ThreadMode threadMode) {
+            this.threadMode = threadMode;
+            return this;
+        }
+
+        public BatchingStreamProducer build() {
+            if (streamClient == null || StringUtils.isBlank(streamId) || metrics == null || threadMode == null) {
+                throw new IllegalArgumentException("A stream client, stream id, metrics and a thread mode are required.");
+            }
+            if (maxBatchMessages < 1 || queueCapacity < 1 || lingerMillis < 0) {
+                throw new IllegalArgumentException("Batch size and queue capacity must be positive and linger not negative.");
+            }
+            if (partitioner != null && partitions < 1) {
+                throw new IllegalArgumentException("A partitioner needs the stream's partition count.");
+            }
+            return new BatchingStreamProducer(this);
+        }
+    }
+}
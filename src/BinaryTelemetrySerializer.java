@@ -0,0 +1,345 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class is a compact binary wire format for telemetry samples.
+ *
+ * Every message starts with a fixed header:
+ *   byte MAGIC (0xB7, never the '{' of a json payload), byte version and flags, varint schemaId, int keyframeId
+ * The schema id is a CRC32 of the metric names in column order, so a producer whose metric set changes starts a new schema.
+ *
+ * A keyframe carries everything needed to read it on its own:
+ *   string machineName, varint longCount, strings longNames, varint doubleCount, strings doubleNames,
+ *   varlong timestampMillis, zigzag varlong longValues, zigzag varlong doubleValues (fixed point, 6 decimals)
+ * Every other message is a delta frame against the latest keyframe of its producer:
+ *   zigzag varlong timestamp delta, zigzag varlong value deltas
+ * Samples of one host change little between ticks, so most deltas fit in one or two bytes and the metric names are
+ * not repeated. The serializer writes a keyframe first and then every keyframeInterval samples, so a consumer that
+ * starts mid-stream or skipped messages can decode again after at most that many messages of the host.
+ * Deserializing keeps a bounded cache of keyframes by message key and keyframe id; a delta whose keyframe is unknown
+ * cannot be decoded and throws. Keyframe ids are random per host and hosts with the same metrics share a schema id,
+ * so only the key tells two hosts' keyframes apart: without it a rare id collision decodes one host's deltas against
+ * another's keyframe. Consumers should use deserialize(key, value).
+ */
+public class BinaryTelemetrySerializer implements TelemetrySerializer {
+
+    public static final byte MAGIC = (byte) 0xB7;
+    private static final int VERSION = 1;
+    private static final int FLAG_KEYFRAME = 0x01;
+    private static final long DOUBLE_SCALE = 1000000L;
+    private static final int MAX_CACHED_KEYFRAMES = 10000;
+
+    private final byte[] machineName;
+    private final int keyframeInterval;
+    // Producer side state, only used by the sampling thread.
+    private byte[] buffer = new byte[1024];
+    private int position;
+    private Keyframe current;
+    private int sinceKeyframe;
+
+    // Consumer side state, keyframes by producer and id in access order so the oldest producers drop out first.
+    private final Map<KeyframeKey, Keyframe> keyframes = new LinkedHashMap<KeyframeKey, Keyframe>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<KeyframeKey, Keyframe> eldest) {
+            return size() > MAX_CACHED_KEYFRAMES;
+        }
+    };
+
+    public BinaryTelemetrySerializer(String machineName, int keyframeInterval) {
+        this.machineName = machineName.getBytes(UTF_8);
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public byte[] serialize(OsMetricSampler.Sample sample) {
+        position = 0;
+        writeByte(MAGIC);
+        long[] doubleValues = new long[sample.doubleCount()];
+        for (int i = 0; i < doubleValues.length; i++) {
+            doubleValues[i] = toFixedPoint(sample.doubleValue(i));
+        }
+        if (current == null || sinceKeyframe >= keyframeInterval || !current.matches(sample)) {
+            current = new Keyframe(ThreadLocalRandom.current().nextInt(), new String(machineName, UTF_8), sample, doubleValues);
+            sinceKeyframe = 0;
+            writeByte((byte) (VERSION << 4 | FLAG_KEYFRAME));
+            writeVarLong(current.schemaId);
+            writeInt(current.id);
+            writeBytes(machineName);
+            writeVarLong(current.longNames.length);
+            for (String name : current.longNames) {
+                writeBytes(name.getBytes(UTF_8));
+            }
+            writeVarLong(current.doubleNames.length);
+            for (String name : current.doubleNames) {
+                writeBytes(name.getBytes(UTF_8));
+            }
+            writeVarLong(sample.getTimestampMillis());
+            for (int i = 0; i < sample.longCount(); i++) {
+                writeVarLong(zigzag(sample.longValue(i)));
+            }
+            for (long value : doubleValues) {
+                writeVarLong(zigzag(value));
+            }
+        } else {
+            sinceKeyframe++;
+            writeByte((byte) (VERSION << 4));
+            writeVarLong(current.schemaId);
+            writeInt(current.id);
+            writeVarLong(zigzag(sample.getTimestampMillis() - current.timestampMillis));
+            for (int i = 0; i < sample.longCount(); i++) {
+                writeVarLong(zigzag(sample.longValue(i) - current.longValues[i]));
+            }
+            for (int i = 0; i < doubleValues.length; i++) {
+                writeVarLong(zigzag(doubleValues[i] - current.doubleValues[i]));
+            }
+        }
+        return Arrays.copyOf(buffer, position);
+    }
+
+    @Override
+    public boolean canDeserialize(byte[] value) {
+        return value.length > 1 && value[0] == MAGIC;
+    }
+
+    @Override
+    public TelemetryRecord deserialize(byte[] value) {
+        return deserialize(null, value);
+    }
+
+    @Override
+    public TelemetryRecord deserialize(byte[] key, byte[] value) {
+        ByteBuffer in = ByteBuffer.wrap(value);
+        in.get();
+        int versionAndFlags = in.get() & 0xFF;
+        if (versionAndFlags >> 4 != VERSION) {
+            throw new IllegalArgumentException("Unsupported telemetry format version " + (versionAndFlags >> 4));
+        }
+        long schemaId = readVarLong(in);
+        int keyframeId = in.getInt();
+        KeyframeKey cacheKey = new KeyframeKey(key, keyframeId);
+        Keyframe keyframe;
+        long timestampMillis;
+        long[] longValues;
+        long[] doubleValues;
+        if ((versionAndFlags & FLAG_KEYFRAME) != 0) {
+            String machine = readString(in);
+            String[] longNames = new String[(int) readVarLong(in)];
+            for (int i = 0; i < longNames.length; i++) {
+                longNames[i] = readString(in);
+            }
+            String[] doubleNames = new String[(int) readVarLong(in)];
+            for (int i = 0; i < doubleNames.length; i++) {
+                doubleNames[i] = readString(in);
+            }
+            timestampMillis = readVarLong(in);
+            longValues = new long[longNames.length];
+            for (int i = 0; i < longValues.length; i++) {
+                longValues[i] = unzigzag(readVarLong(in));
+            }
+            doubleValues = new long[doubleNames.length];
+            for (int i = 0; i < doubleValues.length; i++) {
+                doubleValues[i] = unzigzag(readVarLong(in));
+            }
+            keyframe = new Keyframe(keyframeId, machine, longNames, doubleNames, timestampMillis, longValues, doubleValues);
+            synchronized (keyframes) {
+                keyframes.put(cacheKey, keyframe);
+            }
+        } else {
+            synchronized (keyframes) {
+                keyframe = keyframes.get(cacheKey);
+            }
+            if (keyframe == null || keyframe.schemaId != schemaId) {
+                throw new IllegalStateException(String.format("Keyframe %s of schema %s not seen yet, waiting for the next one.", keyframeId, schemaId));
+            }
+            timestampMillis = keyframe.timestampMillis + unzigzag(readVarLong(in));
+            longValues = new long[keyframe.longNames.length];
+            for (int i = 0; i < longValues.length; i++) {
+                longValues[i] = keyframe.longValues[i] + unzigzag(readVarLong(in));
+            }
+            doubleValues = new long[keyframe.doubleNames.length];
+            for (int i = 0; i < doubleValues.length; i++) {
+                doubleValues[i] = keyframe.doubleValues[i] + unzigzag(readVarLong(in));
+            }
+        }
+        Map<String, Long> longs = new LinkedHashMap<>();
+        for (int i = 0; i < longValues.length; i++) {
+            longs.put(keyframe.longNames[i], longValues[i]);
+        }
+        Map<String, Double> doubles = new LinkedHashMap<>();
+        for (int i = 0; i < doubleValues.length; i++) {
+            doubles.put(keyframe.doubleNames[i], doubleValues[i] / (double) DOUBLE_SCALE);
+        }
+        return new TelemetryRecord(keyframe.machineName, timestampMillis, longs, doubles);
+    }
+
+    private static long toFixedPoint(double value) {
+        return Double.isNaN(value) ? 0 : Math.round(value * DOUBLE_SCALE);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        writeVarLong(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeByte(byte value) {
+        ensureCapacity(1);
+        buffer[position++] = value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in telemetry message");
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static long schemaId(String[] longNames, String[] doubleNames) {
+        CRC32 crc = new CRC32();
+        for (String name : longNames) {
+            crc.update(name.getBytes(UTF_8));
+            crc.update(0);
+        }
+        crc.update(1);
+        for (String name : doubleNames) {
+            crc.update(name.getBytes(UTF_8));
+            crc.update(0);
+        }
+        return crc.getValue();
+    }
+
+    // Identifies a keyframe in the consumer cache: the key of the message that carried it and its id.
+    private static class KeyframeKey {
+        private final byte[] producer;
+        private final int id;
+
+        private KeyframeKey(byte[] producer, int id) {
+            this.producer = producer != null ? producer : new byte[0];
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof KeyframeKey && id == ((KeyframeKey) other).id
+                    && Arrays.equals(producer, ((KeyframeKey) other).producer);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(producer) + id;
+        }
+    }
+
+    private static class Keyframe {
+        private final int id;
+        private final long schemaId;
+        private final String machineName;
+        private final String[] longNames;
+        private final String[] doubleNames;
+        private final long timestampMillis;
+        private final long[] longValues;
+        private final long[] doubleValues;
+
+        private Keyframe(int id, String machineName, OsMetricSampler.Sample sample, long[] doubleValues) {
+            this.id = id;
+            this.machineName = machineName;
+            this.longNames = new String[sample.longCount()];
+            this.longValues = new long[sample.longCount()];
+            for (int i = 0; i < longNames.length; i++) {
+                longNames[i] = sample.longName(i);
+                longValues[i] = sample.longValue(i);
+            }
+            this.doubleNames = new String[sample.doubleCount()];
+            for (int i = 0; i < doubleNames.length; i++) {
+                doubleNames[i] = sample.doubleName(i);
+            }
+            this.doubleValues = doubleValues;
+            this.timestampMillis = sample.getTimestampMillis();
+            this.schemaId = schemaId(longNames, doubleNames);
+        }
+
+        private Keyframe(int id, String machineName, String[] longNames, String[] doubleNames, long timestampMillis,
+                         long[] longValues, long[] doubleValues) {
+            this.id = id;
+            this.machineName = machineName;
+            this.longNames = longNames;
+            this.doubleNames = doubleNames;
+            this.timestampMillis = timestampMillis;
+            this.longValues = longValues;
+            this.doubleValues = doubleValues;
+            this.schemaId = schemaId(longNames, doubleNames);
+        }
+
+        // Whether the sample has the same columns, otherwise a new keyframe with a new schema is needed.
+        private boolean matches(OsMetricSampler.Sample sample) {
+            if (sample.longCount() != longNames.length || sample.doubleCount() != doubleNames.length) {
+                return false;
+            }
+            for (int i = 0; i < longNames.length; i++) {
+                if (!longNames[i].equals(sample.longName(i))) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < doubleNames.length; i++) {
+                if (!doubleNames[i].equals(sample.doubleName(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -1,41 +1,35 @@
-import static java.nio.charset.StandardCharsets.UTF_8;
-
-import com.google.common.util.concurrent.Uninterruptibles;
 import com.oracle.bmc.ConfigFileReader;
-import com.oracle.bmc.auth.AuthenticationDetailsProvider;
-import com.oracle.bmc.auth.ConfigFileAuthenticationDetailsProvider;
 import com.oracle.bmc.streaming.StreamAdminClient;
 import com.oracle.bmc.streaming.StreamClient;
-import com.oracle.bmc.streaming.model.*;
-import com.oracle.bmc.streaming.model.CreateCursorDetails.Type;
-import com.oracle.bmc.streaming.model.Stream.LifecycleState;
-import com.oracle.bmc.streaming.requests.CreateCursorRequest;
-import com.oracle.bmc.streaming.requests.CreateGroupCursorRequest;
-import com.oracle.bmc.streaming.requests.CreateStreamRequest;
-import com.oracle.bmc.streaming.requests.DeleteStreamRequest;
-import com.oracle.bmc.streaming.requests.GetMessagesRequest;
-import com.oracle.bmc.streaming.requests.GetStreamRequest;
-import com.oracle.bmc.streaming.requests.ListStreamsRequest;
-import com.oracle.bmc.streaming.requests.PutMessagesRequest;
-import com.oracle.bmc.streaming.responses.CreateCursorResponse;
-import com.oracle.bmc.streaming.responses.CreateGroupCursorResponse;
-import com.oracle.bmc.streaming.responses.CreateStreamResponse;
-import com.oracle.bmc.streaming.responses.GetMessagesResponse;
-import com.oracle.bmc.streaming.responses.GetStreamResponse;
-import com.oracle.bmc.streaming.responses.ListStreamsResponse;
-import com.oracle.bmc.streaming.responses.PutMessagesResponse;
+import com.oracle.bmc.streaming.model.Stream;
 
 import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
 
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/*Class provides an example consumer API for Streams. */
+/*Class provides an example consumer API for Streams.
+ * Usage: ChipsConsumer [--aggregate] [--record <file>] [--metrics-port <port>] [--virtual-threads] [group [instance]]
+ *    or  ChipsConsumer --replay <file>
+ *    or  ChipsConsumer --export <from> <to> <directory>
+ *    or  ChipsConsumer --scan <directory> <metric> <from> <to>
+ * --aggregate prints per machine cpu load rollups instead of every message, --record keeps the fetched messages in a
+ * file and --replay runs the rollups over such a file without connecting to the cloud. --metrics-port serves the
+ * request latencies, errors and partition lag for Prometheus at /metrics; they are also in JMX under "streaming".
+ * Without a group the backlog of every partition is logged every 10 seconds. --virtual-threads runs the fetch loops on
+ * virtual threads (Java 21 and later), as does the system property streaming.threads=virtual.
+ * --export writes the messages the stream accepted between two ISO-8601 instants to columnar files per machine and
+ * hour, --scan prints per machine count, min, max and mean of a metric in such a directory between two instants. */
 
 public class ChipsConsumer {
 
@@ -44,16 +38,70 @@ public class ChipsConsumer {
 
     public static void main(String[] args) throws Exception {
     logger.info("Starting to Consume  a Stream.");
+        boolean aggregate = false;
+        Path recordFile = null;
+        int metricsPort = -1;
+        Date exportFrom = null;
+        Date exportTo = null;
+        Path exportDirectory = null;
+        ThreadMode threadMode = ThreadMode.configured();
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--aggregate")) {
+                aggregate = true;
+            } else if (args[i].equals("--record") && i + 1 < args.length) {
+                recordFile = Paths.get(args[++i]);
+            } else if (args[i].equals("--virtual-threads")) {
+                threadMode = ThreadMode.VIRTUAL;
+            } else if (args[i].equals("--metrics-port") && i + 1 < args.length) {
+                metricsPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--export") && i + 3 < args.length) {
+                exportFrom = Date.from(Instant.parse(args[++i]));
+                exportTo = Date.from(Instant.parse(args[++i]));
+                exportDirectory = Paths.get(args[++i]);
+            } else if (args[i].equals("--scan") && i + 4 < args.length) {
+                // Offline: scans an export directory, only the hours and row groups in the range are read.
+                final Map<String, double[]> machines = new TreeMap<>();
+                long values = StreamExporter.scan(Paths.get(args[i + 1]), Instant.parse(args[i + 3]).toEpochMilli(),
+                        Instant.parse(args[i + 4]).toEpochMilli(), args[i + 2], (machine, time, value) -> {
+                            double[] stats = machines.computeIfAbsent(machine, key -> new double[]{0, Double.MAX_VALUE, -Double.MAX_VALUE, 0});
+                            stats[0]++;
+                            stats[1] = Math.min(stats[1], value);
+                            stats[2] = Math.max(stats[2], value);
+                            stats[3] += value;
+                        });
+                for (Map.Entry<String, double[]> machine : machines.entrySet()) {
+                    double[] stats = machine.getValue();
+                    logger.info(String.format("%s %s: count=%.0f, min=%s, max=%s, mean=%s",
+                            machine.getKey(), args[i + 2], stats[0], stats[1], stats[2], stats[3] / stats[0]));
+                }
+                logger.info(String.format("Scanned %s values of %s.", values, args[i + 2]));
+                return;
+            } else if (args[i].equals("--replay") && i + 1 < args.length) {
+                // Offline: one minute rollups, sliding every 10 seconds, over a recording.
+                try (WindowedAggregator aggregator = WindowedAggregator.builder().windowMillis(60000).slideMillis(10000).build()) {
+                    MessageRecording.replay(Paths.get(args[++i]), aggregator);
+                    aggregator.flush();
+                    logger.info("Aggregation done: " + aggregator);
+                }
+                return;
+            } else {
+                positional.add(args[i]);
+            }
+        }
         final String configurationFilePath = ".oci/config";
         final String profile = "DEFAULT";
 
         //Testing Config file output
         ConfigFileReader.ConfigFile config = ConfigFileReader.parse(configurationFilePath, profile);
 
-        //Create Connection
-        final AuthenticationDetailsProvider provider = new ConfigFileAuthenticationDetailsProvider(configurationFilePath, profile);
+        //Create Connection, clients are shared and closed with everything registered when the JVM exits
+        final StreamClientRegistry clients = StreamClientRegistry.shared(configurationFilePath, profile);
         // Create an admin-client
-        final StreamAdminClient adminClient = new StreamAdminClient(provider);
+        final StreamAdminClient adminClient = clients.adminClient();
+        if (metricsPort >= 0) {
+            clients.register(PrometheusEndpoint.start(metricsPort, StreamMetrics.shared()));
+        }
         //Set variables
         final String compartmentId = config.get("compartment-id");
         final String StreamName = "chips_stream";
@@ -61,108 +109,87 @@ public class ChipsConsumer {
 
 
         try {
-            StreamClient streamClient = new StreamClient(provider);
-            Stream stream = getStream(adminClient,compartmentId, StreamName);
-            streamClient.setEndpoint(stream.getMessagesEndpoint());
-            String partitionCursor = getCursorByPartition(streamClient, stream.getId(), "0");
-            simpleMessageLoop(streamClient, stream.getId(), partitionCursor);
-
-        }
-        catch (Exception e) {
-            logger.error(e.toString());
-        }
-
-    }
-
-    private static String getCursorByPartition(
-            StreamClient streamClient, String streamId, String partition) {
-        logger.info(String.format("Monitor partition with cursor partition number %s.", partition));
-
-        CreateCursorDetails cursorDetails =  CreateCursorDetails.builder().partition(partition).type(Type.TrimHorizon).build();
-
-        CreateCursorRequest createCursorRequest =
-                CreateCursorRequest.builder()
-                        .streamId(streamId)
-                        .createCursorDetails(cursorDetails)
-                        .build();
-
-        CreateCursorResponse cursorResponse = streamClient.createCursor(createCursorRequest);
-        return cursorResponse.getCursor().getValue();
-    }
-    private static Stream getStream(StreamAdminClient adminClient, String compartmentId, String StreamName) {
-        String streamId = "";
-
-        ListStreamsRequest listRequestActive = ListStreamsRequest.builder()
-                .compartmentId(compartmentId)
-                .lifecycleState(LifecycleState.Active)
-                .name(StreamName)
-                .build();
-        ListStreamsResponse listResponse = adminClient.listStreams(listRequestActive);
-        if (!listResponse.getItems().isEmpty()) {
-
-            for (StreamSummary value : listResponse.getItems()) {
-                if (value.getName().equals(StreamName)) {
-                    streamId = value.getId();
-                }
+            Stream stream = StreamMetadataCache.builder()
+                    .adminClient(adminClient)
+                    .warmCacheFile(Paths.get("cache", "streams.tsv"))
+                    .build()
+                    .get(compartmentId, StreamName);
+            StreamClient streamClient = clients.streamClient(stream.getMessagesEndpoint());
+
+            if (exportDirectory != null) {
+                // Read every partition from an AtTime cursor and write the range to columnar files, then exit.
+                StreamExporter.builder()
+                        .streamClient(streamClient)
+                        .stream(stream)
+                        .timeRange(exportFrom, exportTo)
+                        .directory(exportDirectory)
+                        .build()
+                        .run();
+                return;
             }
 
-        }
-        GetStreamResponse getResponse = adminClient.getStream(GetStreamRequest.builder().streamId(streamId).build());
-        return getResponse.getStream();
-    }
-
-    private static String getCursorByGroup(
-            StreamClient streamClient, String streamId, String groupName, String instanceName) {
-        logger.info(String.format("Creating a cursor for group %s, instance %s.", groupName, instanceName));
-
-        CreateGroupCursorDetails cursorDetails =
-                CreateGroupCursorDetails.builder()
-                        .groupName(groupName)
-                        .instanceName(instanceName)
-                        .type(CreateGroupCursorDetails.Type.TrimHorizon)
-                        .commitOnGet(true)
-                        .build();
+            // Lines are formatted straight from the message bytes into the writer's buffer and printed in batches by
+            // its own thread, so fetch threads neither allocate Strings per message nor wait on the console. Binary and
+            // compressed values are decoded before the writer's lock is taken, so partitions do not decode in turn.
+            final TelemetryDecoder decoder = TelemetryDecoder.defaultDecoder();
+            final AsyncBatchedWriter output = clients.register(AsyncBatchedWriter.stdout());
+            MessageHandler printer = MessageView.handler(decoder, view -> output.writeLine(view.prepareLine()));
+            if (aggregate) {
+                // Tumbling one minute rollups, flushed when the consumer shuts down.
+                printer = clients.register(WindowedAggregator.builder().windowMillis(60000).build());
+            }
+            if (recordFile != null) {
+                final MessageRecording.Recorder recorder = clients.register(MessageRecording.recorder(recordFile));
+                final MessageHandler handler = printer;
+                printer = message -> {
+                    recorder.handle(message);
+                    handler.handle(message);
+                };
+            }
 
-        CreateGroupCursorRequest createCursorRequest =
-                CreateGroupCursorRequest.builder()
-                        .streamId(streamId)
-                        .createGroupCursorDetails(cursorDetails)
+            if (!positional.isEmpty()) {
+                // Join the consumer group, the service assigns this instance its share of the partitions.
+                final GroupStreamConsumer groupConsumer = GroupStreamConsumer.builder()
+                        .streamClient(streamClient)
+                        .streamId(stream.getId())
+                        .groupName(positional.get(0))
+                        .instanceName(positional.size() > 1 ? positional.get(1) : InetAddress.getLocalHost().getHostName())
+                        .handler(printer)
+                        .threadFactory(threadMode.factory("group-consumer"))
                         .build();
-
-        CreateGroupCursorResponse groupCursorResponse =
-                streamClient.createGroupCursor(createCursorRequest);
-        return groupCursorResponse.getCursor().getValue();
-    }
-
-    private static void simpleMessageLoop(StreamClient streamClient, String streamId, String initialCursor) {
-        String cursor = initialCursor;
-        for (int i = 0; i < 100; i++) {
-
-            GetMessagesRequest getRequest =
-                    GetMessagesRequest.builder()
-                            .streamId(streamId)
-                            .cursor(cursor)
-                            .limit(10)
-                            .build();
-
-            GetMessagesResponse getResponse = streamClient.getMessages(getRequest);
-
-            // process the messages
-            logger.info(String.format("Read %s messages.", getResponse.getItems().size()));
-            for (Message message : getResponse.getItems()) {
-                System.out.println(
-                        String.format(
-                                "%s: %s",
-                                new String(message.getKey(), UTF_8),
-                                new String(message.getValue(), UTF_8)));
+                final CountDownLatch stopped = new CountDownLatch(1);
+                clients.register(() -> {
+                    groupConsumer.close();
+                    stopped.countDown();
+                });
+                groupConsumer.start();
+                stopped.await();
+                return;
             }
 
-            // getMessages is a throttled method; clients should retrieve sufficiently large message
-            // batches, as to avoid too many http requests.
-            Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
+            // Read every partition of the stream in parallel, one fetch loop per partition. Handled offsets are
+            // checkpointed locally so a restart continues where this run stopped instead of at TrimHorizon.
+            // The backlog is probed every 10 seconds and the handler workers follow the partitions that are behind.
+            // Registered store first, so on exit the consumer is closed before the store it checkpoints to.
+            final OffsetCheckpointStore checkpointStore = clients.register(OffsetCheckpointStore.open(
+                    Paths.get("checkpoints", "offsets.log"), OffsetCheckpointStore.FsyncPolicy.PERIODIC, 1000));
+            final PartitionedStreamConsumer consumer = clients.register(PartitionedStreamConsumer.builder()
+                    .streamClient(streamClient)
+                    .stream(stream)
+                    .handler(printer)
+                    .checkpointStore(checkpointStore)
+                    .threadFactory(threadMode.factory("partition-consumer"))
+                    .lagProbeIntervalMillis(10000)
+                    .autoscaleWorkers(1, stream.getPartitions())
+                    .backlogListener(backlog -> logger.info(String.format("Backlog of stream %s: %s", stream.getId(), backlog)))
+                    .build());
+            consumer.start();
+            consumer.awaitTermination();
 
-            // use the next-cursor for iteration
-            cursor = getResponse.getOpcNextCursor();
         }
+        catch (Exception e) {
+            logger.error(e.toString());
+        }
+
     }
 }
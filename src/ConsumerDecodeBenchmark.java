@@ -0,0 +1,92 @@
+import com.oracle.bmc.streaming.model.Message;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Benchmark compares the consumer's per message work before and after the flyweight decoding path: printing each
+ * message as "key: value", and reading getSystemCpuLoad out of it with JsonFieldExtractor.
+ * Before is String.format over new Strings into a synchronized, autoflushing PrintStream; after is MessageView appending
+ * into AsyncBatchedWriter. Output goes to a discarding stream so the terminal does not dominate. Besides time and allocation on the calling thread, the print paths report process
+ * CPU per message, which includes the writer thread. Run with the same classpath as ChipsConsumer.
+ */
+public class ConsumerDecodeBenchmark {
+
+    private static final int MESSAGES = 256;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        MicroBenchmark benchmark = new MicroBenchmark(iterations, iterations);
+        String machineName = InetAddress.getLocalHost().getHostName();
+
+        OsMetricSampler sampler = new OsMetricSampler();
+        OsMetricSampler.Sample sample = sampler.newSample();
+        FlatJsonPayloadEncoder encoder = new FlatJsonPayloadEncoder(machineName);
+        Message[] messages = new Message[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            sampler.sample(sample);
+            messages[i] = Message.builder()
+                    .key(machineName.getBytes(UTF_8))
+                    .value(encoder.encode(sample))
+                    .partition("0")
+                    .offset((long) i)
+                    .build();
+        }
+        TelemetryDecoder decoder = TelemetryDecoder.defaultDecoder();
+        int[] next = {0};
+
+        PrintStream console = new PrintStream(new BufferedOutputStream(OutputStream.nullOutputStream()), true, "UTF-8");
+        MicroBenchmark.Operation printBefore = () -> {
+            Message message = messages[next[0]++ & (MESSAGES - 1)];
+            String line = String.format("%s: %s", new String(message.getKey(), UTF_8), decoder.toDisplayString(message.getKey(), message.getValue()));
+            console.println(line);
+            return line.length();
+        };
+        report(benchmark, "print before (format + println)", printBefore, console::flush, iterations);
+
+        MessageView view = new MessageView(decoder);
+        try (AsyncBatchedWriter output = AsyncBatchedWriter.builder().out(OutputStream.nullOutputStream()).build()) {
+            MicroBenchmark.Operation printAfter = () -> {
+                output.writeLine(view.wrap(messages[next[0]++ & (MESSAGES - 1)]).prepareLine());
+                return 1;
+            };
+            report(benchmark, "print after (view + async writer)", printAfter, output::flush, iterations);
+        }
+
+        JsonFieldExtractor.Field systemCpuLoad = JsonFieldExtractor.field("getSystemCpuLoad");
+        System.out.println(benchmark.measure("cpu load (field extractor)", () -> {
+            view.wrap(messages[next[0]++ & (MESSAGES - 1)]);
+            return (long) (view.getDouble(systemCpuLoad) * 1000);
+        }));
+    }
+
+    // Calling thread figures from MicroBenchmark, then CPU of the whole process over a second, equally long run that
+    // only ends once its output has been written.
+    private static void report(MicroBenchmark benchmark, String name, MicroBenchmark.Operation operation, Runnable drain,
+                               int iterations) throws Exception {
+        System.out.println(benchmark.measure(name, operation));
+        drain.run();
+        long cpuBefore = processCpuNanos();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        drain.run();
+        long cpuAfter = processCpuNanos();
+        if (cpuBefore >= 0) {
+            System.out.println(String.format("%-40s %12.1f ns process CPU/message", name, (cpuAfter - cpuBefore) / (double) iterations));
+        }
+    }
+
+    private static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
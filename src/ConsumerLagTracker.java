@@ -0,0 +1,313 @@
+import com.oracle.bmc.streaming.StreamClient;
+import com.oracle.bmc.streaming.model.CreateCursorDetails;
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.requests.CreateCursorRequest;
+import com.oracle.bmc.streaming.requests.GetMessagesRequest;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+ * Class estimates how far a consumer is behind the head of every partition, in messages and in time, and publishes
+ * that as a Backlog to its listeners and to the StreamMetrics partition gauges every probe interval.
+ * The service has no call that returns the head offset, so it is probed with Latest cursors: every interval a Latest
+ * cursor is created per partition and the previous one is read with limit 1, the offset of the first message written
+ * since is the head as of that cursor's creation. That is two calls per partition and interval, and the head it
+ * gives is up to one interval old, so the consumer's own fetches raise it when they got further.
+ * A Latest cursor only learns of a burst once something is written after it, so a partition is also behind while
+ * the consumer's GetMessages calls come back full. Otherwise it is behind while messages from before the previous
+ * probe are still unhandled, so a consumer keeping up with a live stream is not, however much it has in flight.
+ * The lag in messages runs from the last handled message to the head and is a lower bound; the lag in time is the age
+ * of the last handled message, from Message.getTimestamp(), while the partition is behind and zero otherwise.
+ */
+public class ConsumerLagTracker implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private final StreamClient streamClient;
+    private final String streamId;
+    private final long probeIntervalMillis;
+    private final List<Consumer<Backlog>> listeners;
+    private final PartitionState[] partitions;
+    private final StreamMetrics.PartitionLag[] lags;
+    private final StreamMetrics.OperationStats getStats;
+    private final StreamMetrics.OperationStats cursorStats;
+    private final ScheduledExecutorService timer;
+    private volatile Backlog backlog;
+
+    private ConsumerLagTracker(Builder builder) {
+        this.streamClient = builder.streamClient;
+        this.streamId = builder.streamId;
+        this.probeIntervalMillis = builder.probeIntervalMillis;
+        this.listeners = new ArrayList<>(builder.listeners);
+        this.partitions = new PartitionState[builder.partitions];
+        this.lags = new StreamMetrics.PartitionLag[builder.partitions];
+        for (int p = 0; p < builder.partitions; p++) {
+            partitions[p] = new PartitionState();
+            lags[p] = builder.metrics.partition(streamId, String.valueOf(p));
+        }
+        this.getStats = builder.metrics.operation(streamId, StreamMetrics.Operation.GET_MESSAGES);
+        this.cursorStats = builder.metrics.operation(streamId, StreamMetrics.Operation.CREATE_CURSOR);
+        this.backlog = new Backlog(new long[builder.partitions], new long[builder.partitions], new boolean[builder.partitions]);
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lag-probe-" + streamId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public void start() {
+        timer.scheduleWithFixedDelay(this::probe, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Reports a GetMessages call of the consumer: the limit it asked for, the messages it got and the offset of the
+     * last one, which is ignored when it got none.
+     */
+    public void onFetched(int partition, int limit, int count, long lastOffset) {
+        PartitionState state = partitions[partition];
+        if (count > 0) {
+            state.fetchedNext = lastOffset + 1;
+        }
+        state.fetchedFull = count >= limit;
+    }
+
+    public void onHandled(int partition, long offset, Date timestamp) {
+        PartitionState state = partitions[partition];
+        state.handledOffset = offset;
+        if (timestamp != null) {
+            state.handledTimeMillis = timestamp.getTime();
+        }
+    }
+
+    // The backlog as of the last probe.
+    public Backlog getBacklog() {
+        return backlog;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    private void probe() {
+        long now = System.currentTimeMillis();
+        long[] messages = new long[partitions.length];
+        long[] millis = new long[partitions.length];
+        boolean[] behind = new boolean[partitions.length];
+        for (int p = 0; p < partitions.length; p++) {
+            PartitionState state = partitions[p];
+            probeHead(p, state);
+            long handledOffset = state.handledOffset;
+            if (handledOffset < 0) {
+                // Fetching but nothing handled yet, how far behind is not known until the first batch is.
+                behind[p] = state.fetchedFull || state.fetchedNext >= 0;
+                messages[p] = behind[p] ? -1 : 0;
+            } else {
+                // Everything below the probed head was written before the previous probe, at least an interval ago;
+                // until the first head is in, anything fetched and not handled counts.
+                long head = state.probedHead >= 0 ? state.probedHead : state.fetchedNext;
+                behind[p] = state.fetchedFull || head - 1 > handledOffset;
+                long known = Math.max(state.probedHead, state.fetchedNext) - handledOffset - 1;
+                // Behind on full fetches alone, the head is past anything seen so far.
+                messages[p] = known > 0 ? known : behind[p] ? -1 : 0;
+            }
+            millis[p] = behind[p] && state.handledTimeMillis > 0 ? Math.max(0, now - state.handledTimeMillis) : 0;
+            lags[p].recordBacklog(messages[p], millis[p]);
+        }
+        Backlog current = new Backlog(messages, millis, behind);
+        backlog = current;
+        for (Consumer<Backlog> listener : listeners) {
+            try {
+                listener.accept(current);
+            } catch (RuntimeException e) {
+                logger.error("Backlog listener failed: " + e.toString());
+            }
+        }
+    }
+
+    // Reads the first message written since the last probe cursor was created, then creates the next one.
+    private void probeHead(int partition, PartitionState state) {
+        try {
+            if (state.probeCursor != null) {
+                long start = System.nanoTime();
+                List<Message> items;
+                try {
+                    items = streamClient.getMessages(GetMessagesRequest.builder()
+                            .streamId(streamId)
+                            .cursor(state.probeCursor)
+                            .limit(1)
+                            .build()).getItems();
+                } catch (RuntimeException e) {
+                    getStats.recordFailure(System.nanoTime() - start, e);
+                    throw e;
+                }
+                getStats.recordSuccess(System.nanoTime() - start, items.size());
+                if (!items.isEmpty()) {
+                    state.probedHead = Math.max(state.probedHead, items.get(0).getOffset());
+                }
+            }
+            CreateCursorRequest request = CreateCursorRequest.builder()
+                    .streamId(streamId)
+                    .createCursorDetails(CreateCursorDetails.builder()
+                            .partition(String.valueOf(partition))
+                            .type(CreateCursorDetails.Type.Latest)
+                            .build())
+                    .build();
+            long start = System.nanoTime();
+            try {
+                state.probeCursor = streamClient.createCursor(request).getCursor().getValue();
+            } catch (RuntimeException e) {
+                cursorStats.recordFailure(System.nanoTime() - start, e);
+                throw e;
+            }
+            cursorStats.recordSuccess(System.nanoTime() - start, 0);
+        } catch (RuntimeException e) {
+            state.probeCursor = null;
+            logger.warn(String.format("Probing the head of partition %s failed: %s", partition, e.toString()));
+        }
+    }
+
+    private static class PartitionState {
+        private volatile long handledOffset = -1;
+        private volatile long handledTimeMillis;
+        // Offset after the last fetched message, -1 before the first one.
+        private volatile long fetchedNext = -1;
+        private volatile boolean fetchedFull = false;
+        // Only touched by the probe thread.
+        private long probedHead = -1;
+        private String probeCursor;
+    }
+
+    /*
+     * Lag of every partition at one probe. Messages are -1 for a partition that is behind by an amount not known yet.
+     */
+    public static class Backlog {
+        private final long[] messages;
+        private final long[] lagMillis;
+        private final boolean[] behind;
+
+        private Backlog(long[] messages, long[] lagMillis, boolean[] behind) {
+            this.messages = messages;
+            this.lagMillis = lagMillis;
+            this.behind = behind;
+        }
+
+        public int getPartitions() {
+            return messages.length;
+        }
+
+        public long getMessages(int partition) {
+            return messages[partition];
+        }
+
+        public long getLagMillis(int partition) {
+            return lagMillis[partition];
+        }
+
+        public boolean isBehind(int partition) {
+            return behind[partition];
+        }
+
+        public int getPartitionsBehind() {
+            int count = 0;
+            for (boolean partitionBehind : behind) {
+                count += partitionBehind ? 1 : 0;
+            }
+            return count;
+        }
+
+        // Sum over the partitions whose lag is known.
+        public long getTotalMessages() {
+            long total = 0;
+            for (long partitionMessages : messages) {
+                total += Math.max(0, partitionMessages);
+            }
+            return total;
+        }
+
+        public long getMaxLagMillis() {
+            long max = 0;
+            for (long partitionLag : lagMillis) {
+                max = Math.max(max, partitionLag);
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder partitionLags = new StringBuilder();
+            for (int p = 0; p < messages.length; p++) {
+                partitionLags.append(p == 0 ? "" : ", ").append(p).append('=')
+                        .append(messages[p] < 0 ? "?" : String.valueOf(messages[p])).append('/').append(lagMillis[p]).append("ms");
+            }
+            return String.format("behind=%s, messages=%s, maxLagMillis=%s, partitions={%s}",
+                    getPartitionsBehind(), getTotalMessages(), getMaxLagMillis(), partitionLags);
+        }
+    }
+
+    public static class Builder {
+        private StreamClient streamClient;
+        private String streamId;
+        private int partitions;
+        private long probeIntervalMillis = 10000;
+        private final List<Consumer<Backlog>> listeners = new ArrayList<>();
+        private StreamMetrics metrics = StreamMetrics.shared();
+
+        public Builder streamClient(StreamClient streamClient) {
+            this.streamClient = streamClient;
+            return this;
+        }
+
+        public Builder streamId(String streamId) {
+            this.streamId = streamId;
+            return this;
+        }
+
+        // Partition count of the stream, partitions are named 0 to partitions - 1.
+        public Builder partitions(int partitions) {
+            this.partitions = partitions;
+            return this;
+        }
+
+        // How often heads are probed and the backlog published; every probe is two calls per partition.
+        public Builder probeIntervalMillis(long probeIntervalMillis) {
+            this.probeIntervalMillis = probeIntervalMillis;
+            return this;
+        }
+
+        // Called on the probe thread with every new backlog.
+        public Builder listener(Consumer<Backlog> listener) {
+            this.listeners.add(listener);
+            return this;
+        }
+
+        public Builder metrics(StreamMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public ConsumerLagTracker build() {
+            if (streamClient == null || StringUtils.isBlank(streamId) || metrics == null) {
+                throw new IllegalArgumentException("A stream client, stream id and metrics are required.");
+            }
+            if (partitions < 1 || probeIntervalMillis < 1) {
+                throw new IllegalArgumentException("Partitions and probe interval must be positive.");
+            }
+            return new ConsumerLagTracker(this);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class is the deflate codec with a preset dictionary shared by producer and consumer. Telemetry values are small
+ * and repeat the same keys in every message, so without a dictionary deflate has little history to match against;
+ * with one, the getter names compress to back references from the first byte on.
+ * The zlib stream carries the dictionary's Adler-32, a consumer holding a different dictionary fails instead of
+ * returning garbage. Changing TELEMETRY_DICTIONARY therefore needs consumers updated before producers.
+ */
+public class DeflatePayloadCodec implements PayloadCodec {
+
+    public static final byte HEADER = (byte) 0xC2;
+
+    // Deflate matches closest to the end of the dictionary cheapest, so the most frequent strings come last.
+    public static final byte[] TELEMETRY_DICTIONARY = (
+            "value-\"getSystemLoadAverage\":\"getMaxFileDescriptorCount\":\"getOpenFileDescriptorCount\":"
+                    + "\"getAvailableProcessors\":\"getTotalSwapSpaceSize\":\"getFreeSwapSpaceSize\":"
+                    + "\"getTotalMemorySize\":\"getFreeMemorySize\":\"getTotalPhysicalMemorySize\":"
+                    + "\"getFreePhysicalMemorySize\":\"getCommittedVirtualMemorySize\":\"getProcessCpuTime\":"
+                    + "\"getCpuLoad\":0.\"getProcessCpuLoad\":0.\"getSystemCpuLoad\":0.000000,"
+                    + "{\"machineName\":\"\",\"messageTime\":\"20").getBytes(UTF_8);
+
+    private final byte[] dictionary;
+    private final long dictionaryId;
+    // Setting up a Deflater costs more than compressing a small value, so each thread keeps and resets its own.
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    public DeflatePayloadCodec() {
+        this(TELEMETRY_DICTIONARY, Deflater.BEST_SPEED);
+    }
+
+    public DeflatePayloadCodec(byte[] dictionary, int level) {
+        this.dictionary = dictionary == null ? new byte[0] : dictionary.clone();
+        Adler32 adler = new Adler32();
+        adler.update(this.dictionary);
+        this.dictionaryId = adler.getValue();
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    @Override
+    public byte getHeader() {
+        return HEADER;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public byte[] compress(byte[] value) throws IOException {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if (dictionary.length > 0) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(value);
+        deflater.finish();
+        byte[] out = new byte[value.length + value.length / 8 + 64];
+        out[0] = HEADER;
+        int length = 1;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        try {
+            inflater.setInput(data, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished()) {
+                int read = inflater.inflate(chunk);
+                if (read == 0 && inflater.needsDictionary()) {
+                    if (inflater.getAdler() != dictionaryId) {
+                        throw new IOException(String.format("Value was compressed with dictionary %s, this codec has %s.",
+                                inflater.getAdler(), dictionaryId));
+                    }
+                    inflater.setDictionary(dictionary);
+                } else if (read == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated deflate value.");
+                }
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed deflate value.", e);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class writes one OsMetricSampler.Sample as a flat json object straight into a reused byte buffer:
+ *   {"machineName":"host","messageTime":"2019-11-05T10:15:30.123","getCommittedVirtualMemorySize":123,...,"getSystemCpuLoad":0.25}
+ * Keys and the machine name are encoded once, numbers are written digit by digit, and no JsonObject tree or
+ * intermediate String is built. The only per sample allocation is the exact size byte[] handed back, which
+ * PutMessagesDetailsEntry.value keeps as is; it must be a fresh array because the producer holds on to it until the
+ * batch is sent. Memory per sample stays constant however long the producer runs.
+ * Instances are not thread safe, use one per sampling thread.
+ */
+public class FlatJsonPayloadEncoder {
+
+    // Doubles are written with this many decimals, enough for cpu loads and ratios.
+    private static final int DOUBLE_DECIMALS = 6;
+    private static final long DOUBLE_SCALE = 1000000L;
+    private static final byte[] NULL = "null".getBytes(UTF_8);
+
+    private final byte[] machineNameField;
+    private final ZoneId zone;
+    private byte[] buffer = new byte[2048];
+    private int position;
+    private String[] cachedLongNames;
+    private String[] cachedDoubleNames;
+    private byte[][] longKeys;
+    private byte[][] doubleKeys;
+
+    public FlatJsonPayloadEncoder(String machineName) {
+        this(machineName, ZoneId.systemDefault());
+    }
+
+    public FlatJsonPayloadEncoder(String machineName, ZoneId zone) {
+        this.machineNameField = ("{" + quote("machineName") + ":" + quote(machineName) + "," + quote("messageTime") + ":\"").getBytes(UTF_8);
+        this.zone = zone;
+    }
+
+    /*
+     * Encodes the sample and returns a new array holding exactly the json bytes.
+     */
+    public byte[] encode(OsMetricSampler.Sample sample) {
+        int length = encodeIntoBuffer(sample);
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /*
+     * Encodes the sample into the internal buffer and returns its length; the bytes stay valid until the next call.
+     */
+    public int encodeIntoBuffer(OsMetricSampler.Sample sample) {
+        cacheKeys(sample);
+        position = 0;
+        write(machineNameField);
+        writeTime(sample.getTimestampMillis());
+        writeByte('"');
+        for (int i = 0; i < sample.longCount(); i++) {
+            writeByte(',');
+            write(longKeys[i]);
+            writeLong(sample.longValue(i));
+        }
+        for (int i = 0; i < sample.doubleCount(); i++) {
+            writeByte(',');
+            write(doubleKeys[i]);
+            writeDouble(sample.doubleValue(i));
+        }
+        writeByte('}');
+        return position;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    // Samples from one sampler share their name arrays, so the encoded keys are built once.
+    private void cacheKeys(OsMetricSampler.Sample sample) {
+        if (longKeys != null && sample.longCount() == longKeys.length && sample.doubleCount() == doubleKeys.length
+                && (sample.longCount() == 0 || cachedLongNames[0] == sample.longName(0))
+                && (sample.doubleCount() == 0 || cachedDoubleNames[0] == sample.doubleName(0))) {
+            return;
+        }
+        cachedLongNames = new String[sample.longCount()];
+        longKeys = new byte[sample.longCount()][];
+        for (int i = 0; i < longKeys.length; i++) {
+            cachedLongNames[i] = sample.longName(i);
+            longKeys[i] = (quote(sample.longName(i)) + ":").getBytes(UTF_8);
+        }
+        cachedDoubleNames = new String[sample.doubleCount()];
+        doubleKeys = new byte[sample.doubleCount()][];
+        for (int i = 0; i < doubleKeys.length; i++) {
+            cachedDoubleNames[i] = sample.doubleName(i);
+            doubleKeys[i] = (quote(sample.doubleName(i)) + ":").getBytes(UTF_8);
+        }
+    }
+
+    // Same layout as LocalDateTime.toString() with milliseconds: yyyy-MM-ddTHH:mm:ss.SSS
+    private void writeTime(long epochMillis) {
+        long epochSecond = Math.floorDiv(epochMillis, 1000L);
+        int millis = (int) Math.floorMod(epochMillis, 1000L);
+        ZoneOffset offset = zone.getRules().getOffset(Instant.ofEpochSecond(epochSecond));
+        LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, offset);
+        writePadded(time.getYear(), 4);
+        writeByte('-');
+        writePadded(time.getMonthValue(), 2);
+        writeByte('-');
+        writePadded(time.getDayOfMonth(), 2);
+        writeByte('T');
+        writePadded(time.getHour(), 2);
+        writeByte(':');
+        writePadded(time.getMinute(), 2);
+        writeByte(':');
+        writePadded(time.getSecond(), 2);
+        writeByte('.');
+        writePadded(millis, 3);
+    }
+
+    private void writePadded(int value, int digits) {
+        ensureCapacity(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[position + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            write(Long.toString(value).getBytes(UTF_8));
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[position + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    // Fixed point with trailing zeros dropped; json has no NaN or infinity, those become null.
+    private void writeDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= Long.MAX_VALUE / DOUBLE_SCALE) {
+            write(Double.isNaN(value) || Double.isInfinite(value) ? NULL : Double.toString(value).getBytes(UTF_8));
+            return;
+        }
+        long scaled = Math.round(Math.abs(value) * DOUBLE_SCALE);
+        if (value < 0 && scaled != 0) {
+            writeByte('-');
+        }
+        writeLong(scaled / DOUBLE_SCALE);
+        long fraction = scaled % DOUBLE_SCALE;
+        // Keep one decimal on whole numbers so readers still see a floating point value.
+        if (fraction == 0) {
+            writeByte('.');
+            writeByte('0');
+            return;
+        }
+        int decimals = DOUBLE_DECIMALS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            decimals--;
+        }
+        writeByte('.');
+        writePadded((int) fraction, decimals);
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeByte(char c) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+
+    // Json string literal for names, only quotes, backslashes and control characters need escaping.
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,420 @@
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.streaming.StreamClient;
+import com.oracle.bmc.streaming.model.CreateGroupCursorDetails;
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.requests.ConsumerCommitRequest;
+import com.oracle.bmc.streaming.requests.ConsumerHeartbeatRequest;
+import com.oracle.bmc.streaming.requests.CreateGroupCursorRequest;
+import com.oracle.bmc.streaming.requests.GetMessagesRequest;
+import com.oracle.bmc.streaming.responses.GetMessagesResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/*
+ * Class runs one instance of a consumer group on a group cursor created with commitOnGet(false).
+ * The service spreads the stream's partitions over the instances of a group, wherever they run, and moves them when
+ * instances join or time out. Several instances can live in one JVM by giving each its own instance name.
+ * Offsets are committed manually and asynchronously: after a fetched batch has been fully handled its next cursor
+ * becomes committable, and a single commit thread sends ConsumerCommit once enough messages or time have gone by.
+ * While there is nothing new to commit the thread sends heartbeats so the instance keeps its partitions.
+ * close() stops fetching, handles what was fetched and commits it, so delivery is at least once without one commit
+ * per GetMessages. A restarted instance resumes from the group's committed offsets.
+ * A message the handler throws on is retried until it succeeds under the default RETRY failure policy, and its batch is
+ * not committed before; if the instance closes first, nothing from that batch on is committed. SKIP logs and moves on.
+ * GetMessages and CreateGroupCursor calls are recorded in StreamMetrics, and the lag of every partition this instance
+ * handles messages of.
+ */
+public class GroupStreamConsumer implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private final StreamClient streamClient;
+    private final String streamId;
+    private final String groupName;
+    private final String instanceName;
+    private final MessageHandler handler;
+    private final MessageHandler.FailurePolicy failurePolicy;
+    private final CreateGroupCursorDetails.Type cursorType;
+    private final int timeoutInMs;
+    private final long commitIntervalMillis;
+    private final long commitEveryMessages;
+    private final AdaptivePollScheduler scheduler;
+    private final BlockingQueue<FetchedBatch> ring;
+    private final Thread fetcher;
+    private final Thread processor;
+    private final ScheduledExecutorService committer;
+    private final StreamMetrics metrics;
+    private final StreamMetrics.OperationStats getStats;
+    private final StreamMetrics.OperationStats cursorStats;
+
+    private final Map<String, Long> processedOffsets = new ConcurrentHashMap<>();
+    private final AtomicLong uncommittedMessages = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong heartbeats = new AtomicLong();
+    private final AtomicLong commitFailures = new AtomicLong();
+    private volatile String fetchCursor;
+    private volatile String processedCursor;
+    // Only touched by the commit thread.
+    private String committedCursor;
+    private volatile boolean running = false;
+    private volatile boolean fetching = false;
+    private final BooleanSupplier isRunning = () -> running;
+
+    private GroupStreamConsumer(Builder builder) {
+        this.streamClient = builder.streamClient;
+        this.streamId = builder.streamId;
+        this.groupName = builder.groupName;
+        this.instanceName = builder.instanceName;
+        this.handler = builder.handler;
+        this.failurePolicy = builder.failurePolicy;
+        this.cursorType = builder.cursorType;
+        this.timeoutInMs = builder.timeoutInMs;
+        this.commitIntervalMillis = builder.commitIntervalMillis;
+        this.commitEveryMessages = builder.commitEveryMessages;
+        this.scheduler = new AdaptivePollScheduler(builder.minFetchLimit, builder.maxFetchLimit, builder.maxIdleMillis);
+        this.ring = new ArrayBlockingQueue<>(builder.bufferedBatches);
+        this.fetcher = builder.threadFactory.newThread(this::fetchLoop);
+        this.fetcher.setName("group-fetch-" + groupName + "-" + instanceName);
+        this.processor = builder.threadFactory.newThread(this::processLoop);
+        this.processor.setName("group-process-" + groupName + "-" + instanceName);
+        this.committer = Executors.newSingleThreadScheduledExecutor(builder.threadFactory);
+        this.metrics = builder.metrics;
+        this.getStats = metrics.operation(streamId, StreamMetrics.Operation.GET_MESSAGES);
+        this.cursorStats = metrics.operation(streamId, StreamMetrics.Operation.CREATE_GROUP_CURSOR);
+        scheduler.reportTo(metrics.poll(streamId, "group:" + groupName + "/" + instanceName));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        fetching = true;
+        logger.info(String.format("Starting instance %s of group %s on stream %s.", instanceName, groupName, streamId));
+        fetcher.start();
+        processor.start();
+        committer.scheduleWithFixedDelay(this::commitOrHeartbeat, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Stops fetching, handles every batch already fetched and commits it before returning.
+     */
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        fetcher.interrupt();
+        Uninterruptibles.joinUninterruptibly(fetcher);
+        Uninterruptibles.joinUninterruptibly(processor);
+        committer.shutdown();
+        boolean interrupted = false;
+        while (!committer.isTerminated()) {
+            try {
+                committer.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        // The executor is gone, this is the only thread left touching the commit state.
+        commitOrHeartbeat();
+        logger.info(String.format("Instance %s of group %s stopped, %s.", instanceName, groupName, this));
+    }
+
+    // Last handled offset per partition this instance has read from.
+    public Map<String, Long> getProcessedOffsets() {
+        return Collections.unmodifiableMap(processedOffsets);
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getHeartbeats() {
+        return heartbeats.get();
+    }
+
+    public long getCommitFailures() {
+        return commitFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("commits=%s, heartbeats=%s, commitFailures=%s, uncommitted=%s, offsets=%s",
+                getCommits(), getHeartbeats(), getCommitFailures(), uncommittedMessages.get(), processedOffsets);
+    }
+
+    private String createGroupCursor() {
+        CreateGroupCursorDetails cursorDetails = CreateGroupCursorDetails.builder()
+                .groupName(groupName)
+                .instanceName(instanceName)
+                .type(cursorType)
+                .timeoutInMs(timeoutInMs)
+                .commitOnGet(false)
+                .build();
+        CreateGroupCursorRequest createCursorRequest = CreateGroupCursorRequest.builder()
+                .streamId(streamId)
+                .createGroupCursorDetails(cursorDetails)
+                .build();
+        long start = System.nanoTime();
+        try {
+            String cursor = streamClient.createGroupCursor(createCursorRequest).getCursor().getValue();
+            cursorStats.recordSuccess(System.nanoTime() - start, 0);
+            return cursor;
+        } catch (RuntimeException e) {
+            cursorStats.recordFailure(System.nanoTime() - start, e);
+            throw e;
+        }
+    }
+
+    private void fetchLoop() {
+        String cursor = null;
+        try {
+            while (running) {
+                scheduler.awaitNextPoll();
+                try {
+                    if (cursor == null) {
+                        // A new group cursor starts from the group's committed offsets.
+                        cursor = createGroupCursor();
+                        fetchCursor = cursor;
+                    }
+                    long fetchStart = System.nanoTime();
+                    GetMessagesResponse getResponse;
+                    try {
+                        getResponse = streamClient.getMessages(GetMessagesRequest.builder()
+                                .streamId(streamId)
+                                .cursor(cursor)
+                                .limit(scheduler.getLimit())
+                                .build());
+                    } catch (BmcException e) {
+                        getStats.recordFailure(System.nanoTime() - fetchStart, e);
+                        throw e;
+                    }
+                    getStats.recordSuccess(System.nanoTime() - fetchStart, getResponse.getItems().size());
+                    cursor = getResponse.getOpcNextCursor();
+                    fetchCursor = cursor;
+                    if (!getResponse.getItems().isEmpty()) {
+                        ring.put(new FetchedBatch(getResponse.getItems(), cursor));
+                    }
+                    scheduler.onMessages(getResponse.getItems().size());
+                } catch (BmcException e) {
+                    if (e.getStatusCode() == 429) {
+                        scheduler.onThrottled();
+                        continue;
+                    }
+                    logger.error(String.format("Error reading group %s as %s: %s", groupName, instanceName, e.toString()));
+                    if (e.getStatusCode() == 400 || e.getStatusCode() == 404) {
+                        cursor = null;
+                    }
+                    scheduler.onMessages(0);
+                }
+            }
+        } catch (InterruptedException e) {
+            // close() interrupts the fetcher to stop it.
+        } catch (Exception e) {
+            logger.error(String.format("Fetch loop for group %s as %s stopped: %s", groupName, instanceName, e.toString()));
+        } finally {
+            fetching = false;
+            processor.interrupt();
+        }
+    }
+
+    private void processLoop() {
+        while (fetching || !ring.isEmpty()) {
+            FetchedBatch batch;
+            try {
+                batch = ring.take();
+            } catch (InterruptedException e) {
+                // Woken because fetching stopped, drain what is left.
+                continue;
+            }
+            for (Message message : batch.messages) {
+                if (!failurePolicy.handle(handler, message, isRunning)) {
+                    // Closing with the handler still failing; the group cursor stays before this batch.
+                    logger.warn(String.format("Closing with partition %s unhandled from offset %s.",
+                            message.getPartition(), message.getOffset()));
+                    ring.clear();
+                    return;
+                }
+                processedOffsets.put(message.getPartition(), message.getOffset());
+                metrics.partition(streamId, message.getPartition()).record(message.getOffset(), message.getTimestamp());
+            }
+            // Everything up to this cursor is handled and may be committed.
+            processedCursor = batch.nextCursor;
+            if (uncommittedMessages.addAndGet(batch.messages.size()) >= commitEveryMessages && running) {
+                committer.execute(this::commitOrHeartbeat);
+            }
+        }
+    }
+
+    private void commitOrHeartbeat() {
+        String cursor = processedCursor;
+        try {
+            if (cursor != null && !cursor.equals(committedCursor)) {
+                long pending = uncommittedMessages.getAndSet(0);
+                try {
+                    streamClient.consumerCommit(ConsumerCommitRequest.builder().streamId(streamId).cursor(cursor).build());
+                } catch (RuntimeException e) {
+                    uncommittedMessages.addAndGet(pending);
+                    throw e;
+                }
+                committedCursor = cursor;
+                commits.incrementAndGet();
+                logger.debug(String.format("Committed %s messages for group %s as %s.", pending, groupName, instanceName));
+            } else if (fetchCursor != null && running) {
+                // Nothing new handled, keep the partition reservations alive.
+                streamClient.consumerHeartbeat(ConsumerHeartbeatRequest.builder().streamId(streamId).cursor(fetchCursor).build());
+                heartbeats.incrementAndGet();
+            }
+        } catch (Exception e) {
+            commitFailures.incrementAndGet();
+            logger.error(String.format("Commit for group %s as %s failed: %s", groupName, instanceName, e.toString()));
+        }
+    }
+
+    private static class FetchedBatch {
+        private final List<Message> messages;
+        private final String nextCursor;
+
+        private FetchedBatch(List<Message> messages, String nextCursor) {
+            this.messages = messages;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    public static class Builder {
+        private StreamClient streamClient;
+        private String streamId;
+        private String groupName;
+        private String instanceName;
+        private MessageHandler handler;
+        private MessageHandler.FailurePolicy failurePolicy = MessageHandler.FailurePolicy.RETRY;
+        private CreateGroupCursorDetails.Type cursorType = CreateGroupCursorDetails.Type.TrimHorizon;
+        private int timeoutInMs = 30000;
+        private long commitIntervalMillis = 5000;
+        private long commitEveryMessages = 1000;
+        private int minFetchLimit = 100;
+        private int maxFetchLimit = AdaptivePollScheduler.SERVICE_MAX_LIMIT;
+        private long maxIdleMillis = 1000;
+        private int bufferedBatches = 4;
+        private ThreadFactory threadFactory = Thread::new;
+        private StreamMetrics metrics = StreamMetrics.shared();
+
+        public Builder streamClient(StreamClient streamClient) {
+            this.streamClient = streamClient;
+            return this;
+        }
+
+        public Builder streamId(String streamId) {
+            this.streamId = streamId;
+            return this;
+        }
+
+        public Builder groupName(String groupName) {
+            this.groupName = groupName;
+            return this;
+        }
+
+        // Must be unique within the group, reusing a name takes over that instance's partitions.
+        public Builder instanceName(String instanceName) {
+            this.instanceName = instanceName;
+            return this;
+        }
+
+        public Builder handler(MessageHandler handler) {
+            this.handler = handler;
+            return this;
+        }
+
+        // What happens to a message the handler throws on; RETRY, the default, keeps delivery at least once.
+        public Builder failurePolicy(MessageHandler.FailurePolicy failurePolicy) {
+            this.failurePolicy = failurePolicy;
+            return this;
+        }
+
+        // Where a group without committed offsets starts reading.
+        public Builder cursorType(CreateGroupCursorDetails.Type cursorType) {
+            this.cursorType = cursorType;
+            return this;
+        }
+
+        // Time without a commit or heartbeat after which the service hands this instance's partitions to others.
+        public Builder timeoutInMs(int timeoutInMs) {
+            this.timeoutInMs = timeoutInMs;
+            return this;
+        }
+
+        public Builder commitIntervalMillis(long commitIntervalMillis) {
+            this.commitIntervalMillis = commitIntervalMillis;
+            return this;
+        }
+
+        public Builder commitEveryMessages(long commitEveryMessages) {
+            this.commitEveryMessages = commitEveryMessages;
+            return this;
+        }
+
+        public Builder fetchLimit(int minFetchLimit, int maxFetchLimit) {
+            this.minFetchLimit = minFetchLimit;
+            this.maxFetchLimit = maxFetchLimit;
+            return this;
+        }
+
+        public Builder maxIdleMillis(long maxIdleMillis) {
+            this.maxIdleMillis = maxIdleMillis;
+            return this;
+        }
+
+        public Builder bufferedBatches(int bufferedBatches) {
+            this.bufferedBatches = bufferedBatches;
+            return this;
+        }
+
+        public Builder threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        // Where GetMessages, CreateGroupCursor, partition lag and poll state are recorded; the shared metrics by default.
+        public Builder metrics(StreamMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public GroupStreamConsumer build() {
+            if (streamClient == null || handler == null || failurePolicy == null || metrics == null
+                    || StringUtils.isAnyBlank(streamId, groupName, instanceName)) {
+                throw new IllegalArgumentException(
+                        "A stream client, stream id, group name, instance name, handler, failure policy and metrics are required.");
+            }
+            if (commitIntervalMillis >= timeoutInMs) {
+                throw new IllegalArgumentException("Commits must happen more often than the instance timeout.");
+            }
+            return new GroupStreamConsumer(this);
+        }
+    }
+}
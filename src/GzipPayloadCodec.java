@@ -0,0 +1,46 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Class is the gzip codec. It needs no shared state between producer and consumer, at the price of the 18 byte gzip
+ * framing on every value, which makes it a poor fit for values of a few hundred bytes.
+ */
+public class GzipPayloadCodec implements PayloadCodec {
+
+    public static final byte HEADER = (byte) 0xC1;
+
+    @Override
+    public byte getHeader() {
+        return HEADER;
+    }
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public byte[] compress(byte[] value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + 32);
+        out.write(HEADER);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(value);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data, offset, length))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+            byte[] chunk = new byte[4096];
+            for (int read = gzip.read(chunk); read > 0; read = gzip.read(chunk)) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
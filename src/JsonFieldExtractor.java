@@ -0,0 +1,191 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class finds single fields in a json message value without parsing it into a tree or decoding it to a String.
+ * It walks the bytes token by token, skipping string contents and nesting, and compares every object key with the
+ * field's pre-encoded UTF-8 name; the first match anywhere in the document wins, so it reads both the flat telemetry
+ * object and the fields nested under "machineData" in the original format. Numbers are parsed straight from the bytes.
+ * Nothing is allocated per lookup. Values that are not valid json give NaN or the caller's default rather than an error.
+ */
+public final class JsonFieldExtractor {
+
+    // Every integer up to 15 digits and every power of ten up to 1e22 is exact as a double.
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private JsonFieldExtractor() {
+    }
+
+    public static Field field(String name) {
+        return new Field(name);
+    }
+
+    /*
+     * The numeric value of the field, or NaN when it is missing, null or not a number.
+     */
+    public static double getDouble(byte[] json, int offset, int length, Field field) {
+        int value = find(json, offset, length, field);
+        return value < 0 ? Double.NaN : parseDouble(json, value, offset + length);
+    }
+
+    /*
+     * The integral value of the field, or defaultValue when it is missing, null or not an integer.
+     */
+    public static long getLong(byte[] json, int offset, int length, Field field, long defaultValue) {
+        int i = find(json, offset, length, field);
+        if (i < 0) {
+            return defaultValue;
+        }
+        int end = offset + length;
+        boolean negative = i < end && json[i] == '-';
+        if (negative) {
+            i++;
+        }
+        int start = i;
+        long value = 0;
+        while (i < end && json[i] >= '0' && json[i] <= '9' && i - start < 19) {
+            value = value * 10 + (json[i] - '0');
+            i++;
+        }
+        if (i == start || (i < end && (json[i] == '.' || json[i] == 'e' || json[i] == 'E' || (json[i] >= '0' && json[i] <= '9')))) {
+            return defaultValue;
+        }
+        return negative ? -value : value;
+    }
+
+    /*
+     * Position of the first byte of the field's value, or -1 when the document has no such key.
+     */
+    public static int find(byte[] json, int offset, int length, Field field) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (json[i] != '"') {
+                i++;
+                continue;
+            }
+            int start = i + 1;
+            int close = skipString(json, start, end);
+            if (close >= end) {
+                return -1;
+            }
+            int next = skipWhitespace(json, close + 1, end);
+            if (next < end && json[next] == ':') {
+                if (matches(json, start, close, field.name)) {
+                    return skipWhitespace(json, next + 1, end);
+                }
+            }
+            i = next;
+        }
+        return -1;
+    }
+
+    // Index of the closing quote of the string starting at start.
+    private static int skipString(byte[] json, int start, int end) {
+        int i = start;
+        while (i < end && json[i] != '"') {
+            i += json[i] == '\\' ? 2 : 1;
+        }
+        return i;
+    }
+
+    private static int skipWhitespace(byte[] json, int i, int end) {
+        while (i < end && (json[i] == ' ' || json[i] == '\n' || json[i] == '\r' || json[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    // Keys with escapes never match; telemetry field names have none.
+    private static boolean matches(byte[] json, int start, int close, byte[] name) {
+        if (close - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (json[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Parses a json number at position. With at most 15 significant digits and no exponent the digits are combined into
+     * an exact long and scaled by one exact power of ten, which rounds correctly; anything else goes to Double.parseDouble.
+     */
+    static double parseDouble(byte[] json, int position, int end) {
+        int i = position;
+        boolean negative = i < end && json[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        int start = i;
+        while (i < end && json[i] >= '0' && json[i] <= '9') {
+            mantissa = mantissa * 10 + (json[i] - '0');
+            digits += mantissa != 0 ? 1 : 0;
+            i++;
+            if (digits > MAX_EXACT_DIGITS) {
+                return slowParse(json, position, end);
+            }
+        }
+        if (i == start) {
+            return Double.NaN;
+        }
+        if (i < end && json[i] == '.') {
+            i++;
+            while (i < end && json[i] >= '0' && json[i] <= '9') {
+                mantissa = mantissa * 10 + (json[i] - '0');
+                digits += mantissa != 0 ? 1 : 0;
+                scale++;
+                i++;
+                if (digits > MAX_EXACT_DIGITS || scale >= POWERS_OF_TEN.length) {
+                    return slowParse(json, position, end);
+                }
+            }
+        }
+        if (i < end && (json[i] == 'e' || json[i] == 'E')) {
+            return slowParse(json, position, end);
+        }
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    private static double slowParse(byte[] json, int position, int end) {
+        try {
+            return Double.parseDouble(new String(json, position, numberEnd(json, position, end) - position, UTF_8));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static int numberEnd(byte[] json, int i, int end) {
+        while (i < end && (json[i] == 'e' || json[i] == 'E' || json[i] == '+' || json[i] == '-'
+                || json[i] == '.' || (json[i] >= '0' && json[i] <= '9'))) {
+            i++;
+        }
+        return i;
+    }
+
+    /*
+     * A field name encoded once, to be reused for every lookup.
+     */
+    public static final class Field {
+        private final String text;
+        private final byte[] name;
+
+        private Field(String text) {
+            this.text = text;
+            this.name = text.getBytes(UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
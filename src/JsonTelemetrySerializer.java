@@ -0,0 +1,80 @@
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import java.io.ByteArrayInputStream;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Class is the json wire format. Samples are written by FlatJsonPayloadEncoder; reading accepts both the flat object
+ * and the original getCPU document that nests single entry objects under "machineData".
+ */
+public class JsonTelemetrySerializer implements TelemetrySerializer {
+
+    private final FlatJsonPayloadEncoder encoder;
+    private final ZoneId zone;
+
+    public JsonTelemetrySerializer(String machineName) {
+        this(machineName, ZoneId.systemDefault());
+    }
+
+    public JsonTelemetrySerializer(String machineName, ZoneId zone) {
+        this.encoder = new FlatJsonPayloadEncoder(machineName, zone);
+        this.zone = zone;
+    }
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public byte[] serialize(OsMetricSampler.Sample sample) {
+        return encoder.encode(sample);
+    }
+
+    @Override
+    public boolean canDeserialize(byte[] value) {
+        return value.length > 0 && value[0] == '{';
+    }
+
+    @Override
+    public TelemetryRecord deserialize(byte[] value) {
+        JsonObject object;
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(value))) {
+            object = reader.readObject();
+        }
+        Map<String, Long> longs = new LinkedHashMap<>();
+        Map<String, Double> doubles = new LinkedHashMap<>();
+        if (object.containsKey("machineData")) {
+            JsonArray machineData = object.getJsonArray("machineData");
+            for (int i = 0; i < machineData.size(); i++) {
+                collect(machineData.getJsonObject(i), longs, doubles);
+            }
+        } else {
+            collect(object, longs, doubles);
+        }
+        // messageTime is a LocalDateTime in the producer's zone, the same zone is assumed here.
+        long timestampMillis = LocalDateTime.parse(object.getString("messageTime")).atZone(zone).toInstant().toEpochMilli();
+        return new TelemetryRecord(object.getString("machineName"), timestampMillis, longs, doubles);
+    }
+
+    private static void collect(JsonObject object, Map<String, Long> longs, Map<String, Double> doubles) {
+        for (Map.Entry<String, JsonValue> entry : object.entrySet()) {
+            if (entry.getValue().getValueType() != JsonValue.ValueType.NUMBER) {
+                continue;
+            }
+            JsonNumber number = (JsonNumber) entry.getValue();
+            if (number.isIntegral()) {
+                longs.put(entry.getKey(), number.longValue());
+            } else {
+                doubles.put(entry.getKey(), number.doubleValue());
+            }
+        }
+    }
+}
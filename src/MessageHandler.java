@@ -0,0 +1,65 @@
+import com.oracle.bmc.streaming.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/*
+ * Callback the consumer engines hand every fetched message to. Messages of one partition arrive in offset order on a
+ * single thread; different partitions may be handled concurrently.
+ * What happens when the handler throws is the consumer's FailurePolicy.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+    void handle(Message message) throws Exception;
+
+    /*
+     * What a consumer does with a message its handler threw on.
+     */
+    enum FailurePolicy {
+        // Handle it again after a pause that doubles up to five seconds until it succeeds. Its partition waits and
+        // no offset past it is checkpointed or committed, so delivery stays at least once; a consumer closed meanwhile
+        // leaves it unhandled and resumes at it after a restart.
+        RETRY,
+        // Log it and go on. Its offset is checkpointed or committed like any other, so the message is lost.
+        SKIP;
+
+        private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+        private static final long FIRST_RETRY_MILLIS = 100;
+        private static final long MAX_RETRY_MILLIS = 5000;
+
+        /*
+         * Hands the message to the handler under this policy. Returns whether the message counts as handled, which is
+         * false only for RETRY once running turned false before the handler succeeded.
+         */
+        public boolean handle(MessageHandler handler, Message message, BooleanSupplier running) {
+            long pauseMillis = FIRST_RETRY_MILLIS;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    handler.handle(message);
+                    return true;
+                } catch (Exception e) {
+                    logger.error(String.format("Handler failed on partition %s offset %s, attempt %s: %s",
+                            message.getPartition(), message.getOffset(), attempt, e.toString()));
+                }
+                if (this == SKIP) {
+                    return true;
+                }
+                if (!running.getAsBoolean()) {
+                    return false;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(pauseMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                pauseMillis = Math.min(MAX_RETRY_MILLIS, pauseMillis * 2);
+            }
+        }
+    }
+}
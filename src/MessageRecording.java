@@ -0,0 +1,116 @@
+import com.oracle.bmc.streaming.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class writes fetched messages to a local file and plays them back into any MessageHandler, so aggregations and
+ * decoders can be run and compared offline over exactly the same input. One message per line, tab separated:
+ *   partition, offset, timestamp millis, base64 key, base64 value
+ * A missing key or value is written as "-". Recordings are appended to, so several runs can go into one file.
+ */
+public class MessageRecording {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private MessageRecording() {
+    }
+
+    public static Recorder recorder(Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        return new Recorder(Files.newBufferedWriter(file, UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+
+    /*
+     * Hands every message of the recording to the handler in file order and returns how many there were.
+     */
+    public static long replay(Path file, MessageHandler handler) throws Exception {
+        long replayed = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 5) {
+                    logger.warn(String.format("Skipping malformed line %s of %s.", replayed + 1, file));
+                    continue;
+                }
+                handler.handle(Message.builder()
+                        .partition(fields[0])
+                        .offset(Long.parseLong(fields[1]))
+                        .timestamp(new Date(Long.parseLong(fields[2])))
+                        .key(decode(fields[3]))
+                        .value(decode(fields[4]))
+                        .build());
+                replayed++;
+            }
+        }
+        logger.info(String.format("Replayed %s messages from %s.", replayed, file));
+        return replayed;
+    }
+
+    private static String encode(byte[] bytes) {
+        return bytes == null ? "-" : Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static byte[] decode(String field) {
+        return "-".equals(field) ? null : Base64.getDecoder().decode(field);
+    }
+
+    /*
+     * MessageHandler that appends every message it is given to the recording; safe to share between partitions.
+     * Writes are serialized with a ReentrantLock rather than a monitor, so handlers on virtual threads do not pin their
+     * carrier while the writer flushes to disk.
+     */
+    public static class Recorder implements MessageHandler, AutoCloseable {
+        private final BufferedWriter writer;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private Recorder(BufferedWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void handle(Message message) throws IOException {
+            String line = String.format("%s\t%s\t%s\t%s\t%s",
+                    message.getPartition(),
+                    message.getOffset(),
+                    message.getTimestamp() != null ? message.getTimestamp().getTime() : 0,
+                    encode(message.getKey()),
+                    encode(message.getValue()));
+            lock.lock();
+            try {
+                writer.write(line);
+                writer.newLine();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                writer.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import com.oracle.bmc.streaming.model.Message;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/*
+ * Class is a reusable flyweight over one fetched message, so handlers read keys and metrics straight from the bytes the
+ * SDK already holds instead of building Strings and trees for every message.
+ * Plain json values are read with JsonFieldExtractor; compressed or binary values are decoded through the
+ * TelemetryDecoder, once per message and only when a field is asked for. Key and value bytes are appended to an
+ * AsyncBatchedWriter line as they are, since both already are UTF-8. As a line writer the view appends "key: value";
+ * prepareLine decodes first, so handing the view to AsyncBatchedWriter.writeLine only copies bytes under its lock.
+ * A view belongs to one thread and is only valid until it wraps the next message; handler() keeps one per thread.
+ */
+public final class MessageView implements Consumer<AsyncBatchedWriter.LineBuffer> {
+
+    @FunctionalInterface
+    public interface Handler {
+        void handle(MessageView view) throws Exception;
+    }
+
+    private final TelemetryDecoder decoder;
+    private Message message;
+    private TelemetryRecord record;
+    private boolean decoded;
+    private String displayValue;
+
+    public MessageView(TelemetryDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    /*
+     * Adapts a view handler to the consumers, reusing one view per consumer thread.
+     */
+    public static MessageHandler handler(TelemetryDecoder decoder, Handler handler) {
+        ThreadLocal<MessageView> views = ThreadLocal.withInitial(() -> new MessageView(decoder));
+        return message -> handler.handle(views.get().wrap(message));
+    }
+
+    public MessageView wrap(Message message) {
+        this.message = message;
+        this.record = null;
+        this.decoded = false;
+        this.displayValue = null;
+        return this;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    // Read-only view of the key bytes, null when the message has no key.
+    public ByteBuffer key() {
+        return message.getKey() == null ? null : ByteBuffer.wrap(message.getKey()).asReadOnlyBuffer();
+    }
+
+    public ByteBuffer value() {
+        return message.getValue() == null ? null : ByteBuffer.wrap(message.getValue()).asReadOnlyBuffer();
+    }
+
+    public boolean isJson() {
+        byte[] value = message.getValue();
+        return value != null && value.length > 0 && value[0] == '{';
+    }
+
+    /*
+     * The metric's value, or NaN when the message does not carry it or cannot be decoded.
+     */
+    public double getDouble(JsonFieldExtractor.Field field) {
+        if (isJson()) {
+            byte[] value = message.getValue();
+            return JsonFieldExtractor.getDouble(value, 0, value.length, field);
+        }
+        TelemetryRecord decodedRecord = record();
+        Double value = decodedRecord == null ? null : decodedRecord.getDouble(field.toString());
+        return value == null ? Double.NaN : value;
+    }
+
+    public long getLong(JsonFieldExtractor.Field field, long defaultValue) {
+        if (isJson()) {
+            byte[] value = message.getValue();
+            return JsonFieldExtractor.getLong(value, 0, value.length, field, defaultValue);
+        }
+        TelemetryRecord decodedRecord = record();
+        Long value = decodedRecord == null ? null : decodedRecord.getLong(field.toString());
+        return value == null ? defaultValue : value;
+    }
+
+    public AsyncBatchedWriter.LineBuffer appendKey(AsyncBatchedWriter.LineBuffer line) {
+        return line.append(message.getKey());
+    }
+
+    /*
+     * Appends the value the way TelemetryDecoder.toDisplayString shows it; json is copied in byte for byte.
+     */
+    public AsyncBatchedWriter.LineBuffer appendValue(AsyncBatchedWriter.LineBuffer line) {
+        if (isJson()) {
+            return line.append(message.getValue());
+        }
+        prepareLine();
+        return line.append(displayValue);
+    }
+
+    /*
+     * Decodes a compressed or binary value for display now, on the calling thread, rather than while a line is written.
+     */
+    public MessageView prepareLine() {
+        if (displayValue == null && !isJson()) {
+            displayValue = decoder.toDisplayString(message.getKey(), message.getValue());
+        }
+        return this;
+    }
+
+    // Appends "key: value" to the line.
+    @Override
+    public void accept(AsyncBatchedWriter.LineBuffer line) {
+        appendValue(appendKey(line).append(": "));
+    }
+
+    private TelemetryRecord record() {
+        if (!decoded) {
+            record = message.getValue() == null ? null : decoder.decode(message.getKey(), message.getValue());
+            decoded = true;
+        }
+        return record;
+    }
+}
@@ -0,0 +1,85 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Class is a small timing harness for the benchmark mains in this project, so they run from the same classpath as
+ * the examples without a separate benchmark build. It warms the code up, then reports the average time per operation
+ * and, where the JVM can count it, the heap allocated per operation on the calling thread.
+ * Operations return a value that is folded into a sink so the JIT cannot remove the work.
+ */
+public class MicroBenchmark {
+
+    @FunctionalInterface
+    public interface Operation {
+        long run() throws Exception;
+    }
+
+    private static volatile long sink;
+
+    private final int warmupIterations;
+    private final int measuredIterations;
+
+    public MicroBenchmark(int warmupIterations, int measuredIterations) {
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+    }
+
+    public Result measure(String name, Operation operation) throws Exception {
+        long blackhole = 0;
+        for (int i = 0; i < warmupIterations; i++) {
+            blackhole += operation.run();
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < measuredIterations; i++) {
+            blackhole += operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        sink += blackhole;
+        double bytesPerOp = allocatedBefore < 0 ? Double.NaN : (allocatedAfter - allocatedBefore) / (double) measuredIterations;
+        return new Result(name, elapsed / (double) measuredIterations, bytesPerOp);
+    }
+
+    // Bytes allocated so far by this thread, or -1 when the JVM does not track it.
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean extended = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (extended.isThreadAllocatedMemorySupported() && extended.isThreadAllocatedMemoryEnabled()) {
+                return extended.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    public static class Result {
+        private final String name;
+        private final double nanosPerOp;
+        private final double bytesPerOp;
+
+        private Result(String name, double nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        public double getNanosPerOp() {
+            return nanosPerOp;
+        }
+
+        public double getBytesPerOp() {
+            return bytesPerOp;
+        }
+
+        public double getOpsPerSecond() {
+            return TimeUnit.SECONDS.toNanos(1) / nanosPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %12.1f ns/op %12.1f B/op", name, nanosPerOp, bytesPerOp);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class keeps the last processed offset per stream and partition in a local file so a restarted consumer can resume
+ * with an AfterOffset cursor instead of replaying the stream from TrimHorizon.
+ * The file is an append-only log of records, written through a memory mapping:
+ *   int payloadLength, int crc32(payload), payload = short streamIdLength, streamId, short partitionLength, partition, long offset
+ * A record torn by a crash fails its length or checksum and ends the log on the next open, so the store falls back to
+ * the previous checkpoint of that partition. When the mapping fills up the live entries are compacted into a new file
+ * that atomically replaces the old one. How often the mapping is forced to disk is set by the FsyncPolicy.
+ * Forcing is done under a ReentrantLock, not a monitor, so handlers on virtual threads do not pin their carrier
+ * while the disk syncs.
+ */
+public class OffsetCheckpointStore implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private static final int HEADER_BYTES = 8;
+    private static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    public enum FsyncPolicy {
+        // Force every checkpoint to disk before returning, slowest but nothing is lost on power failure.
+        ALWAYS,
+        // Force dirty checkpoints once per interval from a timer thread, also when no new checkpoints arrive; a power
+        // failure loses at most one interval of checkpoints.
+        PERIODIC,
+        // Leave it to the operating system; survives a JVM crash but not a power failure.
+        NEVER
+    }
+
+    private final Path file;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final Map<String, Long> offsets = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private FileChannel channel;
+    private MappedByteBuffer log;
+    private int capacity;
+    private boolean dirty = false;
+    private long lastForceNanos = System.nanoTime();
+    // Forces the mapping every interval under the PERIODIC policy, null otherwise.
+    private ScheduledExecutorService fsyncTimer;
+
+    private OffsetCheckpointStore(Path file, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, int capacity) {
+        this.file = file;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.capacity = capacity;
+    }
+
+    public static OffsetCheckpointStore open(Path file, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws IOException {
+        return open(file, fsyncPolicy, fsyncIntervalMillis, DEFAULT_CAPACITY);
+    }
+
+    public static OffsetCheckpointStore open(Path file, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, int capacity) throws IOException {
+        if (fsyncPolicy == FsyncPolicy.PERIODIC && fsyncIntervalMillis < 1) {
+            throw new IllegalArgumentException("The PERIODIC fsync policy needs a positive interval.");
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        OffsetCheckpointStore store = new OffsetCheckpointStore(file, fsyncPolicy, fsyncIntervalMillis, capacity);
+        store.map(file);
+        store.recover();
+        if (fsyncPolicy == FsyncPolicy.PERIODIC) {
+            store.fsyncTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "offset-checkpoint-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            store.fsyncTimer.scheduleAtFixedRate(store::forceIfDue, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return store;
+    }
+
+    public Long getOffset(String streamId, String partition) {
+        lock.lock();
+        try {
+            return offsets.get(key(streamId, partition));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Records the last processed offset of a partition. Unchanged offsets are not written again.
+     */
+    public void checkpoint(String streamId, String partition, long offset) {
+        lock.lock();
+        try {
+            String key = key(streamId, partition);
+            Long previous = offsets.get(key);
+            if (previous != null && previous == offset) {
+                return;
+            }
+            offsets.put(key, offset);
+            byte[] payload = encode(streamId, partition, offset);
+            if (log.remaining() < HEADER_BYTES + payload.length) {
+                compact();
+            } else {
+                append(log, payload);
+            }
+            dirty = true;
+            if (fsyncPolicy == FsyncPolicy.ALWAYS
+                    || (fsyncPolicy == FsyncPolicy.PERIODIC && System.nanoTime() - lastForceNanos >= fsyncIntervalNanos)) {
+                force();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write checkpoint to " + file, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void flush() {
+        lock.lock();
+        try {
+            if (dirty) {
+                force();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fsyncTimer != null) {
+            fsyncTimer.shutdown();
+        }
+        lock.lock();
+        try {
+            flush();
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Timer task of the PERIODIC policy.
+    private void forceIfDue() {
+        lock.lock();
+        try {
+            if (dirty && channel.isOpen()) {
+                force();
+            }
+        } catch (RuntimeException e) {
+            logger.error("Forcing checkpoints to disk failed: " + e.toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void force() {
+        log.force();
+        dirty = false;
+        lastForceNanos = System.nanoTime();
+    }
+
+    private void map(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        capacity = (int) Math.max(capacity, channel.size());
+        log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    // Replays the log up to the first missing or damaged record and wipes anything after it.
+    private void recover() {
+        int records = 0;
+        while (log.remaining() >= HEADER_BYTES) {
+            int start = log.position();
+            int length = log.getInt();
+            int crc = log.getInt();
+            if (length <= 0 || length > log.remaining()) {
+                log.position(start);
+                break;
+            }
+            byte[] payload = new byte[length];
+            log.get(payload);
+            if (crc != checksum(payload)) {
+                logger.warn(String.format("Damaged checkpoint record at byte %s of %s, ignoring the rest.", start, file));
+                log.position(start);
+                break;
+            }
+            decodeInto(payload);
+            records++;
+        }
+        int end = log.position();
+        while (log.hasRemaining()) {
+            log.put((byte) 0);
+        }
+        log.position(end);
+        logger.info(String.format("Loaded %s checkpoints from %s records in %s.", offsets.size(), records, file));
+    }
+
+    // Rewrites only the latest offset of every partition into a new file, then swaps it in.
+    private void compact() throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        Files.deleteIfExists(compacted);
+        int needed = 0;
+        Map<String, byte[]> payloads = new HashMap<>();
+        for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+            String[] parts = splitKey(entry.getKey());
+            byte[] payload = encode(parts[0], parts[1], entry.getValue());
+            payloads.put(entry.getKey(), payload);
+            needed += HEADER_BYTES + payload.length;
+        }
+        // Keep at least half the file free after compaction so it does not run again right away.
+        int newCapacity = capacity;
+        while (newCapacity < needed * 2) {
+            newCapacity *= 2;
+        }
+        try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = target.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+            for (byte[] payload : payloads.values()) {
+                append(buffer, payload);
+            }
+            buffer.force();
+        }
+        channel.close();
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        capacity = newCapacity;
+        map(file);
+        log.position(needed);
+        lastForceNanos = System.nanoTime();
+        logger.debug(String.format("Compacted %s to %s checkpoints, capacity %s bytes.", file, offsets.size(), capacity));
+    }
+
+    private static void append(MappedByteBuffer buffer, byte[] payload) {
+        // The length goes in last so a record is only valid once all of it is in place.
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.putInt(checksum(payload));
+        buffer.put(payload);
+        buffer.putInt(start, payload.length);
+    }
+
+    private static byte[] encode(String streamId, String partition, long offset) {
+        byte[] stream = streamId.getBytes(UTF_8);
+        byte[] part = partition.getBytes(UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + stream.length + 2 + part.length + 8);
+        payload.putShort((short) stream.length).put(stream);
+        payload.putShort((short) part.length).put(part);
+        payload.putLong(offset);
+        return payload.array();
+    }
+
+    private void decodeInto(byte[] bytes) {
+        ByteBuffer payload = ByteBuffer.wrap(bytes);
+        byte[] stream = new byte[payload.getShort()];
+        payload.get(stream);
+        byte[] part = new byte[payload.getShort()];
+        payload.get(part);
+        offsets.put(key(new String(stream, UTF_8), new String(part, UTF_8)), payload.getLong());
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    // Stream OCIDs never contain a newline, so it is a safe separator.
+    private static String key(String streamId, String partition) {
+        return streamId + "\n" + partition;
+    }
+
+    private static String[] splitKey(String key) {
+        int split = key.indexOf('\n');
+        return new String[] {key.substring(0, split), key.substring(split + 1)};
+    }
+}
@@ -0,0 +1,165 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+ * Class reads the numeric getters of the platform OperatingSystemMXBean without reflection on the hot path.
+ * At construction it looks at the com.sun.management interfaces the bean implements, keeps the zero-argument getters
+ * that return a number and answer without error, and binds each to a MethodHandle. sample() then fills a reusable
+ * Sample with primitive values, so taking a sample neither allocates nor boxes nor parses strings.
+ * Getters returning a floating point value (the cpu loads) go into the double columns, everything else into the long ones.
+ */
+public class OsMetricSampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private static final MethodType LONG_GETTER = MethodType.methodType(long.class);
+    private static final MethodType DOUBLE_GETTER = MethodType.methodType(double.class);
+
+    private final String[] longNames;
+    private final String[] doubleNames;
+    private final MethodHandle[] longGetters;
+    private final MethodHandle[] doubleGetters;
+
+    public OsMetricSampler() {
+        this(ManagementFactory.getOperatingSystemMXBean());
+    }
+
+    public OsMetricSampler(OperatingSystemMXBean operatingSystemMXBean) {
+        // Sorted by name so the column order is stable across runs and JVMs.
+        TreeMap<String, MethodHandle> longs = new TreeMap<>();
+        TreeMap<String, MethodHandle> doubles = new TreeMap<>();
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        for (Class<?> type : platformInterfaces(operatingSystemMXBean.getClass())) {
+            for (Method method : type.getMethods()) {
+                String name = method.getName();
+                Class<?> returnType = method.getReturnType();
+                if (!name.startsWith("get") || method.getParameterCount() != 0 || Modifier.isStatic(method.getModifiers())
+                        || !(returnType == long.class || returnType == int.class || returnType == double.class)
+                        || longs.containsKey(name) || doubles.containsKey(name)) {
+                    continue;
+                }
+                try {
+                    MethodHandle handle = lookup.unreflect(method).bindTo(operatingSystemMXBean);
+                    if (returnType == double.class) {
+                        MethodHandle getter = handle.asType(DOUBLE_GETTER);
+                        double probe = (double) getter.invokeExact();
+                        doubles.put(name, getter);
+                    } else {
+                        MethodHandle getter = handle.asType(LONG_GETTER);
+                        long probe = (long) getter.invokeExact();
+                        longs.put(name, getter);
+                    }
+                } catch (Throwable e) {
+                    logger.debug(String.format("Skipping %s, not supported here: %s", name, e.toString()));
+                }
+            }
+        }
+        this.longNames = longs.keySet().toArray(new String[0]);
+        this.longGetters = longs.values().toArray(new MethodHandle[0]);
+        this.doubleNames = doubles.keySet().toArray(new String[0]);
+        this.doubleGetters = doubles.values().toArray(new MethodHandle[0]);
+        logger.info(String.format("Sampling %s long and %s double metrics.", longNames.length, doubleNames.length));
+    }
+
+    // The platform specific extensions (com.sun.management), the same getters the bean implementation declares.
+    private static Set<Class<?>> platformInterfaces(Class<?> type) {
+        Set<Class<?>> interfaces = new LinkedHashSet<>();
+        List<Class<?>> pending = new ArrayList<>();
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            for (Class<?> candidate : current.getInterfaces()) {
+                pending.add(candidate);
+            }
+        }
+        while (!pending.isEmpty()) {
+            Class<?> candidate = pending.remove(pending.size() - 1);
+            if (Modifier.isPublic(candidate.getModifiers()) && candidate.getName().startsWith("com.sun.management.")) {
+                interfaces.add(candidate);
+            }
+            for (Class<?> parent : candidate.getInterfaces()) {
+                pending.add(parent);
+            }
+        }
+        return interfaces;
+    }
+
+    public Sample newSample() {
+        return new Sample(longNames, doubleNames);
+    }
+
+    /*
+     * Overwrites the values of the given sample with the current readings.
+     */
+    public void sample(Sample into) {
+        into.timestampMillis = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < longGetters.length; i++) {
+                into.longValues[i] = (long) longGetters[i].invokeExact();
+            }
+            for (int i = 0; i < doubleGetters.length; i++) {
+                into.doubleValues[i] = (double) doubleGetters[i].invokeExact();
+            }
+        } catch (Throwable e) {
+            // Every getter answered at startup, so this only happens if the platform bean itself breaks.
+            throw new IllegalStateException("Unable to read operating system metrics", e);
+        }
+    }
+
+    /*
+     * Reusable holder for one reading. The name arrays are shared with the sampler and must not be modified.
+     */
+    public static class Sample {
+        private final String[] longNames;
+        private final String[] doubleNames;
+        private final long[] longValues;
+        private final double[] doubleValues;
+        private long timestampMillis;
+
+        private Sample(String[] longNames, String[] doubleNames) {
+            this.longNames = longNames;
+            this.doubleNames = doubleNames;
+            this.longValues = new long[longNames.length];
+            this.doubleValues = new double[doubleNames.length];
+        }
+
+        public int longCount() {
+            return longValues.length;
+        }
+
+        public String longName(int index) {
+            return longNames[index];
+        }
+
+        public long longValue(int index) {
+            return longValues[index];
+        }
+
+        public int doubleCount() {
+            return doubleValues.length;
+        }
+
+        public String doubleName(int index) {
+            return doubleNames[index];
+        }
+
+        public double doubleValue(int index) {
+            return doubleValues[index];
+        }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+    }
+}
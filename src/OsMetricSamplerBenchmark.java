@@ -0,0 +1,52 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/*
+ * Benchmark compares one operating system sample taken the way getCPU.getOsValues used to (getDeclaredMethods,
+ * setAccessible, Method.invoke and parsing the boxed value's toString) with OsMetricSampler.
+ * Run with the same classpath as getCPU; results are printed as ns and heap bytes per sample.
+ * Since JDK 9 the bean implementation's methods can no longer be made accessible, so the reflective path looks the
+ * getters up on the public com.sun.management interface on every sample instead. Container aware JDKs read cgroup
+ * files inside several getters, which is a cost both paths share.
+ */
+public class OsMetricSamplerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        MicroBenchmark benchmark = new MicroBenchmark(iterations, iterations);
+        OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
+
+        OsMetricSampler sampler = new OsMetricSampler(operatingSystemMXBean);
+        OsMetricSampler.Sample sample = sampler.newSample();
+
+        System.out.println(benchmark.measure("reflective getOsValues", () -> reflectiveSample(operatingSystemMXBean)));
+        System.out.println(benchmark.measure("OsMetricSampler.sample", () -> {
+            sampler.sample(sample);
+            return sample.longCount() > 0 ? sample.longValue(0) : 0;
+        }));
+    }
+
+    // The former getOsValues loop, minus the json building, returning a checksum instead. It parses any Double rather
+    // than only the two cpu loads, otherwise newer getters such as getCpuLoad make Long.parseLong throw.
+    private static long reflectiveSample(OperatingSystemMXBean operatingSystemMXBean) {
+        long checksum = 0;
+        for (Method method : com.sun.management.OperatingSystemMXBean.class.getDeclaredMethods()) {
+            if (method.getName().startsWith("get") && Modifier.isPublic(method.getModifiers()) && method.getParameterCount() == 0) {
+                Object value;
+                try {
+                    value = method.invoke(operatingSystemMXBean);
+                } catch (Exception e) {
+                    continue;
+                }
+                if (value instanceof Double) {
+                    checksum += (long) Double.parseDouble(value.toString());
+                } else {
+                    checksum += Long.parseLong(value.toString());
+                }
+            }
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,50 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Class counts published messages and bytes per partition, using the partition the service reported for each entry.
+ * Skew is the busiest partition's byte count over the mean of all partitions that received anything: 1.0 is a perfectly
+ * even spread, and with keys such as host names a value well above 1 points at a few keys landing on the same partition.
+ */
+public class PartitionSkewStats {
+
+    private final Map<String, LongAdder> messages = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bytes = new ConcurrentHashMap<>();
+
+    public void record(String partition, int messageBytes) {
+        messages.computeIfAbsent(partition, p -> new LongAdder()).increment();
+        bytes.computeIfAbsent(partition, p -> new LongAdder()).add(messageBytes);
+    }
+
+    public Map<String, Long> getMessagesPerPartition() {
+        return snapshot(messages);
+    }
+
+    public Map<String, Long> getBytesPerPartition() {
+        return snapshot(bytes);
+    }
+
+    public double getByteSkew() {
+        long max = 0;
+        long total = 0;
+        for (LongAdder adder : bytes.values()) {
+            long value = adder.sum();
+            max = Math.max(max, value);
+            total += value;
+        }
+        return total == 0 ? 1.0 : max / (total / (double) bytes.size());
+    }
+
+    private static Map<String, Long> snapshot(Map<String, LongAdder> counters) {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((partition, adder) -> snapshot.put(partition, adder.sum()));
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("skew %.2f, messages %s, bytes %s", getByteSkew(), getMessagesPerPartition(), getBytesPerPartition());
+    }
+}
@@ -0,0 +1,548 @@
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.streaming.StreamClient;
+import com.oracle.bmc.streaming.model.CreateCursorDetails;
+import com.oracle.bmc.streaming.model.CreateCursorDetails.Type;
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.model.Stream;
+import com.oracle.bmc.streaming.requests.CreateCursorRequest;
+import com.oracle.bmc.streaming.requests.GetMessagesRequest;
+import com.oracle.bmc.streaming.responses.GetMessagesResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/*
+ * Class reads every partition of a stream in parallel. The partition count comes from Stream.getPartitions() and each
+ * partition gets its own fetch loop walking its own cursor chain through getOpcNextCursor(), paced by an
+ * AdaptivePollScheduler instead of a fixed limit and sleep.
+ * Fetching and processing are pipelined: fetched batches go into a bounded ring buffer per partition and are handed
+ * to the MessageHandler on a shared worker pool, so the next GetMessages call is already in flight while the previous
+ * batch is processed. At most one worker drains a partition at a time, which keeps messages in per-partition order,
+ * and a full ring blocks only the fetch loop of its own partition. PipelineStats shows where the time goes.
+ * With an OffsetCheckpointStore the last handled offset of each batch is checkpointed and a restart resumes right
+ * after it with an AfterOffset cursor; without a checkpoint the configured cursor type is used. A message the handler
+ * throws on is retried until it succeeds and never checkpointed past under the default RETRY failure policy, so
+ * delivery is at least once; SKIP logs it and moves on.
+ * GetMessages and CreateCursor calls are recorded in StreamMetrics, and after every handled batch the lag of its
+ * partition: the age of the batch's last message.
+ * With lagProbeIntervalMillis a ConsumerLagTracker estimates the backlog of every partition in messages and time, and
+ * with autoscaleWorkers the worker pool follows it: it grows to one worker per partition that is behind as soon as the
+ * backlog shows it, and shrinks one worker per probe once partitions catch up. Fetch loops stay one per partition, a
+ * partition is a single cursor chain, so the handler workers are what a backlog can use more of.
+ * The fetch loops run in a TaskScope on threads from the thread factory, so close cancels them all and they cannot
+ * outlive the consumer; with a ThreadMode.VIRTUAL factory each loop is a virtual thread that parks during GetMessages.
+ */
+public class PartitionedStreamConsumer implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private final StreamClient streamClient;
+    private final String streamId;
+    private final int partitions;
+    private final MessageHandler handler;
+    private final MessageHandler.FailurePolicy failurePolicy;
+    private final Type cursorType;
+    private final int minFetchLimit;
+    private final int maxFetchLimit;
+    private final long maxIdleMillis;
+    private final int bufferedBatches;
+    private final ThreadFactory threadFactory;
+    private final OffsetCheckpointStore checkpointStore;
+    private final StreamMetrics metrics;
+    private final StreamMetrics.OperationStats getStats;
+    private final StreamMetrics.OperationStats cursorStats;
+    private final ThreadPoolExecutor workers;
+    private final int minWorkerThreads;
+    private final int maxWorkerThreads;
+    private final boolean autoscale;
+    private final ConsumerLagTracker lagTracker;
+    private final List<PartitionReader> readers = new ArrayList<>();
+    private final TaskScope fetchScope;
+    private final CountDownLatch stopped;
+    private volatile boolean running = false;
+    private final BooleanSupplier isRunning = () -> running;
+
+    private PartitionedStreamConsumer(Builder builder) {
+        this.streamClient = builder.streamClient;
+        this.streamId = builder.stream.getId();
+        this.partitions = builder.stream.getPartitions();
+        this.handler = builder.handler;
+        this.failurePolicy = builder.failurePolicy;
+        this.cursorType = builder.cursorType;
+        this.minFetchLimit = builder.minFetchLimit;
+        this.maxFetchLimit = builder.maxFetchLimit;
+        this.maxIdleMillis = builder.maxIdleMillis;
+        this.bufferedBatches = builder.bufferedBatches;
+        this.threadFactory = builder.threadFactory;
+        this.checkpointStore = builder.checkpointStore;
+        this.metrics = builder.metrics;
+        this.getStats = metrics.operation(streamId, StreamMetrics.Operation.GET_MESSAGES);
+        this.cursorStats = metrics.operation(streamId, StreamMetrics.Operation.CREATE_CURSOR);
+        this.autoscale = builder.autoscale;
+        this.maxWorkerThreads = Math.min(autoscale ? builder.maxWorkerThreads : builder.workerThreads, partitions);
+        this.minWorkerThreads = autoscale ? Math.min(builder.minWorkerThreads, maxWorkerThreads) : maxWorkerThreads;
+        // Starts at the maximum, a consumer that was down has a backlog until the first probe says otherwise.
+        this.workers = new ThreadPoolExecutor(maxWorkerThreads, maxWorkerThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), builder.threadFactory);
+        if (builder.lagProbeIntervalMillis > 0) {
+            ConsumerLagTracker.Builder tracker = ConsumerLagTracker.builder()
+                    .streamClient(streamClient)
+                    .streamId(streamId)
+                    .partitions(partitions)
+                    .probeIntervalMillis(builder.lagProbeIntervalMillis)
+                    .metrics(metrics);
+            builder.backlogListeners.forEach(tracker::listener);
+            if (autoscale) {
+                tracker.listener(this::rescale);
+            }
+            this.lagTracker = tracker.build();
+        } else {
+            this.lagTracker = null;
+        }
+        this.stopped = new CountDownLatch(partitions);
+        this.fetchScope = new TaskScope(threadFactory);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /*
+     * Starts one fetch loop for every partition of the stream.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        logger.info(String.format("Consuming %s partitions of stream %s.", partitions, streamId));
+        for (int p = 0; p < partitions; p++) {
+            PartitionReader reader = new PartitionReader(String.valueOf(p));
+            readers.add(reader);
+            fetchScope.fork(reader::fetchLoop);
+        }
+        if (lagTracker != null) {
+            lagTracker.start();
+        }
+    }
+
+    /*
+     * Stops fetching, lets the handlers finish what was already queued and waits for all loops to exit. A partition
+     * whose handler still fails on a message under RETRY stops there, unhandled and not checkpointed from it on.
+     */
+    @Override
+    public void close() {
+        running = false;
+        fetchScope.shutdown();
+        awaitTermination();
+    }
+
+    /*
+     * Waits for all fetch loops to stop and for the workers to process every batch they had already fetched.
+     */
+    public void awaitTermination() {
+        Uninterruptibles.awaitUninterruptibly(stopped);
+        fetchScope.close();
+        if (lagTracker != null) {
+            lagTracker.close();
+        }
+        workers.shutdown();
+        boolean interrupted = false;
+        while (!workers.isTerminated()) {
+            try {
+                workers.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (checkpointStore != null) {
+            checkpointStore.flush();
+        }
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    // Current size of the worker pool.
+    public int getWorkerThreads() {
+        return workers.getCorePoolSize();
+    }
+
+    // Backlog as of the last lag probe, or null without lagProbeIntervalMillis.
+    public ConsumerLagTracker.Backlog getBacklog() {
+        return lagTracker == null ? null : lagTracker.getBacklog();
+    }
+
+    // Offset of the last message the handler finished for a partition, or null before the first one.
+    public Long getLastHandledOffset(String partition) {
+        for (PartitionReader reader : readers) {
+            if (reader.partition.equals(partition)) {
+                return reader.lastHandledOffset;
+            }
+        }
+        return null;
+    }
+
+    // Poll scheduler of a partition, its limit and interval show how far behind that partition is.
+    public AdaptivePollScheduler getPollScheduler(String partition) {
+        for (PartitionReader reader : readers) {
+            if (reader.partition.equals(partition)) {
+                return reader.scheduler;
+            }
+        }
+        return null;
+    }
+
+    // Fetch and processing time split of a partition.
+    public PipelineStats getPipelineStats(String partition) {
+        for (PartitionReader reader : readers) {
+            if (reader.partition.equals(partition)) {
+                return reader.stats;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Sizes the worker pool to the partitions that are behind. Growing takes effect at once, so a backlog after an
+     * outage gets all its workers on the first probe; shrinking goes one worker per probe so a short dip between
+     * bursts does not tear the pool down.
+     */
+    private synchronized void rescale(ConsumerLagTracker.Backlog backlog) {
+        int current = workers.getCorePoolSize();
+        int wanted = Math.max(minWorkerThreads, Math.min(maxWorkerThreads, backlog.getPartitionsBehind()));
+        int target = wanted > current ? wanted : Math.max(wanted, current - 1);
+        if (target == current || workers.isShutdown()) {
+            return;
+        }
+        // The maximum may never be below the core size, so the order depends on the direction.
+        if (target > current) {
+            workers.setMaximumPoolSize(target);
+            workers.setCorePoolSize(target);
+        } else {
+            workers.setCorePoolSize(target);
+            workers.setMaximumPoolSize(target);
+        }
+        logger.info(String.format("Resized the worker pool of stream %s from %s to %s, %s.", streamId, current, target, backlog));
+    }
+
+    // Starts after the last fetched message, else after the checkpoint, else from the configured cursor type.
+    private String openCursor(String partition, Long lastFetchedOffset) {
+        if (lastFetchedOffset != null) {
+            return createCursor(partition, lastFetchedOffset);
+        }
+        Long checkpoint = checkpointStore == null ? null : checkpointStore.getOffset(streamId, partition);
+        if (checkpoint != null) {
+            try {
+                logger.info(String.format("Resuming partition %s after checkpointed offset %s.", partition, checkpoint));
+                return createCursor(partition, checkpoint);
+            } catch (BmcException e) {
+                // The checkpoint may point at data the stream no longer retains.
+                logger.warn(String.format("Cannot resume partition %s at offset %s: %s", partition, checkpoint, e.toString()));
+            }
+        }
+        return createCursor(partition, null);
+    }
+
+    private String createCursor(String partition, Long afterOffset) {
+        CreateCursorDetails.Builder cursorDetails = CreateCursorDetails.builder().partition(partition);
+        if (afterOffset != null) {
+            cursorDetails.type(Type.AfterOffset).offset(afterOffset);
+        } else {
+            cursorDetails.type(cursorType);
+        }
+        CreateCursorRequest createCursorRequest = CreateCursorRequest.builder()
+                .streamId(streamId)
+                .createCursorDetails(cursorDetails.build())
+                .build();
+        long start = System.nanoTime();
+        try {
+            String cursor = streamClient.createCursor(createCursorRequest).getCursor().getValue();
+            cursorStats.recordSuccess(System.nanoTime() - start, 0);
+            return cursor;
+        } catch (RuntimeException e) {
+            cursorStats.recordFailure(System.nanoTime() - start, e);
+            throw e;
+        }
+    }
+
+    private class PartitionReader {
+        private final String partition;
+        // ArrayBlockingQueue is an array ring buffer; each slot holds one fetched batch.
+        private final BlockingQueue<List<Message>> ring = new ArrayBlockingQueue<>(bufferedBatches);
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private final AdaptivePollScheduler scheduler = new AdaptivePollScheduler(minFetchLimit, maxFetchLimit, maxIdleMillis);
+        private final PipelineStats stats = new PipelineStats();
+        private final StreamMetrics.PartitionLag lag;
+        private final int index;
+        private volatile Long lastFetchedOffset;
+        private volatile Long lastHandledOffset;
+        // Set when the consumer closed while the handler still failed; nothing after that message is handled any more.
+        private volatile boolean abandoned = false;
+        private volatile long idleSince = System.nanoTime();
+
+        private PartitionReader(String partition) {
+            this.partition = partition;
+            this.index = Integer.parseInt(partition);
+            this.lag = metrics.partition(streamId, partition);
+            scheduler.reportTo(metrics.poll(streamId, partition));
+        }
+
+        private void fetchLoop() {
+            Thread.currentThread().setName("fetch-" + streamId + "-" + partition);
+            String cursor = null;
+            try {
+                while (running) {
+                    scheduler.awaitNextPoll();
+                    try {
+                        if (cursor == null) {
+                            // Resume right after the last fetched message when a cursor has to be recreated.
+                            cursor = openCursor(partition, lastFetchedOffset);
+                        }
+                        long fetchStart = System.nanoTime();
+                        GetMessagesResponse getResponse;
+                        try {
+                            getResponse = streamClient.getMessages(GetMessagesRequest.builder()
+                                    .streamId(streamId)
+                                    .cursor(cursor)
+                                    .limit(scheduler.getLimit())
+                                    .build());
+                        } catch (BmcException e) {
+                            getStats.recordFailure(System.nanoTime() - fetchStart, e);
+                            throw e;
+                        }
+                        List<Message> batch = getResponse.getItems();
+                        long fetchNanos = System.nanoTime() - fetchStart;
+                        stats.recordFetch(fetchNanos, batch.size());
+                        getStats.recordSuccess(fetchNanos, batch.size());
+                        if (lagTracker != null) {
+                            lagTracker.onFetched(index, scheduler.getLimit(), batch.size(),
+                                    batch.isEmpty() ? -1 : batch.get(batch.size() - 1).getOffset());
+                        }
+                        if (batch.isEmpty() && ring.isEmpty()) {
+                            lag.caughtUp();
+                        } else if (!batch.isEmpty()) {
+                            long putStart = System.nanoTime();
+                            ring.put(batch);
+                            stats.recordFetchBlocked(System.nanoTime() - putStart);
+                            lastFetchedOffset = batch.get(batch.size() - 1).getOffset();
+                            scheduleDrain();
+                        }
+                        cursor = getResponse.getOpcNextCursor();
+                        scheduler.onMessages(batch.size());
+                    } catch (BmcException e) {
+                        if (e.getStatusCode() == 429) {
+                            logger.warn(String.format("Throttled reading partition %s, %s.", partition, scheduler));
+                            scheduler.onThrottled();
+                            continue;
+                        }
+                        logger.error(String.format("Error reading partition %s: %s", partition, e.toString()));
+                        // Cursors expire after a few minutes of inactivity; a bad request means start a new chain.
+                        if (e.getStatusCode() == 400 || e.getStatusCode() == 404) {
+                            cursor = null;
+                        }
+                        scheduler.onMessages(0);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // close() cancels the fetch scope, which interrupts the loop to stop it.
+            } catch (Exception e) {
+                logger.error(String.format("Fetch loop for partition %s stopped: %s", partition, e.toString()));
+            } finally {
+                stopped.countDown();
+            }
+        }
+
+        // Hands the partition to a worker unless one is already draining it.
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            stats.recordProcessIdle(System.nanoTime() - idleSince);
+            try {
+                List<Message> batch;
+                while (!abandoned && (batch = ring.poll()) != null) {
+                    long processStart = System.nanoTime();
+                    Message last = null;
+                    for (Message message : batch) {
+                        if (!failurePolicy.handle(handler, message, isRunning)) {
+                            // The checkpoint stays before this message, so a restart delivers it again.
+                            logger.warn(String.format("Closing with partition %s unhandled from offset %s.", partition, message.getOffset()));
+                            abandoned = true;
+                            ring.clear();
+                            break;
+                        }
+                        last = message;
+                        lastHandledOffset = message.getOffset();
+                    }
+                    stats.recordProcess(System.nanoTime() - processStart);
+                    if (last == null) {
+                        continue;
+                    }
+                    lag.record(last.getOffset(), last.getTimestamp());
+                    if (lagTracker != null) {
+                        lagTracker.onHandled(index, last.getOffset(), last.getTimestamp());
+                    }
+                    if (checkpointStore != null) {
+                        checkpointStore.checkpoint(streamId, partition, lastHandledOffset);
+                    }
+                }
+            } finally {
+                idleSince = System.nanoTime();
+                draining.set(false);
+            }
+            // A batch may have landed after the last poll but before the flag was cleared.
+            if (!abandoned && !ring.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    public static class Builder {
+        private StreamClient streamClient;
+        private Stream stream;
+        private MessageHandler handler;
+        private MessageHandler.FailurePolicy failurePolicy = MessageHandler.FailurePolicy.RETRY;
+        private Type cursorType = Type.TrimHorizon;
+        private int minFetchLimit = 100;
+        private int maxFetchLimit = AdaptivePollScheduler.SERVICE_MAX_LIMIT;
+        private long maxIdleMillis = 1000;
+        private int bufferedBatches = 4;
+        private int workerThreads = Runtime.getRuntime().availableProcessors();
+        private ThreadFactory threadFactory = Thread::new;
+        private OffsetCheckpointStore checkpointStore;
+        private StreamMetrics metrics = StreamMetrics.shared();
+        private long lagProbeIntervalMillis = 0;
+        private boolean autoscale = false;
+        private int minWorkerThreads;
+        private int maxWorkerThreads;
+        private final List<Consumer<ConsumerLagTracker.Backlog>> backlogListeners = new ArrayList<>();
+
+        public Builder streamClient(StreamClient streamClient) {
+            this.streamClient = streamClient;
+            return this;
+        }
+
+        // The stream as returned by GetStream, it provides the id and the partition count.
+        public Builder stream(Stream stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        public Builder handler(MessageHandler handler) {
+            this.handler = handler;
+            return this;
+        }
+
+        // What happens to a message the handler throws on; RETRY, the default, keeps delivery at least once.
+        public Builder failurePolicy(MessageHandler.FailurePolicy failurePolicy) {
+            this.failurePolicy = failurePolicy;
+            return this;
+        }
+
+        public Builder cursorType(Type cursorType) {
+            this.cursorType = cursorType;
+            return this;
+        }
+
+        // Range the GetMessages limit adapts within.
+        public Builder fetchLimit(int minFetchLimit, int maxFetchLimit) {
+            this.minFetchLimit = minFetchLimit;
+            this.maxFetchLimit = maxFetchLimit;
+            return this;
+        }
+
+        // Longest pause between polls of a partition with nothing to read.
+        public Builder maxIdleMillis(long maxIdleMillis) {
+            this.maxIdleMillis = maxIdleMillis;
+            return this;
+        }
+
+        // Fetched batches a partition may hold ahead of its handler before the fetch loop blocks.
+        public Builder bufferedBatches(int bufferedBatches) {
+            this.bufferedBatches = bufferedBatches;
+            return this;
+        }
+
+        // Size of the worker pool shared by all partitions, capped at the partition count.
+        public Builder workerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        // Threads of the fetch loops and the worker pool; ThreadMode.VIRTUAL.factory runs the fetch loops on virtual threads.
+        public Builder threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        // Where handled offsets are checkpointed and read back on start.
+        public Builder checkpointStore(OffsetCheckpointStore checkpointStore) {
+            this.checkpointStore = checkpointStore;
+            return this;
+        }
+
+        // Where GetMessages, CreateCursor, partition lag and poll state are recorded; the shared metrics by default.
+        public Builder metrics(StreamMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        // How often a ConsumerLagTracker probes the backlog of the partitions; 0, the default, disables it.
+        public Builder lagProbeIntervalMillis(long lagProbeIntervalMillis) {
+            this.lagProbeIntervalMillis = lagProbeIntervalMillis;
+            return this;
+        }
+
+        // Sizes the worker pool to the partitions that are behind, within the range; replaces workerThreads.
+        public Builder autoscaleWorkers(int minWorkerThreads, int maxWorkerThreads) {
+            this.autoscale = true;
+            this.minWorkerThreads = minWorkerThreads;
+            this.maxWorkerThreads = maxWorkerThreads;
+            return this;
+        }
+
+        // Called with every backlog the lag tracker publishes.
+        public Builder backlogListener(Consumer<ConsumerLagTracker.Backlog> listener) {
+            this.backlogListeners.add(listener);
+            return this;
+        }
+
+        public PartitionedStreamConsumer build() {
+            if (streamClient == null || stream == null || handler == null || failurePolicy == null || metrics == null) {
+                throw new IllegalArgumentException("A stream client, stream, handler, failure policy and metrics are required.");
+            }
+            if (stream.getPartitions() == null || stream.getPartitions() < 1) {
+                throw new IllegalArgumentException("Stream " + stream.getId() + " reports no partitions.");
+            }
+            if (lagProbeIntervalMillis < 0 || (lagProbeIntervalMillis == 0 && (autoscale || !backlogListeners.isEmpty()))) {
+                throw new IllegalArgumentException("Autoscaling and backlog listeners need a positive lag probe interval.");
+            }
+            if (autoscale && (minWorkerThreads < 1 || maxWorkerThreads < minWorkerThreads)) {
+                throw new IllegalArgumentException("Worker threads must be between 1 and a maximum at least as large.");
+            }
+            return new PartitionedStreamConsumer(this);
+        }
+    }
+}
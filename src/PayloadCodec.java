@@ -0,0 +1,22 @@
+import java.io.IOException;
+
+/*
+ * Interface for the compression codecs of message values. A compressed value is the codec's header byte followed by
+ * the compressed bytes, so consumers can tell codecs apart, and from uncompressed values, by the first byte alone.
+ * Headers live in the 0xC0 to 0xCF range, which is neither a json '{' nor the binary telemetry magic.
+ * Implementations must be thread safe; producers compress on the threads calling send.
+ */
+public interface PayloadCodec {
+
+    // Header byte of values that are stored uncompressed but would otherwise look like a compressed value.
+    byte STORED_HEADER = (byte) 0xC0;
+
+    byte getHeader();
+
+    // Short name used on command lines and in log output.
+    String getName();
+
+    byte[] compress(byte[] value) throws IOException;
+
+    byte[] decompress(byte[] data, int offset, int length) throws IOException;
+}
@@ -0,0 +1,237 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Class compresses message values on the producer side and restores them on the consumer side.
+ * With a single codec every value goes through that codec, which is how a stream is given a fixed codec. Adaptive
+ * compressors instead try every codec on one value out of trialEvery, keep a moving average of each codec's
+ * compression ratio and cpu time per input byte, and use the cheapest codec until the next trial. Cost is counted in
+ * bytes: a codec's cost is its output size plus its cpu time divided by nanosPerSavedByte, leaving a value
+ * uncompressed costs its size. Values a codec would not shrink are sent uncompressed.
+ * The first trials run cold, before the JIT compiled the codecs and while their native state is set up, and would make
+ * compression look far too expensive: their timings are discarded, and until MIN_TIMED_TRIALS warm timings exist the
+ * first codec is used. To get there quickly the first STARTUP_TRIALS values are all trials. Each trial times a second
+ * run of every codec, as a codec in use runs with its state in the cpu caches.
+ * Consumers build a compressor with the same codecs and call decompress on every value; values without a codec
+ * header pass through, so compressed and uncompressed producers can share a stream. Values written without a
+ * compressor must not start with a byte between 0xC0 and 0xCF, which no telemetry format does.
+ */
+public class PayloadCompressor {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    // Weight of the latest trial in the moving averages.
+    private static final double TRIAL_WEIGHT = 0.2;
+    // Trials whose cpu times are discarded, and warm trials needed before the cost decides the codec.
+    private static final int WARMUP_TRIALS = 2;
+    private static final int MIN_TIMED_TRIALS = 3;
+    // Values at the start that are all trials, before the trialEvery interval applies.
+    private static final int STARTUP_TRIALS = WARMUP_TRIALS + MIN_TIMED_TRIALS;
+
+    private final List<PayloadCodec> codecs;
+    private final PayloadCodec[] codecsByHeader = new PayloadCodec[16];
+    private final boolean adaptive;
+    private final int trialEvery;
+    private final double nanosPerSavedByte;
+    private final AtomicLong messages = new AtomicLong();
+    // Moving averages per codec, guarded by this.
+    private final double[] ratios;
+    private final double[] nanosPerByte;
+    private int trials = 0;
+    private int timedTrials = 0;
+    private volatile PayloadCodec selected;
+
+    private PayloadCompressor(Builder builder) {
+        this.codecs = new ArrayList<>(builder.codecs);
+        for (PayloadCodec codec : codecs) {
+            codecsByHeader[codec.getHeader() & 0x0F] = codec;
+        }
+        this.adaptive = builder.adaptive;
+        this.trialEvery = builder.trialEvery;
+        this.nanosPerSavedByte = builder.nanosPerSavedByte;
+        this.ratios = new double[codecs.size()];
+        this.nanosPerByte = new double[codecs.size()];
+        this.selected = codecs.isEmpty() ? null : codecs.get(0);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /*
+     * Compressor for every codec getCPU can use, adaptive between them. Consumers can use it for decompress as is.
+     */
+    public static PayloadCompressor telemetryCompressor() {
+        return builder().codec(new DeflatePayloadCodec()).codec(new GzipPayloadCodec()).adaptive(true).build();
+    }
+
+    /*
+     * Returns the value to send: the header byte of the chosen codec followed by the compressed bytes, or the value
+     * itself when it is not worth compressing.
+     */
+    public byte[] compress(byte[] value) {
+        byte[] compressed;
+        long message = messages.getAndIncrement();
+        if (adaptive && (message < STARTUP_TRIALS || message % trialEvery == 0)) {
+            compressed = trial(value);
+        } else {
+            compressed = compress(selected, value);
+        }
+        if (compressed != null && compressed.length < value.length) {
+            return compressed;
+        }
+        if (value.length > 0 && (value[0] & 0xF0) == (PayloadCodec.STORED_HEADER & 0xF0)) {
+            byte[] stored = new byte[value.length + 1];
+            stored[0] = PayloadCodec.STORED_HEADER;
+            System.arraycopy(value, 0, stored, 1, value.length);
+            return stored;
+        }
+        return value;
+    }
+
+    /*
+     * Returns the original value of anything compress produced; values without a codec header are returned as they are.
+     */
+    public byte[] decompress(byte[] value) throws IOException {
+        if (value == null || value.length == 0 || (value[0] & 0xF0) != (PayloadCodec.STORED_HEADER & 0xF0)) {
+            return value;
+        }
+        if (value[0] == PayloadCodec.STORED_HEADER) {
+            return Arrays.copyOfRange(value, 1, value.length);
+        }
+        PayloadCodec codec = codecsByHeader[value[0] & 0x0F];
+        if (codec == null) {
+            throw new IOException(String.format("No codec registered for header 0x%02X.", value[0] & 0xFF));
+        }
+        return codec.decompress(value, 1, value.length - 1);
+    }
+
+    public String getSelectedCodecName() {
+        PayloadCodec codec = selected;
+        return codec == null ? "none" : codec.getName();
+    }
+
+    private byte[] compress(PayloadCodec codec, byte[] value) {
+        if (codec == null) {
+            return null;
+        }
+        try {
+            return codec.compress(value);
+        } catch (IOException e) {
+            logger.warn(String.format("Codec %s failed, sending the value uncompressed: %s", codec.getName(), e.toString()));
+            return null;
+        }
+    }
+
+    // Compresses the value with every codec, updates the averages and switches codec if another one is now cheaper.
+    private synchronized byte[] trial(byte[] value) {
+        if (value.length == 0) {
+            return null;
+        }
+        boolean timed = trials >= WARMUP_TRIALS;
+        byte[][] results = new byte[codecs.size()][];
+        for (int i = 0; i < codecs.size(); i++) {
+            results[i] = compress(codecs.get(i), value);
+            // Timed on a second run: the first one of a trial finds the codec's native state out of the cpu caches,
+            // which a codec compressing every value does not, and costs several times as much.
+            long start = System.nanoTime();
+            compress(codecs.get(i), value);
+            double elapsedPerByte = (System.nanoTime() - start) / (double) value.length;
+            double ratio = results[i] == null ? 1.0 : results[i].length / (double) value.length;
+            ratios[i] = trials > 0 ? ratios[i] + TRIAL_WEIGHT * (ratio - ratios[i]) : ratio;
+            if (timed) {
+                nanosPerByte[i] = timedTrials > 0 ? nanosPerByte[i] + TRIAL_WEIGHT * (elapsedPerByte - nanosPerByte[i]) : elapsedPerByte;
+            }
+        }
+        trials++;
+        if (timed) {
+            timedTrials++;
+        }
+        if (timedTrials < MIN_TIMED_TRIALS) {
+            // Too few warm timings to weigh cpu against size yet, stay with the first codec.
+            return results.length == 0 ? null : results[0];
+        }
+
+        PayloadCodec best = null;
+        byte[] bestResult = null;
+        double bestCost = 1.0;
+        for (int i = 0; i < codecs.size(); i++) {
+            double cost = ratios[i] + nanosPerByte[i] / nanosPerSavedByte;
+            if (cost < bestCost) {
+                best = codecs.get(i);
+                bestResult = results[i];
+                bestCost = cost;
+            }
+        }
+        if (best != selected) {
+            logger.info(String.format("Switching payload codec from %s to %s, %s.",
+                    getSelectedCodecName(), best == null ? "none" : best.getName(), this));
+            selected = best;
+        }
+        return bestResult;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder("codec ").append(getSelectedCodecName());
+        for (int i = 0; i < codecs.size() && timedTrials > 0; i++) {
+            text.append(String.format(", %s ratio %.2f at %.1f ns/byte", codecs.get(i).getName(), ratios[i], nanosPerByte[i]));
+        }
+        return text.toString();
+    }
+
+    public static class Builder {
+        private final List<PayloadCodec> codecs = new ArrayList<>();
+        private boolean adaptive = false;
+        private int trialEvery = 100;
+        private double nanosPerSavedByte = 100;
+
+        // Adds a codec; a compressor that is not adaptive always uses the first one.
+        public Builder codec(PayloadCodec codec) {
+            this.codecs.add(codec);
+            return this;
+        }
+
+        public Builder adaptive(boolean adaptive) {
+            this.adaptive = adaptive;
+            return this;
+        }
+
+        // Number of values between two trials of all codecs.
+        public Builder trialEvery(int trialEvery) {
+            this.trialEvery = trialEvery;
+            return this;
+        }
+
+        // Cpu time worth spending to send one byte less; higher values favour stronger compression.
+        public Builder nanosPerSavedByte(double nanosPerSavedByte) {
+            this.nanosPerSavedByte = nanosPerSavedByte;
+            return this;
+        }
+
+        public PayloadCompressor build() {
+            if (trialEvery < 1 || nanosPerSavedByte <= 0) {
+                throw new IllegalArgumentException("Trial interval and cpu weight must be positive.");
+            }
+            for (int i = 0; i < codecs.size(); i++) {
+                if ((codecs.get(i).getHeader() & 0xF0) != (PayloadCodec.STORED_HEADER & 0xF0)
+                        || codecs.get(i).getHeader() == PayloadCodec.STORED_HEADER) {
+                    throw new IllegalArgumentException("Codec " + codecs.get(i).getName() + " has a header outside 0xC1 to 0xCF.");
+                }
+                for (int j = 0; j < i; j++) {
+                    if (codecs.get(i).getHeader() == codecs.get(j).getHeader()) {
+                        throw new IllegalArgumentException("Codecs " + codecs.get(j).getName() + " and " + codecs.get(i).getName() + " share a header.");
+                    }
+                }
+            }
+            return new PayloadCompressor(this);
+        }
+    }
+}
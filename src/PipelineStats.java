@@ -0,0 +1,69 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Class tracks where a consumer pipeline spends its time, split between the fetch stage and the processing stage.
+ * - fetch: time inside GetMessages calls.
+ * - fetch blocked: time the fetcher waited for room in a full ring buffer, which means processing is the bottleneck.
+ * - process: time the handler spent on messages.
+ * - process idle: time a worker found no batch waiting, which means fetching is the bottleneck.
+ */
+public class PipelineStats {
+
+    private final LongAdder fetchNanos = new LongAdder();
+    private final LongAdder fetchBlockedNanos = new LongAdder();
+    private final LongAdder processNanos = new LongAdder();
+    private final LongAdder processIdleNanos = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+
+    public void recordFetch(long nanos, int messageCount) {
+        fetchNanos.add(nanos);
+        if (messageCount > 0) {
+            batches.increment();
+            messages.add(messageCount);
+        }
+    }
+
+    public void recordFetchBlocked(long nanos) {
+        fetchBlockedNanos.add(nanos);
+    }
+
+    public void recordProcess(long nanos) {
+        processNanos.add(nanos);
+    }
+
+    public void recordProcessIdle(long nanos) {
+        processIdleNanos.add(nanos);
+    }
+
+    public long getFetchMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(fetchNanos.sum());
+    }
+
+    public long getFetchBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(fetchBlockedNanos.sum());
+    }
+
+    public long getProcessMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(processNanos.sum());
+    }
+
+    public long getProcessIdleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(processIdleNanos.sum());
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("messages=%s, batches=%s, fetchMillis=%s, fetchBlockedMillis=%s, processMillis=%s, processIdleMillis=%s",
+                getMessages(), getBatches(), getFetchMillis(), getFetchBlockedMillis(), getProcessMillis(), getProcessIdleMillis());
+    }
+}
@@ -0,0 +1,63 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.net.InetSocketAddress;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class serves StreamMetrics at /metrics in the Prometheus text format, from a single daemon thread. The text is built
+ * per scrape, so scrapes cost the reader some allocation while recording stays allocation free.
+ */
+public class PrometheusEndpoint implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private final HttpServer server;
+    private final StreamMetrics metrics;
+
+    private PrometheusEndpoint(HttpServer server, StreamMetrics metrics) {
+        this.server = server;
+        this.metrics = metrics;
+    }
+
+    /*
+     * Listens on the port on all interfaces; 0 picks a free port.
+     */
+    public static PrometheusEndpoint start(int port, StreamMetrics metrics) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        PrometheusEndpoint endpoint = new PrometheusEndpoint(server, metrics);
+        server.createContext("/metrics", endpoint::scrape);
+        server.setExecutor(null);
+        server.start();
+        logger.info(String.format("Serving metrics on http://localhost:%s/metrics", endpoint.getPort()));
+        return endpoint;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void scrape(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = metrics.toPrometheusText().getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.streaming.StreamClient;
+import com.oracle.bmc.streaming.model.PutMessagesDetails;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+import com.oracle.bmc.streaming.requests.PutMessagesRequest;
+import com.oracle.bmc.streaming.responses.PutMessagesResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Class decides which PutMessages entries get another attempt and when.
+ * Only entries the service rejected with a transient error (Throttled, InternalServerError) are retried, or the whole
+ * request when the call itself failed with a throttling or server status. Waits use exponential backoff with full
+ * jitter, and a shared retry budget stops a struggling stream from being flooded with retries: every success earns
+ * back a fraction of a retry token and every retry spends a whole one.
+ * Failed entries are resubmitted in their original order and ahead of newer messages, so messages with the same key
+ * keep their relative order across retries. Entries with that key which already succeeded later in the same
+ * request cannot be pulled back, callers needing strict order should not batch one key past a failure.
+ * Calls made by putMessages are recorded in the StreamMetrics PutMessages stats of their stream.
+ */
+public class PutMessagesRetrier {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double budgetPerSuccess;
+    private final double maxBudget;
+    private final StreamMetrics metrics;
+    private double budget;
+
+    private final AtomicLong retried = new AtomicLong();
+    // Retryable failures that ran out of attempts or budget; failures that are never retried count as rejected.
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+
+    private PutMessagesRetrier(Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.baseBackoffMillis = builder.baseBackoffMillis;
+        this.maxBackoffMillis = builder.maxBackoffMillis;
+        this.budgetPerSuccess = builder.budgetPerSuccess;
+        this.maxBudget = builder.maxBudget;
+        this.budget = builder.maxBudget;
+        this.metrics = builder.metrics;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /*
+     * Publishes the messages, resubmitting only the failed entries until they succeed or run out of attempts.
+     * The returned result entries line up with the messages passed in; entries that never made it keep their last error.
+     */
+    public List<PutMessagesResultEntry> putMessages(StreamClient streamClient, String streamId, List<PutMessagesDetailsEntry> messages) {
+        PutMessagesResultEntry[] results = new PutMessagesResultEntry[messages.size()];
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            pending.add(i);
+        }
+        int attempt = 0;
+        StreamMetrics.OperationStats putStats = metrics.operation(streamId, StreamMetrics.Operation.PUT_MESSAGES);
+        while (!pending.isEmpty()) {
+            attempt++;
+            List<PutMessagesDetailsEntry> batch = new ArrayList<>(pending.size());
+            for (int index : pending) {
+                batch.add(messages.get(index));
+            }
+            PutMessagesRequest putRequest = PutMessagesRequest.builder()
+                    .streamId(streamId)
+                    .putMessagesDetails(PutMessagesDetails.builder().messages(batch).build())
+                    .build();
+
+            List<Integer> failed = new ArrayList<>();
+            long start = System.nanoTime();
+            try {
+                PutMessagesResponse putResponse = streamClient.putMessages(putRequest);
+                putStats.recordSuccess(System.nanoTime() - start, batch.size());
+                List<PutMessagesResultEntry> entries = putResponse.getPutMessagesResult().getEntries();
+                for (int i = 0; i < pending.size(); i++) {
+                    PutMessagesResultEntry entry = entries.get(i);
+                    results[pending.get(i)] = entry;
+                    if (StringUtils.isBlank(entry.getError())) {
+                        recordSuccess();
+                        continue;
+                    }
+                    putStats.recordEntryFailure(entry.getError());
+                    if (shouldRetry(entry.getError(), attempt)) {
+                        failed.add(pending.get(i));
+                    }
+                }
+            } catch (RuntimeException e) {
+                putStats.recordFailure(System.nanoTime() - start, e);
+                // The budget can run out partway, so every entry not retried gets its error here and none stays null.
+                PutMessagesResultEntry requestFailed = PutMessagesResultEntry.builder()
+                        .error("RequestFailed").errorMessage(e.toString()).build();
+                for (int index : pending) {
+                    if (shouldRetry(e, attempt)) {
+                        failed.add(index);
+                    } else {
+                        results[index] = requestFailed;
+                    }
+                }
+                if (failed.isEmpty() && attempt == 1) {
+                    // Nothing was published at all, so let the caller see the exception itself.
+                    throw e;
+                }
+            }
+
+            if (!failed.isEmpty()) {
+                logger.warn(String.format("Retrying %s of %s messages to stream %s, attempt %s.",
+                        failed.size(), pending.size(), streamId, attempt + 1));
+                Uninterruptibles.sleepUninterruptibly(backoffNanos(attempt), TimeUnit.NANOSECONDS);
+            }
+            pending = failed;
+        }
+        return Arrays.asList(results);
+    }
+
+    /*
+     * Decides whether an entry rejected with the given error gets another attempt after the given number of attempts.
+     */
+    public boolean shouldRetry(String error, int attempts) {
+        return decide(isRetryable(error), attempts);
+    }
+
+    /*
+     * Decides whether an entry of a request that failed as a whole gets another attempt.
+     */
+    public boolean shouldRetry(Exception e, int attempts) {
+        return decide(isRetryable(e), attempts);
+    }
+
+    public void recordSuccess() {
+        succeeded.incrementAndGet();
+        synchronized (this) {
+            budget = Math.min(maxBudget, budget + budgetPerSuccess);
+        }
+    }
+
+    // Full jitter: a random wait between zero and the capped exponential delay for this attempt.
+    public long backoffNanos(int attempts) {
+        long ceiling = baseBackoffMillis << Math.min(attempts - 1, 20);
+        long capped = Math.min(maxBackoffMillis, ceiling);
+        return TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(capped + 1));
+    }
+
+    public static boolean isRetryable(String error) {
+        return "Throttled".equalsIgnoreCase(error) || "InternalServerError".equalsIgnoreCase(error);
+    }
+
+    public static boolean isRetryable(Exception e) {
+        if (e instanceof BmcException) {
+            BmcException bmcException = (BmcException) e;
+            int status = bmcException.getStatusCode();
+            return status == 429 || status >= 500 || status == -1 || bmcException.isTimeout();
+        }
+        return false;
+    }
+
+    private boolean decide(boolean retryable, int attempts) {
+        if (retryable && attempts < maxAttempts && tryAcquireBudget()) {
+            retried.incrementAndGet();
+            return true;
+        }
+        if (retryable) {
+            exhausted.incrementAndGet();
+        } else {
+            rejected.incrementAndGet();
+        }
+        return false;
+    }
+
+    private synchronized boolean tryAcquireBudget() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("succeeded=%s, retried=%s, exhausted=%s, rejected=%s",
+                getSucceeded(), getRetried(), getExhausted(), getRejected());
+    }
+
+    public static class Builder {
+        private int maxAttempts = 5;
+        private long baseBackoffMillis = 100;
+        private long maxBackoffMillis = 10000;
+        private double budgetPerSuccess = 0.1;
+        private double maxBudget = 100;
+        private StreamMetrics metrics = StreamMetrics.shared();
+
+        public Builder maxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder baseBackoffMillis(long baseBackoffMillis) {
+            this.baseBackoffMillis = baseBackoffMillis;
+            return this;
+        }
+
+        public Builder maxBackoffMillis(long maxBackoffMillis) {
+            this.maxBackoffMillis = maxBackoffMillis;
+            return this;
+        }
+
+        // Fraction of a retry earned back by every successful entry.
+        public Builder budgetPerSuccess(double budgetPerSuccess) {
+            this.budgetPerSuccess = budgetPerSuccess;
+            return this;
+        }
+
+        // Retries available in a burst, and the starting budget.
+        public Builder maxBudget(double maxBudget) {
+            this.maxBudget = maxBudget;
+            return this;
+        }
+
+        // Where the calls of putMessages are recorded; the shared metrics by default.
+        public Builder metrics(StreamMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public PutMessagesRetrier build() {
+            if (metrics == null) {
+                throw new IllegalArgumentException("Metrics are required.");
+            }
+            if (maxAttempts < 1 || baseBackoffMillis < 1 || maxBackoffMillis < baseBackoffMillis) {
+                throw new IllegalArgumentException("Attempts and backoff must be positive, with the maximum backoff above the base.");
+            }
+            return new PutMessagesRetrier(this);
+        }
+    }
+}
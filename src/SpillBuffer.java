@@ -0,0 +1,461 @@
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+ * Class is a local write-ahead buffer for messages a producer could not publish, so a host rides out a stream outage
+ * on disk instead of in memory or by losing data.
+ * Messages are appended to numbered segment files of segmentBytes each, written through a memory mapping in the same
+ * record format as OffsetCheckpointStore:
+ *   int payloadLength, int crc32(payload), payload = int keyLength (-1 for none), key, int valueLength, value
+ * A reader takes messages in append order with peek and moves the read cursor past them with commit once they were
+ * published; the cursor is kept in a small mapped file next to the segments, and segments behind it are deleted.
+ * Delivery is at least once: a crash between publishing and commit replays those messages again after the restart.
+ * Segments are never allowed past maxDiskBytes in total; once that is reached new messages are refused and counted as
+ * dropped, so whatever was spilled first is replayed first and complete.
+ * State is guarded by a ReentrantLock, not a monitor, so a producer's sender or replayer on a virtual thread does not pin
+ * its carrier while segments are forced or deleted.
+ */
+public class SpillBuffer implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private static final int HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "spill-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxDiskBytes;
+    private final TreeSet<Long> segments = new TreeSet<>();
+    private final MappedByteBuffer cursor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private MappedByteBuffer writeSegment;
+    private long writeId;
+    private long readId;
+    private int readPosition;
+    private long pending = 0;
+    private long spilled = 0;
+    private long dropped = 0;
+    private boolean closed = false;
+
+    private SpillBuffer(Builder builder) throws IOException {
+        this.directory = builder.directory;
+        this.segmentBytes = builder.segmentBytes;
+        this.maxDiskBytes = builder.maxDiskBytes;
+        Files.createDirectories(directory);
+        try (FileChannel channel = FileChannel.open(directory.resolve("cursor"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.cursor = channel.map(FileChannel.MapMode.READ_WRITE, 0, 16);
+        }
+        recover();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /*
+     * Appends the entries in order and returns how many of them were stored; the rest did not fit the disk quota.
+     * Stored entries are forced to disk before this returns.
+     */
+    public int append(List<PutMessagesDetailsEntry> entries) {
+        lock.lock();
+        try {
+            checkOpen();
+            int stored = 0;
+            try {
+                for (PutMessagesDetailsEntry entry : entries) {
+                    byte[] payload = encode(entry);
+                    if (writeSegment.remaining() < HEADER_BYTES + payload.length) {
+                        if ((segments.size() + 1L) * segmentBytes > maxDiskBytes) {
+                            break;
+                        }
+                        writeSegment.force();
+                        openWriteSegment(writeId + 1);
+                    }
+                    append(writeSegment, payload);
+                    stored++;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to spill to " + directory, e);
+            } finally {
+                if (stored > 0) {
+                    writeSegment.force();
+                }
+                pending += stored;
+                spilled += stored;
+                if (stored < entries.size()) {
+                    dropped += entries.size() - stored;
+                    logger.warn(String.format("Spill buffer %s is full at %s bytes, dropped %s messages.",
+                            directory, maxDiskBytes, entries.size() - stored));
+                }
+            }
+            return stored;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * The oldest spilled entries, up to the given count and encoded request size, without removing them.
+     */
+    public Batch peek(int maxMessages, int maxBytes) {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch batch = new Batch();
+            long segmentId = readId;
+            int position = readPosition;
+            int bytes = 0;
+            try {
+                ByteBuffer segment = null;
+                while (batch.size() < maxMessages && segments.contains(segmentId)) {
+                    if (segment == null) {
+                        segment = segmentId == writeId ? writeSegment.duplicate() : mapReadOnly(segmentId);
+                        segment.position(position);
+                    }
+                    byte[] payload = nextRecord(segment);
+                    if (payload == null) {
+                        if (segmentId == writeId) {
+                            break;
+                        }
+                        segmentId = segments.higher(segmentId);
+                        position = 0;
+                        segment = null;
+                        continue;
+                    }
+                    PutMessagesDetailsEntry entry = decode(payload);
+                    int size = BatchingStreamProducer.encodedSize(entry.getKey(), entry.getValue());
+                    if (batch.size() > 0 && bytes + size > maxBytes) {
+                        break;
+                    }
+                    bytes += size;
+                    position = segment.position();
+                    batch.add(entry, segmentId, position);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read spilled messages from " + directory, e);
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Moves the read cursor past the first count entries of a batch from peek and deletes segments read completely.
+     */
+    public void commit(Batch batch, int count) {
+        lock.lock();
+        try {
+            checkOpen();
+            if (count <= 0) {
+                return;
+            }
+            readId = batch.segmentIds.get(count - 1);
+            readPosition = batch.positions.get(count - 1);
+            pending -= count;
+            cursor.putLong(0, readId).putLong(8, readPosition);
+            cursor.force();
+            while (segments.first() < readId) {
+                long replayed = segments.pollFirst();
+                try {
+                    Files.deleteIfExists(segmentPath(replayed));
+                } catch (IOException e) {
+                    logger.warn("Unable to delete replayed spill segment: " + e.toString());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return pending == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Messages spilled and not yet committed.
+    public long getPending() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSpilled() {
+        lock.lock();
+        try {
+            return spilled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDiskBytes() {
+        lock.lock();
+        try {
+            return (long) segments.size() * segmentBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeSegment.force();
+            cursor.force();
+            logger.info("Closed spill buffer: " + this);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("%s pending, %s spilled, %s dropped, %s segments in %s",
+                    pending, spilled, dropped, segments.size(), directory);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Finds the segments, drops those already replayed, and counts what is left after the cursor.
+    private void recover() throws IOException {
+        readId = cursor.getLong(0);
+        readPosition = (int) cursor.getLong(8);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                if (id < readId) {
+                    Files.delete(file);
+                } else {
+                    segments.add(id);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            openWriteSegment(Math.max(readId, 1));
+        } else {
+            openWriteSegment(segments.last());
+        }
+        if (!segments.contains(readId)) {
+            readId = segments.first();
+            readPosition = 0;
+        }
+        for (long id : segments) {
+            ByteBuffer segment = id == writeId ? writeSegment.duplicate() : mapReadOnly(id);
+            segment.position(id == readId ? readPosition : 0);
+            while (nextRecord(segment) != null) {
+                pending++;
+            }
+            if (id == writeId) {
+                // Clear what a torn record left behind so it cannot be mistaken for data once appends continue.
+                int end = segment.position();
+                writeSegment.position(end);
+                byte[] zeros = new byte[64 * 1024];
+                while (writeSegment.hasRemaining()) {
+                    writeSegment.put(zeros, 0, Math.min(zeros.length, writeSegment.remaining()));
+                }
+                writeSegment.position(end);
+            }
+        }
+        logger.info(String.format("Opened spill buffer %s with %s messages left to replay.", directory, pending));
+    }
+
+    private void openWriteSegment(long id) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(id),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            writeSegment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        writeId = id;
+        segments.add(id);
+    }
+
+    private ByteBuffer mapReadOnly(long id) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(id), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Spill buffer " + directory + " is closed.");
+        }
+    }
+
+    // The payload of the record at the buffer's position, or null at the end of the segment or at a torn record.
+    private static byte[] nextRecord(ByteBuffer segment) {
+        if (segment.remaining() < HEADER_BYTES) {
+            return null;
+        }
+        int start = segment.position();
+        int length = segment.getInt();
+        int crc = segment.getInt();
+        if (length <= 0 || length > segment.remaining()) {
+            segment.position(start);
+            return null;
+        }
+        byte[] payload = new byte[length];
+        segment.get(payload);
+        if (crc != checksum(payload)) {
+            segment.position(start);
+            return null;
+        }
+        return payload;
+    }
+
+    private static void append(MappedByteBuffer buffer, byte[] payload) {
+        // The length goes in last so a record is only valid once all of it is in place.
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.putInt(checksum(payload));
+        buffer.put(payload);
+        buffer.putInt(start, payload.length);
+    }
+
+    private static byte[] encode(PutMessagesDetailsEntry entry) {
+        byte[] key = entry.getKey();
+        byte[] value = entry.getValue();
+        ByteBuffer payload = ByteBuffer.allocate(8 + (key == null ? 0 : key.length) + (value == null ? 0 : value.length));
+        putBytes(payload, key);
+        putBytes(payload, value);
+        return payload.array();
+    }
+
+    private static PutMessagesDetailsEntry decode(byte[] bytes) {
+        ByteBuffer payload = ByteBuffer.wrap(bytes);
+        byte[] key = getBytes(payload);
+        byte[] value = getBytes(payload);
+        return PutMessagesDetailsEntry.builder().key(key).value(value).build();
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /*
+     * Entries read by peek, with the cursor position after each of them so a partly published batch can be committed.
+     */
+    public static class Batch {
+        private final List<PutMessagesDetailsEntry> entries = new ArrayList<>();
+        private final List<Long> segmentIds = new ArrayList<>();
+        private final List<Integer> positions = new ArrayList<>();
+
+        private void add(PutMessagesDetailsEntry entry, long segmentId, int position) {
+            entries.add(entry);
+            segmentIds.add(segmentId);
+            positions.add(position);
+        }
+
+        public List<PutMessagesDetailsEntry> getEntries() {
+            return entries;
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        public boolean isEmpty() {
+            return entries.isEmpty();
+        }
+    }
+
+    public static class Builder {
+        private Path directory;
+        private int segmentBytes = 16 * 1024 * 1024;
+        private long maxDiskBytes = 512L * 1024 * 1024;
+
+        public Builder directory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        // Size of each segment file; a segment must hold at least one full PutMessages request.
+        public Builder segmentBytes(int segmentBytes) {
+            this.segmentBytes = segmentBytes;
+            return this;
+        }
+
+        // Disk space all segments together may take; messages beyond it are dropped.
+        public Builder maxDiskBytes(long maxDiskBytes) {
+            this.maxDiskBytes = maxDiskBytes;
+            return this;
+        }
+
+        public SpillBuffer build() throws IOException {
+            if (directory == null) {
+                throw new IllegalArgumentException("A spill directory is required.");
+            }
+            if (segmentBytes < BatchingStreamProducer.MAX_REQUEST_BYTES || maxDiskBytes < 2L * segmentBytes) {
+                throw new IllegalArgumentException("Segments must hold a full request and the quota at least two segments.");
+            }
+            return new SpillBuffer(this);
+        }
+    }
+}
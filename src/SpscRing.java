@@ -0,0 +1,101 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Class is a bounded lock-free ring buffer for exactly one producing and one consuming thread.
+ * head and tail are ever increasing counters, the slot of a counter is its low bits. The producer writes the slot at
+ * tail and then publishes it by advancing tail; the consumer reads the slot at head and takes it by advancing head
+ * with a compare-and-set, because under DROP_OLDEST the producer also advances head to discard the oldest element.
+ * Whoever wins that race owns the element, a consumer that loses simply retries with the next one. The producer only
+ * writes a slot after head has moved past it, so an element the consumer won is never overwritten before it was read.
+ * Elements must not be changed after offer, the consumer may still be reading them. Taken slots are not cleared,
+ * the ring keeps at most capacity stale references alive.
+ */
+public class SpscRing<E> {
+
+    public enum OverflowPolicy {
+        // Discard the oldest element to make room, the newest data always gets in.
+        DROP_OLDEST,
+        // Discard the element being offered, what is queued stays.
+        DROP_NEWEST,
+        // Wait until the consumer makes room; the producer then runs at the consumer's pace.
+        BLOCK
+    }
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public SpscRing(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2.");
+        }
+        // Rounded up to a power of two so the slot is a mask instead of a division.
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /*
+     * Producer side. Returns false if the element was dropped, or if blocking was interrupted.
+     */
+    public boolean offer(E element) {
+        long currentTail = tail.get();
+        while (currentTail - head.get() > mask) {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                long currentHead = head.get();
+                if (currentTail - currentHead > mask && head.compareAndSet(currentHead, currentHead + 1)) {
+                    dropped.incrementAndGet();
+                }
+                continue;
+            }
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        }
+        slots.lazySet((int) currentTail & mask, element);
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /*
+     * Consumer side. Returns the oldest element, or null when the ring is empty.
+     */
+    public E poll() {
+        while (true) {
+            long currentHead = head.get();
+            if (currentHead == tail.get()) {
+                return null;
+            }
+            E element = slots.get((int) currentHead & mask);
+            if (head.compareAndSet(currentHead, currentHead + 1)) {
+                return element;
+            }
+        }
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
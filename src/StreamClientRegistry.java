@@ -0,0 +1,204 @@
+import com.oracle.bmc.ClientConfiguration;
+import com.oracle.bmc.auth.AuthenticationDetailsProvider;
+import com.oracle.bmc.auth.ConfigFileAuthenticationDetailsProvider;
+import com.oracle.bmc.streaming.StreamAdminClient;
+import com.oracle.bmc.streaming.StreamClient;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Class keeps one StreamClient per messages endpoint and one StreamAdminClient for the whole process, so producers
+ * and consumers embedded side by side share connections instead of each opening their own.
+ * The authentication provider is created once per config file and profile; it reads the private key a single time and
+ * every client signs with it. SDK clients are thread safe, callers must not close the clients they are handed.
+ * The default http connector keeps idle connections per host in the JVM keep-alive cache, its size is raised to
+ * maxIdleConnectionsPerHost unless http.maxConnections was set explicitly, so busy endpoints do not redo TLS handshakes.
+ * Producers, consumers and stores registered with register are closed in reverse order of registration before the
+ * clients, so producers flush what they still buffer while the clients still work. close runs on a shutdown hook.
+ */
+public class StreamClientRegistry implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private static final Map<String, StreamClientRegistry> shared = new ConcurrentHashMap<>();
+
+    private final AuthenticationDetailsProvider provider;
+    private final ClientConfiguration clientConfiguration;
+    private final Map<String, StreamClient> streamClients = new ConcurrentHashMap<>();
+    private volatile StreamAdminClient adminClient;
+    private final Deque<AutoCloseable> registered = new ArrayDeque<>();
+    private final Thread shutdownHook;
+    private boolean closed = false;
+
+    private StreamClientRegistry(Builder builder) {
+        this.provider = builder.provider;
+        this.clientConfiguration = ClientConfiguration.builder()
+                .connectionTimeoutMillis(builder.connectionTimeoutMillis)
+                .readTimeoutMillis(builder.readTimeoutMillis)
+                .build();
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(builder.maxIdleConnectionsPerHost));
+        }
+        if (builder.shutdownHook) {
+            this.shutdownHook = new Thread(this::close, "stream-client-registry-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            this.shutdownHook = null;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /*
+     * The process wide registry for a config file profile, created with default settings on first use.
+     */
+    public static StreamClientRegistry shared(String configurationFilePath, String profile) {
+        return shared.computeIfAbsent(configurationFilePath + "#" + profile, key -> {
+            try {
+                return builder().provider(new ConfigFileAuthenticationDetailsProvider(configurationFilePath, profile)).build();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read OCI config " + configurationFilePath, e);
+            }
+        });
+    }
+
+    public AuthenticationDetailsProvider getProvider() {
+        return provider;
+    }
+
+    public StreamClient streamClient(String messagesEndpoint) {
+        if (StringUtils.isBlank(messagesEndpoint)) {
+            throw new IllegalArgumentException("A messages endpoint is required.");
+        }
+        return streamClients.computeIfAbsent(messagesEndpoint, endpoint -> {
+            checkOpen();
+            logger.info("Creating stream client for " + endpoint);
+            StreamClient client = new StreamClient(provider, clientConfiguration);
+            client.setEndpoint(endpoint);
+            return client;
+        });
+    }
+
+    public StreamAdminClient adminClient() {
+        StreamAdminClient client = adminClient;
+        if (client == null) {
+            synchronized (this) {
+                checkOpen();
+                if (adminClient == null) {
+                    adminClient = new StreamAdminClient(provider, clientConfiguration);
+                }
+                client = adminClient;
+            }
+        }
+        return client;
+    }
+
+    /*
+     * Closes the resource when the registry closes, before any client. Returns it for chaining.
+     */
+    public synchronized <T extends AutoCloseable> T register(T resource) {
+        checkOpen();
+        registered.push(resource);
+        return resource;
+    }
+
+    /*
+     * Closes registered resources newest first, then every client. Safe to call more than once.
+     */
+    @Override
+    public void close() {
+        List<AutoCloseable> toClose = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            toClose.addAll(registered);
+            registered.clear();
+            toClose.addAll(streamClients.values());
+            streamClients.clear();
+            if (adminClient != null) {
+                toClose.add(adminClient);
+            }
+        }
+        for (AutoCloseable resource : toClose) {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                logger.warn(String.format("Closing %s failed: %s", resource.getClass().getSimpleName(), e.toString()));
+            }
+        }
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down.
+            }
+        }
+        shared.values().remove(this);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Stream client registry is closed.");
+        }
+    }
+
+    public static class Builder {
+        private AuthenticationDetailsProvider provider;
+        private int connectionTimeoutMillis = 10000;
+        private int readTimeoutMillis = 60000;
+        private int maxIdleConnectionsPerHost = 20;
+        private boolean shutdownHook = true;
+
+        public Builder provider(AuthenticationDetailsProvider provider) {
+            this.provider = provider;
+            return this;
+        }
+
+        public Builder connectionTimeoutMillis(int connectionTimeoutMillis) {
+            this.connectionTimeoutMillis = connectionTimeoutMillis;
+            return this;
+        }
+
+        public Builder readTimeoutMillis(int readTimeoutMillis) {
+            this.readTimeoutMillis = readTimeoutMillis;
+            return this;
+        }
+
+        // Idle keep-alive connections kept per host; applies JVM wide to the default http connector.
+        public Builder maxIdleConnectionsPerHost(int maxIdleConnectionsPerHost) {
+            this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+            return this;
+        }
+
+        // Whether the registry closes itself when the JVM exits, on by default.
+        public Builder shutdownHook(boolean shutdownHook) {
+            this.shutdownHook = shutdownHook;
+            return this;
+        }
+
+        public StreamClientRegistry build() {
+            if (provider == null) {
+                throw new IllegalArgumentException("An authentication details provider is required.");
+            }
+            if (connectionTimeoutMillis < 0 || readTimeoutMillis < 0 || maxIdleConnectionsPerHost < 1) {
+                throw new IllegalArgumentException("Timeouts must not be negative and at least one idle connection must be kept.");
+            }
+            return new StreamClientRegistry(this);
+        }
+    }
+}
@@ -0,0 +1,521 @@
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.streaming.StreamClient;
+import com.oracle.bmc.streaming.model.CreateCursorDetails;
+import com.oracle.bmc.streaming.model.CreateCursorDetails.Type;
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.model.Stream;
+import com.oracle.bmc.streaming.requests.CreateCursorRequest;
+import com.oracle.bmc.streaming.requests.GetMessagesRequest;
+import com.oracle.bmc.streaming.responses.GetMessagesResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class exports the messages a stream accepted between two times to local TelemetryColumnFiles, for incident analysis
+ * that scans the files instead of fetching hours of telemetry from the service again.
+ * Every partition is read by its own fetch thread from an AtTime cursor at the start time, until the first message at
+ * or after the end time; an end time in the future exports live until then. Messages are decoded and written by a pool
+ * of writer threads, each owning its files, and a message goes to the writer picked by its key so a machine stays
+ * with one writer. Every writer takes batches from a bounded queue, a fetch thread blocks when its writer falls behind,
+ * so memory stays bounded at queuedBatches per writer however fast the stream is read.
+ * Files are laid out as directory/machine=<key>/hour=<yyyy-MM-ddTHH>/part-<run>-<writer>-<n>.tcf, by sample hour in
+ * UTC. A writer keeps at most maxOpenFiles files open and closes the one idle longest to open another, later rows of
+ * that machine and hour go to a new part. scan reads a column of such a directory back for a time range.
+ */
+public class StreamExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    public static final DateTimeFormatter HOUR = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH").withZone(ZoneOffset.UTC);
+
+    // Queued to a writer once every fetch thread is done.
+    private static final List<Message> END = Collections.emptyList();
+
+    private final StreamClient streamClient;
+    private final String streamId;
+    private final int partitions;
+    private final Date from;
+    private final Date to;
+    private final Path directory;
+    private final TelemetryDecoder decoder;
+    private final int writerThreads;
+    private final int queuedBatches;
+    private final int rowGroupRows;
+    private final int maxOpenFiles;
+    private final int fetchLimit;
+    private final StreamMetrics.OperationStats getStats;
+    private final StreamMetrics.OperationStats cursorStats;
+    private final StreamMetrics metrics;
+    private final String run = Long.toString(System.currentTimeMillis(), 36);
+    private final LongAdder fetched = new LongAdder();
+    private final LongAdder fetchBlockedNanos = new LongAdder();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    private StreamExporter(Builder builder) {
+        this.streamClient = builder.streamClient;
+        this.streamId = builder.stream.getId();
+        this.partitions = builder.stream.getPartitions();
+        this.from = builder.from;
+        this.to = builder.to;
+        this.directory = builder.directory;
+        this.decoder = builder.decoder;
+        this.writerThreads = builder.writerThreads;
+        this.queuedBatches = builder.queuedBatches;
+        this.rowGroupRows = builder.rowGroupRows;
+        this.maxOpenFiles = builder.maxOpenFiles;
+        this.fetchLimit = builder.fetchLimit;
+        this.getStats = builder.metrics.operation(streamId, StreamMetrics.Operation.GET_MESSAGES);
+        this.cursorStats = builder.metrics.operation(streamId, StreamMetrics.Operation.CREATE_CURSOR);
+        this.metrics = builder.metrics;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /*
+     * Exports the time range and returns once every file is closed. Throws the first error that stopped a fetch or
+     * writer thread, the files written until then are complete and readable.
+     */
+    public Summary run() throws Exception {
+        long start = System.nanoTime();
+        logger.info(String.format("Exporting %s partitions of stream %s from %s to %s into %s.",
+                partitions, streamId, from.toInstant(), to.toInstant(), directory));
+        List<ExportWriter> writers = new ArrayList<>();
+        for (int w = 0; w < writerThreads; w++) {
+            ExportWriter writer = new ExportWriter(w);
+            writers.add(writer);
+            writer.thread.start();
+        }
+        List<Thread> fetchers = new ArrayList<>();
+        for (int p = 0; p < partitions; p++) {
+            String partition = String.valueOf(p);
+            Thread fetcher = new Thread(() -> fetch(partition, writers), "export-fetch-" + streamId + "-" + partition);
+            fetchers.add(fetcher);
+            fetcher.start();
+        }
+        for (Thread fetcher : fetchers) {
+            fetcher.join();
+        }
+        for (ExportWriter writer : writers) {
+            writer.queue.put(END);
+        }
+        Summary summary = new Summary(fetched.sum(), System.nanoTime() - start, fetchBlockedNanos.sum());
+        for (ExportWriter writer : writers) {
+            writer.thread.join();
+            summary.add(writer);
+        }
+        logger.info("Export done: " + summary);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return summary;
+    }
+
+    private void fetch(String partition, List<ExportWriter> writers) {
+        AdaptivePollScheduler scheduler = new AdaptivePollScheduler(Math.min(100, fetchLimit), fetchLimit, 1000)
+                .reportTo(metrics.poll(streamId, partition));
+        String cursor = null;
+        Long lastOffset = null;
+        try {
+            while (failure.get() == null) {
+                scheduler.awaitNextPoll();
+                try {
+                    if (cursor == null) {
+                        cursor = createCursor(partition, lastOffset);
+                    }
+                    long fetchStart = System.nanoTime();
+                    GetMessagesResponse response;
+                    try {
+                        response = streamClient.getMessages(GetMessagesRequest.builder()
+                                .streamId(streamId)
+                                .cursor(cursor)
+                                .limit(scheduler.getLimit())
+                                .build());
+                    } catch (BmcException e) {
+                        getStats.recordFailure(System.nanoTime() - fetchStart, e);
+                        throw e;
+                    }
+                    List<Message> batch = response.getItems();
+                    getStats.recordSuccess(System.nanoTime() - fetchStart, batch.size());
+                    boolean done = batch.isEmpty() && System.currentTimeMillis() >= to.getTime();
+                    List<List<Message>> routed = new ArrayList<>(Collections.nCopies(writers.size(), null));
+                    for (Message message : batch) {
+                        if (message.getTimestamp() != null && !message.getTimestamp().before(to)) {
+                            // Messages of a partition are in append order, everything after this is past the end too.
+                            done = true;
+                            break;
+                        }
+                        int w = Math.floorMod(message.getKey() != null ? Arrays.hashCode(message.getKey()) : partition.hashCode(), writers.size());
+                        if (routed.get(w) == null) {
+                            routed.set(w, new ArrayList<>());
+                        }
+                        routed.get(w).add(message);
+                        lastOffset = message.getOffset();
+                    }
+                    for (int w = 0; w < routed.size(); w++) {
+                        if (routed.get(w) != null) {
+                            long putStart = System.nanoTime();
+                            writers.get(w).queue.put(routed.get(w));
+                            fetchBlockedNanos.add(System.nanoTime() - putStart);
+                            fetched.add(routed.get(w).size());
+                        }
+                    }
+                    if (done) {
+                        logger.info(String.format("Partition %s exported up to offset %s.", partition, lastOffset));
+                        return;
+                    }
+                    cursor = response.getOpcNextCursor();
+                    scheduler.onMessages(batch.size());
+                } catch (BmcException e) {
+                    if (e.getStatusCode() == 429) {
+                        scheduler.onThrottled();
+                        continue;
+                    }
+                    logger.error(String.format("Error exporting partition %s: %s", partition, e.toString()));
+                    // Cursors expire after a few minutes of inactivity; a bad request means start a new chain.
+                    if (e.getStatusCode() == 400 || e.getStatusCode() == 404) {
+                        cursor = null;
+                    }
+                    scheduler.onMessages(0);
+                }
+            }
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+        } catch (Exception e) {
+            logger.error(String.format("Export of partition %s stopped: %s", partition, e.toString()));
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    // AtTime the start for a new chain, after the last exported message when a cursor had to be recreated.
+    private String createCursor(String partition, Long afterOffset) {
+        CreateCursorDetails.Builder details = CreateCursorDetails.builder().partition(partition);
+        if (afterOffset != null) {
+            details.type(Type.AfterOffset).offset(afterOffset);
+        } else {
+            details.type(Type.AtTime).time(from);
+        }
+        long start = System.nanoTime();
+        try {
+            String cursor = streamClient.createCursor(CreateCursorRequest.builder()
+                    .streamId(streamId)
+                    .createCursorDetails(details.build())
+                    .build()).getCursor().getValue();
+            cursorStats.recordSuccess(System.nanoTime() - start, 0);
+            return cursor;
+        } catch (RuntimeException e) {
+            cursorStats.recordFailure(System.nanoTime() - start, e);
+            throw e;
+        }
+    }
+
+    /*
+     * Hands every value of a column with an event time in [fromMillis, toMillis) in an export directory to the
+     * visitor. Hour directories outside the range are skipped by name and row groups by their event time and column
+     * statistics, so only the chunks of the two columns in range are inflated.
+     */
+    public static long scan(Path directory, long fromMillis, long toMillis, String column, ScanVisitor visitor) throws IOException {
+        long visited = 0;
+        for (Path file : TelemetryColumnFile.list(directory)) {
+            Path hourDirectory = file.getParent();
+            Path machineDirectory = hourDirectory == null ? null : hourDirectory.getParent();
+            if (machineDirectory == null || !hourDirectory.getFileName().toString().startsWith("hour=")
+                    || !machineDirectory.getFileName().toString().startsWith("machine=")) {
+                continue;
+            }
+            long hour = HOUR.parse(hourDirectory.getFileName().toString().substring("hour=".length()), Instant::from).toEpochMilli();
+            if (hour >= toMillis || hour + TimeUnit.HOURS.toMillis(1) <= fromMillis) {
+                continue;
+            }
+            String machine = URLDecoder.decode(machineDirectory.getFileName().toString().substring("machine=".length()), UTF_8);
+            try (TelemetryColumnFile.Reader reader = TelemetryColumnFile.open(file)) {
+                for (TelemetryColumnFile.RowGroup rowGroup : reader.getRowGroups()) {
+                    if (!rowGroup.hasColumn(column) || !rowGroup.mayContain(TelemetryColumnFile.EVENT_TIME, fromMillis, toMillis)) {
+                        continue;
+                    }
+                    TelemetryColumnFile.ColumnData times = reader.read(rowGroup, TelemetryColumnFile.EVENT_TIME);
+                    TelemetryColumnFile.ColumnData values = reader.read(rowGroup, column);
+                    for (int row = 0; row < rowGroup.getRows(); row++) {
+                        long time = times.getLong(row);
+                        if (values.isPresent(row) && time >= fromMillis && time < toMillis) {
+                            visitor.visit(machine, time, values.getDouble(row));
+                            visited++;
+                        }
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    public interface ScanVisitor {
+        void visit(String machine, long eventTimeMillis, double value);
+    }
+
+    // Directory of a machine and hour, with the key made safe for a file name.
+    static Path partitionDirectory(Path directory, String machine, long eventTimeMillis) {
+        return directory.resolve("machine=" + URLEncoder.encode(machine, UTF_8).replace("*", "%2A"))
+                .resolve("hour=" + HOUR.format(Instant.ofEpochMilli(eventTimeMillis).truncatedTo(ChronoUnit.HOURS)));
+    }
+
+    private class ExportWriter {
+        private final int index;
+        private final BlockingQueue<List<Message>> queue = new ArrayBlockingQueue<>(queuedBatches);
+        private final Thread thread;
+        // Open files by machine and hour directory, the one idle longest first.
+        private final Map<Path, TelemetryColumnFile.Writer> files = new LinkedHashMap<>(16, 0.75f, true);
+        private int parts = 0;
+        private long rows = 0;
+        private long bytes = 0;
+        private long rowGroups = 0;
+        private long undecodable = 0;
+
+        private ExportWriter(int index) {
+            this.index = index;
+            this.thread = new Thread(this::writeLoop, "export-write-" + index);
+        }
+
+        private void writeLoop() {
+            try {
+                List<Message> batch;
+                while ((batch = queue.take()) != END) {
+                    for (Message message : batch) {
+                        write(message);
+                    }
+                }
+            } catch (Exception e) {
+                logger.error(String.format("Export writer %s stopped: %s", index, e.toString()));
+                failure.compareAndSet(null, e);
+                // Keep taking so no fetch thread stays blocked on this queue.
+                queue.clear();
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        if (queue.take() == END) {
+                            break;
+                        }
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            } finally {
+                for (TelemetryColumnFile.Writer file : files.values()) {
+                    closeQuietly(file);
+                }
+                files.clear();
+            }
+        }
+
+        private void write(Message message) throws IOException {
+            TelemetryRecord record = decoder.decode(message.getKey(), message.getValue());
+            if (record == null) {
+                undecodable++;
+                return;
+            }
+            long streamTime = message.getTimestamp() != null ? message.getTimestamp().getTime() : 0;
+            long eventTime = record.getTimestampMillis() > 0 ? record.getTimestampMillis() : streamTime;
+            String machine = StringUtils.isNotBlank(record.getMachineName()) ? record.getMachineName()
+                    : message.getKey() != null ? new String(message.getKey(), UTF_8) : "unknown";
+            Path partitionDirectory = partitionDirectory(directory, machine, eventTime);
+            TelemetryColumnFile.Writer file = files.get(partitionDirectory);
+            if (file == null) {
+                if (files.size() >= maxOpenFiles) {
+                    Iterator<TelemetryColumnFile.Writer> idlest = files.values().iterator();
+                    close(idlest.next());
+                    idlest.remove();
+                }
+                file = TelemetryColumnFile.create(partitionDirectory.resolve(
+                        String.format("part-%s-%s-%s%s", run, index, parts++, TelemetryColumnFile.SUFFIX)), rowGroupRows);
+                files.put(partitionDirectory, file);
+            }
+            file.append(Integer.parseInt(message.getPartition()), message.getOffset(), streamTime, record);
+        }
+
+        private void close(TelemetryColumnFile.Writer file) throws IOException {
+            file.close();
+            rows += file.getRows();
+            bytes += file.getBytes();
+            rowGroups += file.getRowGroups();
+        }
+
+        private void closeQuietly(TelemetryColumnFile.Writer file) {
+            try {
+                close(file);
+            } catch (IOException e) {
+                logger.error(String.format("Export writer %s could not close a file: %s", index, e.toString()));
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    public static class Summary {
+        private final long messages;
+        private final long nanos;
+        private final long fetchBlockedNanos;
+        private long rows = 0;
+        private long files = 0;
+        private long rowGroups = 0;
+        private long bytes = 0;
+        private long undecodable = 0;
+
+        private Summary(long messages, long nanos, long fetchBlockedNanos) {
+            this.messages = messages;
+            this.nanos = nanos;
+            this.fetchBlockedNanos = fetchBlockedNanos;
+        }
+
+        private void add(ExportWriter writer) {
+            rows += writer.rows;
+            files += writer.parts;
+            rowGroups += writer.rowGroups;
+            bytes += writer.bytes;
+            undecodable += writer.undecodable;
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getUndecodable() {
+            return undecodable;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("messages=%s, rows=%s, undecodable=%s, files=%s, rowGroups=%s, bytes=%s, seconds=%.1f, fetchBlockedSeconds=%.1f",
+                    messages, rows, undecodable, files, rowGroups, bytes, nanos / 1e9, fetchBlockedNanos / 1e9);
+        }
+    }
+
+    public static class Builder {
+        private StreamClient streamClient;
+        private Stream stream;
+        private Date from;
+        private Date to;
+        private Path directory;
+        private TelemetryDecoder decoder = TelemetryDecoder.defaultDecoder();
+        private int writerThreads = Runtime.getRuntime().availableProcessors();
+        private int queuedBatches = 4;
+        private int rowGroupRows = 10000;
+        private int maxOpenFiles = 64;
+        private int fetchLimit = AdaptivePollScheduler.SERVICE_MAX_LIMIT;
+        private StreamMetrics metrics = StreamMetrics.shared();
+
+        public Builder streamClient(StreamClient streamClient) {
+            this.streamClient = streamClient;
+            return this;
+        }
+
+        // The stream as returned by GetStream, it provides the id and the partition count.
+        public Builder stream(Stream stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        // Messages the stream accepted from, inclusive, to, exclusive.
+        public Builder timeRange(Date from, Date to) {
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        public Builder directory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        public Builder decoder(TelemetryDecoder decoder) {
+            this.decoder = decoder;
+            return this;
+        }
+
+        public Builder writerThreads(int writerThreads) {
+            this.writerThreads = writerThreads;
+            return this;
+        }
+
+        // Fetched batches each writer may have waiting before the fetch threads block.
+        public Builder queuedBatches(int queuedBatches) {
+            this.queuedBatches = queuedBatches;
+            return this;
+        }
+
+        public Builder rowGroupRows(int rowGroupRows) {
+            this.rowGroupRows = rowGroupRows;
+            return this;
+        }
+
+        // Files each writer keeps open at once.
+        public Builder maxOpenFiles(int maxOpenFiles) {
+            this.maxOpenFiles = maxOpenFiles;
+            return this;
+        }
+
+        // Largest GetMessages limit, the limit adapts up to it.
+        public Builder fetchLimit(int fetchLimit) {
+            this.fetchLimit = fetchLimit;
+            return this;
+        }
+
+        public Builder metrics(StreamMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public StreamExporter build() {
+            if (streamClient == null || stream == null || directory == null || decoder == null || metrics == null) {
+                throw new IllegalArgumentException("A stream client, stream, directory, decoder and metrics are required.");
+            }
+            if (stream.getPartitions() == null || stream.getPartitions() < 1) {
+                throw new IllegalArgumentException("Stream " + stream.getId() + " reports no partitions.");
+            }
+            if (from == null || to == null || !from.before(to)) {
+                throw new IllegalArgumentException("The time range must start before it ends.");
+            }
+            if (writerThreads < 1 || queuedBatches < 1 || rowGroupRows < 1 || maxOpenFiles < 1
+                    || fetchLimit < 1 || fetchLimit > AdaptivePollScheduler.SERVICE_MAX_LIMIT) {
+                throw new IllegalArgumentException("Writer threads, queued batches, row group rows, open files and fetch limit must be positive, "
+                        + "the fetch limit at most " + AdaptivePollScheduler.SERVICE_MAX_LIMIT + ".");
+            }
+            return new StreamExporter(this);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.streaming.StreamAdminClient;
+import com.oracle.bmc.streaming.model.Stream;
+import com.oracle.bmc.streaming.model.Stream.LifecycleState;
+import com.oracle.bmc.streaming.requests.GetStreamRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Class waits for streams to reach a lifecycle state without holding a thread per stream.
+ * Every wait is a chain of tasks on one shared scheduler; each task makes a single GetStream call and either completes
+ * the wait's future or schedules the next poll. The interval starts small, as most streams are ready within seconds,
+ * and doubles up to the maximum, with a little jitter so streams created together are not polled together.
+ * A wait fails when the stream ends up Failed (or Deleted while waiting for another state), when its deadline passes,
+ * or when GetStream fails with anything but a throttling or server error, which are polled through.
+ * Cancelling the returned future stops polling that stream.
+ * In ThreadMode.VIRTUAL the scheduler only keeps time and every GetStream call runs on a virtual thread of its own,
+ * so thousands of waits blocked on a slow control plane do not queue behind the scheduler's few threads.
+ */
+public class StreamLifecycleWaiter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private final StreamAdminClient adminClient;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    // Runs the GetStream calls in VIRTUAL mode, null when they run on the scheduler itself.
+    private final Executor pollExecutor;
+    private final long initialIntervalMillis;
+    private final long maxIntervalMillis;
+    private final Set<CompletableFuture<Stream>> pending = ConcurrentHashMap.newKeySet();
+
+    private StreamLifecycleWaiter(Builder builder) {
+        this.adminClient = builder.adminClient;
+        this.initialIntervalMillis = builder.initialIntervalMillis;
+        this.maxIntervalMillis = builder.maxIntervalMillis;
+        this.ownsScheduler = builder.scheduler == null;
+        this.pollExecutor = builder.threadMode == ThreadMode.VIRTUAL ? builder.threadMode.threadPerTask("stream-lifecycle-poll") : null;
+        if (ownsScheduler) {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.scheduler = Executors.newScheduledThreadPool(builder.threads, runnable -> {
+                Thread thread = new Thread(runnable, "stream-lifecycle-waiter-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.scheduler = builder.scheduler;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public CompletableFuture<Stream> awaitActive(String streamId, long timeoutMillis) {
+        return awaitState(streamId, LifecycleState.Active, timeoutMillis);
+    }
+
+    /*
+     * Completes with the stream as GetStream returned it once it reports the target state. Waiting for Deleted also
+     * completes, with null, when the stream is no longer found.
+     */
+    public CompletableFuture<Stream> awaitState(String streamId, LifecycleState target, long timeoutMillis) {
+        CompletableFuture<Stream> result = new CompletableFuture<>();
+        pending.add(result);
+        result.whenComplete((stream, error) -> pending.remove(result));
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        schedule(new Wait(streamId, target, deadlineNanos, result), 0);
+        return result;
+    }
+
+    /*
+     * Stops the scheduler if this waiter created it; waits still pending fail with a CancellationException.
+     */
+    @Override
+    public void close() {
+        for (CompletableFuture<Stream> result : pending) {
+            result.completeExceptionally(new CancellationException("Lifecycle waiter is closed."));
+        }
+        if (ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void poll(Wait wait) {
+        if (wait.result.isDone()) {
+            return;
+        }
+        wait.attempts++;
+        Stream stream;
+        try {
+            stream = adminClient.getStream(GetStreamRequest.builder().streamId(wait.streamId).build()).getStream();
+        } catch (BmcException e) {
+            if (e.getStatusCode() == 404 && wait.target == LifecycleState.Deleted) {
+                wait.result.complete(null);
+            } else if (PutMessagesRetrier.isRetryable(e)) {
+                logger.info(String.format("GetStream for %s failed with %s, polling again.", wait.streamId, e.getStatusCode()));
+                scheduleNext(wait);
+            } else {
+                wait.result.completeExceptionally(e);
+            }
+            return;
+        } catch (RuntimeException e) {
+            wait.result.completeExceptionally(e);
+            return;
+        }
+
+        LifecycleState state = stream.getLifecycleState();
+        if (state == wait.target) {
+            logger.info(String.format("Stream %s is %s after %s polls.", wait.streamId, state, wait.attempts));
+            wait.result.complete(stream);
+        } else if (state == LifecycleState.Failed || state == LifecycleState.Deleted) {
+            wait.result.completeExceptionally(new IllegalStateException(String.format(
+                    "Stream %s is %s while waiting for %s: %s", wait.streamId, state, wait.target, stream.getLifecycleStateDetails())));
+        } else {
+            scheduleNext(wait);
+        }
+    }
+
+    private void scheduleNext(Wait wait) {
+        long interval = Math.min(maxIntervalMillis, initialIntervalMillis << Math.min(wait.attempts - 1, 20));
+        long jittered = interval - ThreadLocalRandom.current().nextLong(interval / 10 + 1);
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(wait.deadlineNanos - System.nanoTime());
+        if (remainingMillis <= 0) {
+            wait.result.completeExceptionally(new TimeoutException(String.format(
+                    "Stream %s did not become %s in time, %s polls.", wait.streamId, wait.target, wait.attempts)));
+            return;
+        }
+        // The last poll lands on the deadline rather than past it.
+        schedule(wait, Math.min(jittered, remainingMillis));
+    }
+
+    private void dispatch(Wait wait) {
+        if (pollExecutor == null) {
+            poll(wait);
+        } else {
+            pollExecutor.execute(() -> poll(wait));
+        }
+    }
+
+    private void schedule(Wait wait, long delayMillis) {
+        try {
+            scheduler.schedule(() -> dispatch(wait), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            wait.result.completeExceptionally(new CancellationException("Lifecycle waiter is closed."));
+        }
+    }
+
+    // State of one stream's wait, only touched by the poll task currently scheduled for it.
+    private static class Wait {
+        private final String streamId;
+        private final LifecycleState target;
+        private final long deadlineNanos;
+        private final CompletableFuture<Stream> result;
+        private int attempts = 0;
+
+        private Wait(String streamId, LifecycleState target, long deadlineNanos, CompletableFuture<Stream> result) {
+            this.streamId = streamId;
+            this.target = target;
+            this.deadlineNanos = deadlineNanos;
+            this.result = result;
+        }
+    }
+
+    public static class Builder {
+        private StreamAdminClient adminClient;
+        private ScheduledExecutorService scheduler;
+        private int threads = 1;
+        private long initialIntervalMillis = 500;
+        private long maxIntervalMillis = 10000;
+        private ThreadMode threadMode = ThreadMode.configured();
+
+        public Builder adminClient(StreamAdminClient adminClient) {
+            this.adminClient = adminClient;
+            return this;
+        }
+
+        // Shared scheduler to run the polls on; the waiter then leaves shutting it down to the caller.
+        public Builder scheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        // Threads of the scheduler the waiter creates when none is given; GetStream calls run on them.
+        public Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Builder initialIntervalMillis(long initialIntervalMillis) {
+            this.initialIntervalMillis = initialIntervalMillis;
+            return this;
+        }
+
+        public Builder maxIntervalMillis(long maxIntervalMillis) {
+            this.maxIntervalMillis = maxIntervalMillis;
+            return this;
+        }
+
+        // VIRTUAL makes each GetStream call on a virtual thread instead of a scheduler thread; defaults to the
+        // streaming.threads system property.
+        public Builder threadMode(ThreadMode threadMode) {
+            this.threadMode = threadMode;
+            return this;
+        }
+
+        public StreamLifecycleWaiter build() {
+            if (adminClient == null || threadMode == null) {
+                throw new IllegalArgumentException("An admin client and a thread mode are required.");
+            }
+            if (threads < 1 || initialIntervalMillis < 1 || maxIntervalMillis < initialIntervalMillis) {
+                throw new IllegalArgumentException("Threads and intervals must be positive, the maximum interval at least the initial one.");
+            }
+            return new StreamLifecycleWaiter(this);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import com.oracle.bmc.streaming.StreamAdminClient;
+import com.oracle.bmc.streaming.model.Stream;
+import com.oracle.bmc.streaming.model.Stream.LifecycleState;
+import com.oracle.bmc.streaming.model.StreamSummary;
+import com.oracle.bmc.streaming.requests.ListStreamsRequest;
+import com.oracle.bmc.streaming.responses.ListStreamsResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class resolves a stream name in a compartment to its id, messages endpoint and partition count, and remembers the
+ * answer so startup does not need the admin API every time.
+ * A lookup is a single ListStreams call for active streams of that name; the summaries already carry everything a
+ * producer or consumer needs, so no GetStream follows. Entries expire after the TTL, spread by up to a tenth either
+ * way so hosts that started together do not all refresh together. Concurrent callers asking for the same stream share
+ * one lookup. If a refresh fails the expired entry is used rather than failing startup.
+ * With a warm cache file the entries survive restarts: the file is read when the cache is built and rewritten after
+ * every lookup, entries keep the time they were loaded so the TTL still applies across restarts.
+ * Missing streams are not cached, so a stream created later is found on the next call.
+ */
+public class StreamMetadataCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private final StreamAdminClient adminClient;
+    private final long ttlMillis;
+    private final Path warmCacheFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Stream>> loading = new ConcurrentHashMap<>();
+
+    private StreamMetadataCache(Builder builder) {
+        this.adminClient = builder.adminClient;
+        this.ttlMillis = builder.ttlMillis;
+        this.warmCacheFile = builder.warmCacheFile;
+        if (warmCacheFile != null) {
+            readWarmCache();
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /*
+     * Returns the active stream of that name, or null if the compartment has none. The returned Stream carries the id,
+     * name, compartment, partition count, messages endpoint and lifecycle state.
+     */
+    public Stream find(String compartmentId, String streamName) {
+        String key = key(compartmentId, streamName);
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() < entry.expiresAtMillis) {
+            return entry.stream;
+        }
+        CompletableFuture<Stream> lookup = new CompletableFuture<>();
+        CompletableFuture<Stream> running = loading.putIfAbsent(key, lookup);
+        if (running != null) {
+            return join(running);
+        }
+        try {
+            Stream stream = listActiveStream(compartmentId, streamName);
+            if (stream != null) {
+                long loadedAtMillis = System.currentTimeMillis();
+                entries.put(key, new Entry(stream, loadedAtMillis, expiry(loadedAtMillis)));
+            } else {
+                entries.remove(key);
+            }
+            lookup.complete(stream);
+            writeWarmCache();
+            return stream;
+        } catch (RuntimeException e) {
+            if (entry != null) {
+                logger.warn(String.format("Refreshing stream %s failed, using the cached entry: %s", streamName, e.toString()));
+                lookup.complete(entry.stream);
+                return entry.stream;
+            }
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, lookup);
+        }
+    }
+
+    /*
+     * Like find, but a missing stream is an error.
+     */
+    public Stream get(String compartmentId, String streamName) {
+        Stream stream = find(compartmentId, streamName);
+        if (stream == null) {
+            throw new IllegalStateException(String.format("No active stream %s in compartment %s.", streamName, compartmentId));
+        }
+        return stream;
+    }
+
+    // Drops the entry, for instance after the stream was deleted or its endpoint stopped answering.
+    public void invalidate(String compartmentId, String streamName) {
+        entries.remove(key(compartmentId, streamName));
+        writeWarmCache();
+    }
+
+    private Stream listActiveStream(String compartmentId, String streamName) {
+        String page = null;
+        do {
+            ListStreamsResponse listResponse = adminClient.listStreams(ListStreamsRequest.builder()
+                    .compartmentId(compartmentId)
+                    .lifecycleState(LifecycleState.Active)
+                    .name(streamName)
+                    .page(page)
+                    .build());
+            for (StreamSummary summary : listResponse.getItems()) {
+                if (summary.getName().equals(streamName)) {
+                    logger.info(String.format("Resolved stream %s to %s.", streamName, summary.getId()));
+                    return Stream.builder()
+                            .id(summary.getId())
+                            .name(summary.getName())
+                            .compartmentId(summary.getCompartmentId())
+                            .partitions(summary.getPartitions())
+                            .messagesEndpoint(summary.getMessagesEndpoint())
+                            .streamPoolId(summary.getStreamPoolId())
+                            .lifecycleState(summary.getLifecycleState())
+                            .timeCreated(summary.getTimeCreated())
+                            .build();
+                }
+            }
+            page = listResponse.getOpcNextPage();
+        } while (page != null);
+        return null;
+    }
+
+    private long expiry(long loadedAtMillis) {
+        return loadedAtMillis + ttlMillis + (long) (ttlMillis * 0.1 * (2 * ThreadLocalRandom.current().nextDouble() - 1));
+    }
+
+    private static String key(String compartmentId, String streamName) {
+        return compartmentId + "/" + streamName;
+    }
+
+    private static Stream join(CompletableFuture<Stream> lookup) {
+        try {
+            return lookup.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /*
+     * One line per stream: loadedAtMillis, compartmentId, name, id, partitions, messagesEndpoint, tab separated.
+     * Unreadable lines are skipped, the worst a damaged file can cause is a lookup.
+     */
+    private void readWarmCache() {
+        if (!Files.exists(warmCacheFile)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(warmCacheFile, UTF_8)) {
+                String[] fields = line.split("\t");
+                if (fields.length != 6) {
+                    continue;
+                }
+                try {
+                    long loadedAtMillis = Long.parseLong(fields[0]);
+                    Stream stream = Stream.builder()
+                            .compartmentId(fields[1])
+                            .name(fields[2])
+                            .id(fields[3])
+                            .partitions(Integer.parseInt(fields[4]))
+                            .messagesEndpoint(fields[5])
+                            .lifecycleState(LifecycleState.Active)
+                            .build();
+                    entries.put(key(fields[1], fields[2]), new Entry(stream, loadedAtMillis, expiry(loadedAtMillis)));
+                } catch (NumberFormatException e) {
+                    logger.warn("Skipping unreadable stream metadata line: " + line);
+                }
+            }
+            logger.info(String.format("Loaded %s cached streams from %s.", entries.size(), warmCacheFile));
+        } catch (IOException e) {
+            logger.warn(String.format("Could not read stream metadata cache %s: %s", warmCacheFile, e.toString()));
+        }
+    }
+
+    // Written to a temporary file that replaces the old one, a crash never leaves a half written cache behind.
+    private synchronized void writeWarmCache() {
+        if (warmCacheFile == null) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            lines.add(String.join("\t",
+                    Long.toString(entry.loadedAtMillis),
+                    entry.stream.getCompartmentId(),
+                    entry.stream.getName(),
+                    entry.stream.getId(),
+                    String.valueOf(entry.stream.getPartitions()),
+                    entry.stream.getMessagesEndpoint()));
+        }
+        try {
+            if (warmCacheFile.getParent() != null) {
+                Files.createDirectories(warmCacheFile.getParent());
+            }
+            Path temporary = warmCacheFile.resolveSibling(warmCacheFile.getFileName() + ".tmp");
+            Files.write(temporary, lines, UTF_8);
+            Files.move(temporary, warmCacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn(String.format("Could not write stream metadata cache %s: %s", warmCacheFile, e.toString()));
+        }
+    }
+
+    private static class Entry {
+        private final Stream stream;
+        private final long loadedAtMillis;
+        private final long expiresAtMillis;
+
+        private Entry(Stream stream, long loadedAtMillis, long expiresAtMillis) {
+            this.stream = stream;
+            this.loadedAtMillis = loadedAtMillis;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    public static class Builder {
+        private StreamAdminClient adminClient;
+        private long ttlMillis = TimeUnit.MINUTES.toMillis(10);
+        private Path warmCacheFile;
+
+        public Builder adminClient(StreamAdminClient adminClient) {
+            this.adminClient = adminClient;
+            return this;
+        }
+
+        public Builder ttlMillis(long ttlMillis) {
+            this.ttlMillis = ttlMillis;
+            return this;
+        }
+
+        // File the entries are kept in between runs, none by default.
+        public Builder warmCacheFile(Path warmCacheFile) {
+            this.warmCacheFile = warmCacheFile;
+            return this;
+        }
+
+        public StreamMetadataCache build() {
+            if (adminClient == null) {
+                throw new IllegalArgumentException("An admin client is required.");
+            }
+            if (ttlMillis < 0) {
+                throw new IllegalArgumentException("The TTL must not be negative.");
+            }
+            return new StreamMetadataCache(this);
+        }
+    }
+}
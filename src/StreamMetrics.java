@@ -0,0 +1,483 @@
+import com.oracle.bmc.model.BmcException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/*
+ * Class collects what the producers and consumers see of the Streaming api, per stream:
+ * - per operation (PutMessages, GetMessages, CreateCursor, CreateGroupCursor) a latency histogram, a histogram of the
+ *   messages per request, and counters of requests, errors, throttled calls and failed PutMessages entries;
+ * - per partition the consumer lag: how long ago the last handled message was written, and its offset;
+ * - per partition the fetch limit and poll interval its AdaptivePollScheduler currently uses.
+ * Callers look up their OperationStats, PartitionLag and PartitionPoll once and record into them on every call without allocating.
+ * The shared instance, used by default by every engine, registers each of them as an MXBean under the "streaming" JMX
+ * domain; PrometheusEndpoint serves them all in the Prometheus text format.
+ */
+public class StreamMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private static final StreamMetrics shared = new StreamMetrics("streaming");
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public enum Operation {
+        PUT_MESSAGES("PutMessages"),
+        GET_MESSAGES("GetMessages"),
+        CREATE_CURSOR("CreateCursor"),
+        CREATE_GROUP_CURSOR("CreateGroupCursor");
+
+        private final String apiName;
+
+        Operation(String apiName) {
+            this.apiName = apiName;
+        }
+
+        public String getApiName() {
+            return apiName;
+        }
+    }
+
+    private final String jmxDomain;
+    private final Map<String, OperationStats[]> operations = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, PartitionLag>> partitions = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, PartitionPoll>> polls = new ConcurrentHashMap<>();
+
+    /*
+     * Metrics of their own, not registered with JMX; for benchmarks and tests.
+     */
+    public StreamMetrics() {
+        this(null);
+    }
+
+    private StreamMetrics(String jmxDomain) {
+        this.jmxDomain = jmxDomain;
+    }
+
+    public static StreamMetrics shared() {
+        return shared;
+    }
+
+    public OperationStats operation(String streamId, Operation operation) {
+        OperationStats[] stats = operations.get(streamId);
+        if (stats == null) {
+            stats = operations.computeIfAbsent(streamId, this::newOperations);
+        }
+        return stats[operation.ordinal()];
+    }
+
+    public PartitionLag partition(String streamId, String partition) {
+        Map<String, PartitionLag> lags = partitions.get(streamId);
+        if (lags == null) {
+            lags = partitions.computeIfAbsent(streamId, id -> new ConcurrentHashMap<>());
+        }
+        PartitionLag lag = lags.get(partition);
+        if (lag == null) {
+            lag = lags.computeIfAbsent(partition, p -> {
+                PartitionLag created = new PartitionLag();
+                register(created, "type=ConsumerLag,stream=" + ObjectName.quote(streamId) + ",partition=" + ObjectName.quote(p));
+                return created;
+            });
+        }
+        return lag;
+    }
+
+    /*
+     * Poll state of a partition's reader. A group consumer, whose fetches span partitions, reports as "group:<group>/<instance>".
+     */
+    public PartitionPoll poll(String streamId, String partition) {
+        Map<String, PartitionPoll> byPartition = polls.get(streamId);
+        if (byPartition == null) {
+            byPartition = polls.computeIfAbsent(streamId, id -> new ConcurrentHashMap<>());
+        }
+        PartitionPoll poll = byPartition.get(partition);
+        if (poll == null) {
+            poll = byPartition.computeIfAbsent(partition, p -> {
+                PartitionPoll created = new PartitionPoll();
+                register(created, "type=ConsumerPoll,stream=" + ObjectName.quote(streamId) + ",partition=" + ObjectName.quote(p));
+                return created;
+            });
+        }
+        return poll;
+    }
+
+    /*
+     * Everything in the Prometheus text exposition format, version 0.0.4. Latencies are in seconds.
+     */
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        Map<String, OperationStats[]> byStream = new TreeMap<>(operations);
+        header(text, "streaming_request_duration_seconds", "summary", "Latency of Streaming api calls.");
+        for (Map.Entry<String, OperationStats[]> stream : byStream.entrySet()) {
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram latency = stream.getValue()[operation.ordinal()].latency;
+                summary(text, "streaming_request_duration_seconds", labels(stream.getKey(), operation), latency,
+                        1.0 / TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+        header(text, "streaming_request_messages", "summary", "Messages sent or received per PutMessages and GetMessages call.");
+        for (Map.Entry<String, OperationStats[]> stream : byStream.entrySet()) {
+            for (Operation operation : new Operation[]{Operation.PUT_MESSAGES, Operation.GET_MESSAGES}) {
+                summary(text, "streaming_request_messages", labels(stream.getKey(), operation),
+                        stream.getValue()[operation.ordinal()].batchSizes, 1);
+            }
+        }
+        counter(text, byStream, "streaming_requests_total", "Streaming api calls.", OperationStats::getRequests);
+        counter(text, byStream, "streaming_request_errors_total", "Calls that failed other than by throttling.",
+                OperationStats::getErrors);
+        counter(text, byStream, "streaming_request_throttled_total", "Calls or PutMessages entries rejected as throttled.",
+                OperationStats::getThrottled);
+        counter(text, byStream, "streaming_entry_failures_total", "PutMessages entries the service rejected.",
+                OperationStats::getEntryFailures);
+
+        header(text, "streaming_consumer_lag_seconds", "gauge", "Age of the last handled message when it was handled.");
+        Map<String, Map<String, PartitionLag>> lagsByStream = new TreeMap<>(partitions);
+        for (Map.Entry<String, Map<String, PartitionLag>> stream : lagsByStream.entrySet()) {
+            for (Map.Entry<String, PartitionLag> partition : new TreeMap<>(stream.getValue()).entrySet()) {
+                text.append("streaming_consumer_lag_seconds{stream=\"").append(escape(stream.getKey()))
+                        .append("\",partition=\"").append(escape(partition.getKey())).append("\"} ")
+                        .append(partition.getValue().getLagMillis() / 1000.0).append('\n');
+            }
+        }
+        header(text, "streaming_consumer_offset", "gauge", "Offset of the last handled message.");
+        for (Map.Entry<String, Map<String, PartitionLag>> stream : lagsByStream.entrySet()) {
+            for (Map.Entry<String, PartitionLag> partition : new TreeMap<>(stream.getValue()).entrySet()) {
+                text.append("streaming_consumer_offset{stream=\"").append(escape(stream.getKey()))
+                        .append("\",partition=\"").append(escape(partition.getKey())).append("\"} ")
+                        .append(partition.getValue().getOffset()).append('\n');
+            }
+        }
+        header(text, "streaming_consumer_lag_messages", "gauge", "Messages between the last handled one and the head, -1 if unknown.");
+        for (Map.Entry<String, Map<String, PartitionLag>> stream : lagsByStream.entrySet()) {
+            for (Map.Entry<String, PartitionLag> partition : new TreeMap<>(stream.getValue()).entrySet()) {
+                text.append("streaming_consumer_lag_messages{stream=\"").append(escape(stream.getKey()))
+                        .append("\",partition=\"").append(escape(partition.getKey())).append("\"} ")
+                        .append(partition.getValue().getLagMessages()).append('\n');
+            }
+        }
+        Map<String, Map<String, PartitionPoll>> pollsByStream = new TreeMap<>(polls);
+        header(text, "streaming_consumer_fetch_limit", "gauge", "Messages the next GetMessages call of a partition asks for.");
+        for (Map.Entry<String, Map<String, PartitionPoll>> stream : pollsByStream.entrySet()) {
+            for (Map.Entry<String, PartitionPoll> partition : new TreeMap<>(stream.getValue()).entrySet()) {
+                text.append("streaming_consumer_fetch_limit{stream=\"").append(escape(stream.getKey()))
+                        .append("\",partition=\"").append(escape(partition.getKey())).append("\"} ")
+                        .append(partition.getValue().getFetchLimit()).append('\n');
+            }
+        }
+        header(text, "streaming_consumer_poll_interval_seconds", "gauge", "Pause before the next GetMessages call of a partition.");
+        for (Map.Entry<String, Map<String, PartitionPoll>> stream : pollsByStream.entrySet()) {
+            for (Map.Entry<String, PartitionPoll> partition : new TreeMap<>(stream.getValue()).entrySet()) {
+                text.append("streaming_consumer_poll_interval_seconds{stream=\"").append(escape(stream.getKey()))
+                        .append("\",partition=\"").append(escape(partition.getKey())).append("\"} ")
+                        .append(partition.getValue().getPollIntervalMillis() / 1000.0).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, OperationStats[]> stream : new TreeMap<>(operations).entrySet()) {
+            for (Operation operation : Operation.values()) {
+                OperationStats stats = stream.getValue()[operation.ordinal()];
+                if (stats.getRequests() > 0) {
+                    text.append(String.format("%s %s: %s%n", stream.getKey(), operation.getApiName(), stats));
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    private OperationStats[] newOperations(String streamId) {
+        OperationStats[] stats = new OperationStats[Operation.values().length];
+        for (Operation operation : Operation.values()) {
+            stats[operation.ordinal()] = new OperationStats();
+            register(stats[operation.ordinal()],
+                    "type=StreamOperation,stream=" + ObjectName.quote(streamId) + ",operation=" + operation.getApiName());
+        }
+        return stats;
+    }
+
+    private void register(Object bean, String properties) {
+        if (jmxDomain == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(jmxDomain + ":" + properties));
+        } catch (JMException e) {
+            logger.warn(String.format("Cannot register %s with JMX: %s", properties, e.toString()));
+        }
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(StringBuilder text, String name, String labels, LatencyHistogram histogram, double scale) {
+        for (double quantile : QUANTILES) {
+            text.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getValueAtPercentile(quantile * 100) * scale).append('\n');
+        }
+        text.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSum() * scale).append('\n');
+        text.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static void counter(StringBuilder text, Map<String, OperationStats[]> byStream, String name, String help,
+                                ToLongFunction<OperationStats> value) {
+        header(text, name, "counter", help);
+        for (Map.Entry<String, OperationStats[]> stream : byStream.entrySet()) {
+            for (Operation operation : Operation.values()) {
+                text.append(name).append('{').append(labels(stream.getKey(), operation)).append("} ")
+                        .append(value.applyAsLong(stream.getValue()[operation.ordinal()])).append('\n');
+            }
+        }
+    }
+
+    private static String labels(String streamId, Operation operation) {
+        return "stream=\"" + escape(streamId) + "\",operation=\"" + operation.getApiName() + "\"";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    public interface OperationStatsMXBean {
+        long getRequests();
+
+        long getErrors();
+
+        long getThrottled();
+
+        long getEntryFailures();
+
+        double getLatencyMeanMicros();
+
+        double getLatencyP50Micros();
+
+        double getLatencyP99Micros();
+
+        double getLatencyP999Micros();
+
+        double getLatencyMaxMicros();
+
+        double getMessagesPerRequestMean();
+
+        long getMessagesPerRequestP50();
+
+        long getMessagesPerRequestP99();
+    }
+
+    /*
+     * Statistics of one operation on one stream. Failed calls count as requests and their latency is recorded too.
+     */
+    public static class OperationStats implements OperationStatsMXBean {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram batchSizes = new LatencyHistogram();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder throttled = new LongAdder();
+        private final LongAdder entryFailures = new LongAdder();
+
+        // A successful call that sent or received messageCount messages; pass 0 for calls without messages.
+        public void recordSuccess(long nanos, int messageCount) {
+            requests.increment();
+            latency.record(nanos);
+            batchSizes.record(messageCount);
+        }
+
+        public void recordFailure(long nanos, Exception e) {
+            requests.increment();
+            latency.record(nanos);
+            if (e instanceof BmcException && ((BmcException) e).getStatusCode() == 429) {
+                throttled.increment();
+            } else {
+                errors.increment();
+            }
+        }
+
+        // A PutMessages entry rejected with the given error in an otherwise successful call.
+        public void recordEntryFailure(String error) {
+            entryFailures.increment();
+            if ("Throttled".equalsIgnoreCase(error)) {
+                throttled.increment();
+            }
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public LatencyHistogram getBatchSizes() {
+            return batchSizes;
+        }
+
+        @Override
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public long getThrottled() {
+            return throttled.sum();
+        }
+
+        @Override
+        public long getEntryFailures() {
+            return entryFailures.sum();
+        }
+
+        @Override
+        public double getLatencyMeanMicros() {
+            return latency.getMean() / 1000;
+        }
+
+        @Override
+        public double getLatencyP50Micros() {
+            return latency.getValueAtPercentile(50) / 1000.0;
+        }
+
+        @Override
+        public double getLatencyP99Micros() {
+            return latency.getValueAtPercentile(99) / 1000.0;
+        }
+
+        @Override
+        public double getLatencyP999Micros() {
+            return latency.getValueAtPercentile(99.9) / 1000.0;
+        }
+
+        @Override
+        public double getLatencyMaxMicros() {
+            return latency.getMax() / 1000.0;
+        }
+
+        @Override
+        public double getMessagesPerRequestMean() {
+            return batchSizes.getMean();
+        }
+
+        @Override
+        public long getMessagesPerRequestP50() {
+            return batchSizes.getValueAtPercentile(50);
+        }
+
+        @Override
+        public long getMessagesPerRequestP99() {
+            return batchSizes.getValueAtPercentile(99);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%s, errors=%s, throttled=%s, entryFailures=%s, p50=%.0f us, p99=%.0f us, messages/request=%.1f",
+                    getRequests(), getErrors(), getThrottled(), getEntryFailures(), getLatencyP50Micros(), getLatencyP99Micros(),
+                    getMessagesPerRequestMean());
+        }
+    }
+
+    public interface PartitionLagMXBean {
+        long getLagMillis();
+
+        long getOffset();
+
+        long getLagMessages();
+    }
+
+    /*
+     * Consumer lag of one partition. The lag is taken when a message is handled, so it stays at its last value while
+     * nothing arrives unless the consumer reports that it caught up. With a ConsumerLagTracker the lag in messages and
+     * the age of the last handled message are refreshed every probe as well.
+     */
+    public static class PartitionLag implements PartitionLagMXBean {
+        private volatile long lagMillis;
+        private volatile long offset = -1;
+        private volatile long lagMessages = -1;
+
+        public void record(long offset, Date timestamp) {
+            this.offset = offset;
+            if (timestamp != null) {
+                this.lagMillis = Math.max(0, System.currentTimeMillis() - timestamp.getTime());
+            }
+        }
+
+        // A fetch found nothing new, so the partition is read up to its head.
+        public void caughtUp() {
+            this.lagMillis = 0;
+        }
+
+        // Lag estimated by a ConsumerLagTracker probe, messages -1 when not known yet.
+        public void recordBacklog(long messages, long lagMillis) {
+            this.lagMessages = messages;
+            this.lagMillis = lagMillis;
+        }
+
+        @Override
+        public long getLagMillis() {
+            return lagMillis;
+        }
+
+        @Override
+        public long getOffset() {
+            return offset;
+        }
+
+        @Override
+        public long getLagMessages() {
+            return lagMessages;
+        }
+    }
+
+    public interface PartitionPollMXBean {
+        int getFetchLimit();
+
+        long getPollIntervalMillis();
+
+        long getThrottled();
+    }
+
+    /*
+     * Fetch limit and poll interval an AdaptivePollScheduler last settled on, updated by the scheduler on every change.
+     */
+    public static class PartitionPoll implements PartitionPollMXBean {
+        private volatile int fetchLimit;
+        private volatile long pollIntervalMillis;
+        private volatile long throttled;
+
+        public void record(int fetchLimit, long pollIntervalMillis, long throttled) {
+            this.fetchLimit = fetchLimit;
+            this.pollIntervalMillis = pollIntervalMillis;
+            this.throttled = throttled;
+        }
+
+        @Override
+        public int getFetchLimit() {
+            return fetchLimit;
+        }
+
+        @Override
+        public long getPollIntervalMillis() {
+            return pollIntervalMillis;
+        }
+
+        @Override
+        public long getThrottled() {
+            return throttled;
+        }
+    }
+}
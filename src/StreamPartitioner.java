@@ -0,0 +1,63 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Interface for assigning outgoing messages to partitions on the producer side.
+ * The Streaming service places a message by hashing its key and offers no way to name a partition, so the partition
+ * returned here is the producer's own grouping: BatchingStreamProducer orders each request into one dense run per
+ * partition and caps how much of a request one partition may take, so a hot key cannot crowd everyone else out of a
+ * batch. Messages sharing a key must map to the same partition, otherwise their order is no longer kept.
+ * Implementations are called from every thread that sends, and onBatchSent from the sender thread.
+ */
+public interface StreamPartitioner {
+
+    int partition(byte[] key, int partitions);
+
+    // Called after each request; lets sticky partitioners move on to the next partition.
+    default void onBatchSent() {
+    }
+
+    /*
+     * Partition by a hash of the key, messages without a key go to partition 0.
+     */
+    static StreamPartitioner hashByKey() {
+        return (key, partitions) -> key == null ? 0 : Math.floorMod(fnv1a(key), partitions);
+    }
+
+    /*
+     * Keyed messages by hash, keyless messages spread evenly over the partitions one after the other.
+     */
+    static StreamPartitioner roundRobin() {
+        AtomicInteger next = new AtomicInteger();
+        return (key, partitions) -> key == null ? Math.floorMod(next.getAndIncrement(), partitions) : Math.floorMod(fnv1a(key), partitions);
+    }
+
+    /*
+     * Keyed messages by hash, keyless messages all to one partition until a request has been sent, then to the next.
+     * Keyless messages then fill one dense run per request instead of being scattered over every partition.
+     */
+    static StreamPartitioner stickyBatch() {
+        return new StreamPartitioner() {
+            private final AtomicInteger sticky = new AtomicInteger();
+
+            @Override
+            public int partition(byte[] key, int partitions) {
+                return key == null ? Math.floorMod(sticky.get(), partitions) : Math.floorMod(fnv1a(key), partitions);
+            }
+
+            @Override
+            public void onBatchSent() {
+                sticky.incrementAndGet();
+            }
+        };
+    }
+
+    // 32 bit FNV-1a, cheap and well spread for short keys such as host names.
+    static int fnv1a(byte[] key) {
+        int hash = 0x811C9DC5;
+        for (byte b : key) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,353 @@
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.streaming.StreamAdminClient;
+import com.oracle.bmc.streaming.model.CreateStreamDetails;
+import com.oracle.bmc.streaming.model.Stream;
+import com.oracle.bmc.streaming.model.Stream.LifecycleState;
+import com.oracle.bmc.streaming.model.StreamSummary;
+import com.oracle.bmc.streaming.requests.CreateStreamRequest;
+import com.oracle.bmc.streaming.requests.DeleteStreamRequest;
+import com.oracle.bmc.streaming.requests.ListStreamsRequest;
+import com.oracle.bmc.streaming.responses.ListStreamsResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/*
+ * Class brings the streams of a compartment in line with a list of StreamSpecs.
+ * reconcile lists what exists, creates the specified streams that are missing and deletes the existing streams under
+ * the managed name prefix that are not specified. Streams outside the prefix are never touched. A stream whose
+ * partition count differs from its spec is reported as a conflict rather than recreated, since the service cannot
+ * change it and recreating would drop its data. Retention only applies to streams being created.
+ * Create and delete calls run on a pool of maxConcurrency threads. A throttled call pauses every worker for the
+ * backoff, not only the one that was throttled, so the whole run slows down instead of each thread hammering on
+ * alone; the call is then retried by the PutMessagesRetrier rules. Created streams are awaited with a shared
+ * StreamLifecycleWaiter, which holds no thread while a stream is Creating.
+ * The admin client is used as given, so a fake client or one pointed at a local endpoint is enough for testing.
+ */
+public class StreamProvisioner implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    private final StreamAdminClient adminClient;
+    private final String managedPrefix;
+    private final PutMessagesRetrier retrier;
+    private final long activeTimeoutMillis;
+    private final ExecutorService workers;
+    private final StreamLifecycleWaiter waiter;
+    // All workers wait until this time after any of them was throttled.
+    private final AtomicLong pausedUntilNanos = new AtomicLong(System.nanoTime());
+    private final AtomicInteger throttled = new AtomicInteger();
+
+    private StreamProvisioner(Builder builder) {
+        this.adminClient = builder.adminClient;
+        this.managedPrefix = builder.managedPrefix;
+        this.retrier = builder.retrier != null ? builder.retrier : PutMessagesRetrier.builder().maxAttempts(8).build();
+        this.activeTimeoutMillis = builder.activeTimeoutMillis;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(builder.maxConcurrency, runnable -> {
+            Thread thread = new Thread(runnable, "stream-provisioner-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.waiter = activeTimeoutMillis > 0 ? StreamLifecycleWaiter.builder().adminClient(adminClient).build() : null;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /*
+     * Creates the missing streams of the spec and deletes the managed streams not in it, then blocks until every call
+     * has finished and, if configured, every created stream is active.
+     */
+    public ProvisioningResult reconcile(String compartmentId, List<StreamSpec> specs) {
+        long start = System.nanoTime();
+        Map<String, StreamSpec> wanted = new LinkedHashMap<>();
+        for (StreamSpec spec : specs) {
+            if (!spec.getName().startsWith(managedPrefix)) {
+                throw new IllegalArgumentException(String.format("Stream %s is outside the managed prefix '%s'.", spec.getName(), managedPrefix));
+            }
+            wanted.put(spec.getName(), spec);
+        }
+        Map<String, StreamSummary> existing = listManagedStreams(compartmentId);
+        ProvisioningResult result = new ProvisioningResult();
+        int throttledBefore = throttled.get();
+
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (StreamSpec spec : wanted.values()) {
+            StreamSummary current = existing.get(spec.getName());
+            if (current == null) {
+                calls.add(CompletableFuture
+                        .supplyAsync(() -> create(compartmentId, spec), workers)
+                        .thenCompose(stream -> waiter == null || stream.getLifecycleState() == LifecycleState.Active
+                                ? CompletableFuture.completedFuture(stream)
+                                : waiter.awaitActive(stream.getId(), activeTimeoutMillis))
+                        .handle((stream, error) -> {
+                            result.record(spec.getName(), error == null ? result.created : null, error);
+                            return null;
+                        }));
+            } else if (current.getLifecycleState() == LifecycleState.Failed) {
+                result.record(spec.getName(), null, new IllegalStateException("Stream " + current.getId() + " is Failed."));
+            } else if (current.getPartitions() != null && current.getPartitions() != spec.getPartitions()) {
+                result.record(spec.getName(), result.conflicts, null);
+            } else {
+                result.record(spec.getName(), result.unchanged, null);
+            }
+        }
+        for (StreamSummary current : existing.values()) {
+            if (!wanted.containsKey(current.getName())) {
+                calls.add(CompletableFuture
+                        .runAsync(() -> delete(current), workers)
+                        .handle((ignored, error) -> {
+                            result.record(current.getName(), error == null ? result.deleted : null, error);
+                            return null;
+                        }));
+            }
+        }
+        CompletableFuture.allOf(calls.toArray(new CompletableFuture[0])).join();
+
+        result.throttled = throttled.get() - throttledBefore;
+        result.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        logger.info(String.format("Provisioning of %s finished: %s", managedPrefix, result));
+        return result;
+    }
+
+    /*
+     * Deletes every stream under the managed prefix.
+     */
+    public ProvisioningResult teardown(String compartmentId) {
+        return reconcile(compartmentId, Collections.emptyList());
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        if (waiter != null) {
+            waiter.close();
+        }
+    }
+
+    // Streams being created count as existing, deleted or deleting ones do not.
+    private Map<String, StreamSummary> listManagedStreams(String compartmentId) {
+        Map<String, StreamSummary> streams = new HashMap<>();
+        String page = null;
+        do {
+            String currentPage = page;
+            ListStreamsResponse listResponse = withRetries("ListStreams", () -> adminClient.listStreams(
+                    ListStreamsRequest.builder().compartmentId(compartmentId).page(currentPage).build()));
+            for (StreamSummary summary : listResponse.getItems()) {
+                if (summary.getName().startsWith(managedPrefix)
+                        && summary.getLifecycleState() != LifecycleState.Deleting
+                        && summary.getLifecycleState() != LifecycleState.Deleted) {
+                    streams.put(summary.getName(), summary);
+                }
+            }
+            page = listResponse.getOpcNextPage();
+        } while (page != null);
+        return streams;
+    }
+
+    private Stream create(String compartmentId, StreamSpec spec) {
+        CreateStreamDetails details = CreateStreamDetails.builder()
+                .compartmentId(compartmentId)
+                .name(spec.getName())
+                .partitions(spec.getPartitions())
+                .retentionInHours(spec.getRetentionInHours())
+                .build();
+        return withRetries("CreateStream " + spec.getName(), () -> adminClient.createStream(
+                CreateStreamRequest.builder().createStreamDetails(details).build())).getStream();
+    }
+
+    private void delete(StreamSummary stream) {
+        try {
+            withRetries("DeleteStream " + stream.getName(), () -> adminClient.deleteStream(
+                    DeleteStreamRequest.builder().streamId(stream.getId()).build()));
+        } catch (BmcException e) {
+            // Deleted by someone else in the meantime, which is what was wanted.
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+        }
+    }
+
+    private <T> T withRetries(String call, Supplier<T> request) {
+        for (int attempts = 1; ; attempts++) {
+            awaitPause();
+            try {
+                T response = request.get();
+                retrier.recordSuccess();
+                return response;
+            } catch (BmcException e) {
+                if (!retrier.shouldRetry(e, attempts)) {
+                    throw e;
+                }
+                if (e.getStatusCode() == 429) {
+                    throttled.incrementAndGet();
+                }
+                long backoff = retrier.backoffNanos(attempts);
+                pausedUntilNanos.accumulateAndGet(System.nanoTime() + backoff, Math::max);
+                logger.info(String.format("%s failed with %s, attempt %s, backing off %s ms.",
+                        call, e.getStatusCode(), attempts, TimeUnit.NANOSECONDS.toMillis(backoff)));
+            }
+        }
+    }
+
+    private void awaitPause() {
+        for (long wait = pausedUntilNanos.get() - System.nanoTime(); wait > 0; wait = pausedUntilNanos.get() - System.nanoTime()) {
+            LockSupport.parkNanos(wait);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CompletionException(new InterruptedException("Provisioning was stopped."));
+            }
+        }
+    }
+
+    /*
+     * Desired state of one stream. Retention is left to the service default when null.
+     */
+    public static class StreamSpec {
+        private final String name;
+        private final int partitions;
+        private final Integer retentionInHours;
+
+        public StreamSpec(String name, int partitions, Integer retentionInHours) {
+            this.name = name;
+            this.partitions = partitions;
+            this.retentionInHours = retentionInHours;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getPartitions() {
+            return partitions;
+        }
+
+        public Integer getRetentionInHours() {
+            return retentionInHours;
+        }
+    }
+
+    /*
+     * Outcome of one reconcile, stream names by what happened to them. Lists are filled from the worker threads.
+     */
+    public static class ProvisioningResult {
+        private final List<String> created = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> unchanged = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> conflicts = Collections.synchronizedList(new ArrayList<>());
+        private final Map<String, Throwable> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+        private int throttled;
+        private long elapsedMillis;
+
+        private void record(String name, List<String> outcome, Throwable error) {
+            if (error != null) {
+                failures.put(name, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            } else {
+                outcome.add(name);
+            }
+        }
+
+        public List<String> getCreated() {
+            return created;
+        }
+
+        public List<String> getDeleted() {
+            return deleted;
+        }
+
+        public List<String> getUnchanged() {
+            return unchanged;
+        }
+
+        // Existing streams whose partition count differs from their spec.
+        public List<String> getConflicts() {
+            return conflicts;
+        }
+
+        public Map<String, Throwable> getFailures() {
+            return failures;
+        }
+
+        public boolean isSuccessful() {
+            return failures.isEmpty() && conflicts.isEmpty();
+        }
+
+        public int getThrottled() {
+            return throttled;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s created, %s deleted, %s unchanged, %s conflicts, %s failed, %s throttled calls in %s ms",
+                    created.size(), deleted.size(), unchanged.size(), conflicts.size(), failures.size(), throttled, elapsedMillis);
+        }
+    }
+
+    public static class Builder {
+        private StreamAdminClient adminClient;
+        private String managedPrefix;
+        private int maxConcurrency = 8;
+        private long activeTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+        private PutMessagesRetrier retrier;
+
+        public Builder adminClient(StreamAdminClient adminClient) {
+            this.adminClient = adminClient;
+            return this;
+        }
+
+        // Only streams whose name starts with this prefix are created or deleted.
+        public Builder managedPrefix(String managedPrefix) {
+            this.managedPrefix = managedPrefix;
+            return this;
+        }
+
+        public Builder maxConcurrency(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        // How long to wait for created streams to become active; 0 returns as soon as the create calls are accepted.
+        public Builder activeTimeoutMillis(long activeTimeoutMillis) {
+            this.activeTimeoutMillis = activeTimeoutMillis;
+            return this;
+        }
+
+        // Retry rules for throttled and failed admin calls.
+        public Builder retrier(PutMessagesRetrier retrier) {
+            this.retrier = retrier;
+            return this;
+        }
+
+        public StreamProvisioner build() {
+            if (adminClient == null || StringUtils.isEmpty(managedPrefix)) {
+                throw new IllegalArgumentException("An admin client and a managed name prefix are required.");
+            }
+            if (maxConcurrency < 1 || activeTimeoutMillis < 0) {
+                throw new IllegalArgumentException("Concurrency must be positive and the active timeout not negative.");
+            }
+            return new StreamProvisioner(this);
+        }
+    }
+}
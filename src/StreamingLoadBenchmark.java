@@ -0,0 +1,402 @@
+import com.oracle.bmc.ClientConfiguration;
+import com.oracle.bmc.auth.AuthenticationDetailsProvider;
+import com.oracle.bmc.streaming.StreamAdminClient;
+import com.oracle.bmc.streaming.StreamClient;
+import com.oracle.bmc.streaming.model.PutMessagesDetails;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.Stream;
+import com.oracle.bmc.streaming.requests.GetStreamRequest;
+import com.oracle.bmc.streaming.requests.PutMessagesRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Benchmark runs the producer and consumer engines end to end against a FakeStreamingService, through the real SDK
+ * clients and http, and reports msgs/s, bytes/s and p50/p99 latency for each.
+ * Producers send from several threads; their latency is from send to acknowledgement. Consumers are measured twice:
+ * draining a backlog written straight into the fake, and live, reading while a BatchingStreamProducer writes, with
+ * latency from send to handling. Every value carries its sequence number and send time, so lost and repeated
+ * messages are seen. New engines are added to producerEngines or consumerEngines.
+ * Usage: StreamingLoadBenchmark [--messages n] [--size bytes] [--threads n] [--partitions n] [--latency ms]
+ *        [--jitter ms] [--throttle rate] [--errors rate] [--entry-throttle rate]
+ * Faults are injected only into the measured runs; run with the same classpath as ChipsStreams.
+ */
+public class StreamingLoadBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    // Sequence number and System.nanoTime() at send.
+    private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES;
+    private static final long TIMEOUT_MINUTES = 10;
+
+    /*
+     * Something that publishes messages; the future completes when the service acknowledged the message.
+     */
+    public interface ProducerEngine extends AutoCloseable {
+        CompletableFuture<?> send(byte[] key, byte[] value) throws Exception;
+    }
+
+    /*
+     * Something that reads a whole stream and hands every message to the handler until it is closed.
+     */
+    public interface ConsumerEngine extends AutoCloseable {
+        void start() throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface ProducerFactory {
+        ProducerEngine create(StreamClient streamClient, Stream stream) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface ConsumerFactory {
+        ConsumerEngine create(StreamClient streamClient, Stream stream, MessageHandler handler) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        Map<String, ProducerFactory> producerEngines = new LinkedHashMap<>();
+        // One PutMessages call per message, as ChipsStreams sends.
+        producerEngines.put("putMessages per message", (streamClient, stream) -> new ProducerEngine() {
+            @Override
+            public CompletableFuture<?> send(byte[] key, byte[] value) {
+                streamClient.putMessages(PutMessagesRequest.builder()
+                        .streamId(stream.getId())
+                        .putMessagesDetails(PutMessagesDetails.builder()
+                                .messages(List.of(PutMessagesDetailsEntry.builder().key(key).value(value).build()))
+                                .build())
+                        .build());
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        producerEngines.put("BatchingStreamProducer", (streamClient, stream) -> {
+            BatchingStreamProducer producer = BatchingStreamProducer.builder()
+                    .streamClient(streamClient)
+                    .streamId(stream.getId())
+                    .lingerMillis(5)
+                    .build();
+            return new ProducerEngine() {
+                @Override
+                public CompletableFuture<?> send(byte[] key, byte[] value) {
+                    return producer.send(key, value);
+                }
+
+                @Override
+                public void close() {
+                    producer.close();
+                }
+            };
+        });
+
+        Map<String, ConsumerFactory> consumerEngines = new LinkedHashMap<>();
+        consumerEngines.put("PartitionedStreamConsumer", (streamClient, stream, handler) -> {
+            PartitionedStreamConsumer consumer = PartitionedStreamConsumer.builder()
+                    .streamClient(streamClient)
+                    .stream(stream)
+                    .handler(handler)
+                    .maxIdleMillis(100)
+                    .build();
+            return engine(consumer::start, consumer);
+        });
+        consumerEngines.put("GroupStreamConsumer", (streamClient, stream, handler) -> {
+            GroupStreamConsumer consumer = GroupStreamConsumer.builder()
+                    .streamClient(streamClient)
+                    .streamId(stream.getId())
+                    .groupName("benchmark")
+                    .instanceName("benchmark-1")
+                    .handler(handler)
+                    .maxIdleMillis(100)
+                    .build();
+            return engine(consumer::start, consumer);
+        });
+
+        try (FakeStreamingService service = FakeStreamingService.builder().build()) {
+            AuthenticationDetailsProvider provider = FakeStreamingService.authenticationProvider();
+            ClientConfiguration configuration = ClientConfiguration.builder().build();
+            StreamClient streamClient = new StreamClient(provider, configuration);
+            streamClient.setEndpoint(service.getEndpoint());
+            StreamAdminClient adminClient = new StreamAdminClient(provider, configuration);
+            adminClient.setEndpoint(service.getEndpoint());
+            System.out.println(String.format("%s messages of %s bytes, %s producer threads, %s partitions, %s",
+                    options.messages, options.size, options.threads, options.partitions, options));
+            try {
+                for (Map.Entry<String, ProducerFactory> engine : producerEngines.entrySet()) {
+                    Stream stream = newStream(service, adminClient, options);
+                    options.injectFaults(service);
+                    try (ProducerEngine producer = engine.getValue().create(streamClient, stream)) {
+                        System.out.println(runProducer(engine.getKey(), producer, options));
+                    }
+                    options.clearFaults(service);
+                }
+                for (Map.Entry<String, ConsumerFactory> engine : consumerEngines.entrySet()) {
+                    Stream stream = newStream(service, adminClient, options);
+                    for (int i = 0; i < options.messages; i++) {
+                        service.append(stream.getId(), key(i, options), value(i, options));
+                    }
+                    options.injectFaults(service);
+                    System.out.println(runConsumer(engine.getKey() + " backlog", engine.getValue(), streamClient, stream, null, options));
+                    options.clearFaults(service);
+
+                    stream = newStream(service, adminClient, options);
+                    options.injectFaults(service);
+                    try (ProducerEngine producer = producerEngines.get("BatchingStreamProducer").create(streamClient, stream)) {
+                        System.out.println(runConsumer(engine.getKey() + " live", engine.getValue(), streamClient, stream, producer, options));
+                    }
+                    options.clearFaults(service);
+                }
+                System.out.println("Service: " + service);
+                System.out.print(StreamMetrics.shared());
+            } finally {
+                streamClient.close();
+                adminClient.close();
+            }
+        }
+    }
+
+    // Sends every message and waits for all acknowledgements.
+    private static Report runProducer(String name, ProducerEngine producer, Options options) throws Exception {
+        AtomicLongArray latencies = new AtomicLongArray(options.messages);
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch acknowledged = new CountDownLatch(options.messages);
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < options.threads; t++) {
+            final int first = t;
+            Thread thread = new Thread(() -> {
+                for (int i = first; i < options.messages; i += options.threads) {
+                    final int sequence = i;
+                    byte[] value = value(sequence, options);
+                    long sent = System.nanoTime();
+                    try {
+                        producer.send(key(sequence, options), value).whenComplete((result, error) -> {
+                            if (error != null) {
+                                failures.incrementAndGet();
+                            }
+                            latencies.set(sequence, System.nanoTime() - sent);
+                            acknowledged.countDown();
+                        });
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        acknowledged.countDown();
+                    }
+                }
+            }, "benchmark-producer-" + t);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!acknowledged.await(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            logger.warn(name + " timed out waiting for acknowledgements.");
+        }
+        return new Report(name, options.messages, options.size, System.nanoTime() - start, latencies, failures.get(), 0);
+    }
+
+    // Starts the consumer, optionally produces while it runs, and waits until every message was handled once.
+    private static Report runConsumer(String name, ConsumerFactory factory, StreamClient streamClient, Stream stream,
+                                      ProducerEngine producer, Options options) throws Exception {
+        AtomicLongArray latencies = new AtomicLongArray(options.messages);
+        AtomicInteger duplicates = new AtomicInteger();
+        CountDownLatch handled = new CountDownLatch(options.messages);
+        MessageHandler handler = message -> {
+            ByteBuffer value = ByteBuffer.wrap(message.getValue());
+            int sequence = value.getInt(0);
+            // A backlog has no meaningful send time, only throughput is reported for it.
+            long latency = producer == null ? 0 : Math.max(1, System.nanoTime() - value.getLong(Integer.BYTES));
+            if (latencies.compareAndSet(sequence, 0, latency == 0 ? -1 : latency)) {
+                handled.countDown();
+            } else {
+                duplicates.incrementAndGet();
+            }
+        };
+        try (ConsumerEngine consumer = factory.create(streamClient, stream, handler)) {
+            long start = System.nanoTime();
+            consumer.start();
+            if (producer != null) {
+                for (int i = 0; i < options.messages; i++) {
+                    producer.send(key(i, options), value(i, options));
+                }
+            }
+            if (!handled.await(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                logger.warn(name + " timed out, " + handled.getCount() + " messages not handled.");
+            }
+            long elapsed = System.nanoTime() - start;
+            return new Report(name, options.messages, options.size, elapsed, producer == null ? null : latencies,
+                    (int) handled.getCount(), duplicates.get());
+        }
+    }
+
+    private static ConsumerEngine engine(ThrowingRunnable start, AutoCloseable consumer) {
+        return new ConsumerEngine() {
+            @Override
+            public void start() throws Exception {
+                start.run();
+            }
+
+            @Override
+            public void close() throws Exception {
+                consumer.close();
+            }
+        };
+    }
+
+    @FunctionalInterface
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+
+    // Created in the fake, then read back with GetStream as the examples look their stream up.
+    private static Stream newStream(FakeStreamingService service, StreamAdminClient adminClient, Options options) {
+        Stream created = service.createStream("benchmark-" + System.nanoTime(), options.partitions);
+        return adminClient.getStream(GetStreamRequest.builder().streamId(created.getId()).build()).getStream();
+    }
+
+    private static byte[] key(int sequence, Options options) {
+        return ("machine-" + (sequence % (options.partitions * 4))).getBytes(UTF_8);
+    }
+
+    private static byte[] value(int sequence, Options options) {
+        ByteBuffer value = ByteBuffer.allocate(options.size);
+        value.putInt(sequence).putLong(System.nanoTime());
+        return value.array();
+    }
+
+    private static class Report {
+        private final String name;
+        private final double messagesPerSecond;
+        private final double bytesPerSecond;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final int failures;
+        private final int duplicates;
+
+        // Latencies of zero were never recorded, -1 marks handled messages without a latency.
+        private Report(String name, int messages, int size, long elapsedNanos, AtomicLongArray latencies, int failures, int duplicates) {
+            this.name = name;
+            double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+            this.messagesPerSecond = messages / seconds;
+            this.bytesPerSecond = messages * (double) size / seconds;
+            long[] sorted = new long[latencies == null ? 0 : latencies.length()];
+            int count = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                long latency = latencies.get(i);
+                if (latency > 0) {
+                    sorted[count++] = latency;
+                }
+            }
+            Arrays.sort(sorted, 0, count);
+            this.p50Millis = percentileMillis(sorted, count, 0.50);
+            this.p99Millis = percentileMillis(sorted, count, 0.99);
+            this.failures = failures;
+            this.duplicates = duplicates;
+        }
+
+        private static double percentileMillis(long[] sorted, int count, double percentile) {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            int index = Math.min(count - 1, (int) Math.ceil(percentile * count) - 1);
+            return sorted[Math.max(0, index)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-36s %10.0f msgs/s %8.2f MB/s p50 %8.2f ms p99 %8.2f ms failed %s duplicates %s",
+                    name, messagesPerSecond, bytesPerSecond / (1024 * 1024), p50Millis, p99Millis, failures, duplicates);
+        }
+    }
+
+    private static class Options {
+        private int messages = 20000;
+        private int size = 256;
+        private int threads = 4;
+        private int partitions = 4;
+        private long latencyMillis;
+        private long jitterMillis;
+        private double throttleRate;
+        private double errorRate;
+        private double entryThrottleRate;
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--messages":
+                        options.messages = Integer.parseInt(value);
+                        break;
+                    case "--size":
+                        options.size = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        options.threads = Integer.parseInt(value);
+                        break;
+                    case "--partitions":
+                        options.partitions = Integer.parseInt(value);
+                        break;
+                    case "--latency":
+                        options.latencyMillis = Long.parseLong(value);
+                        break;
+                    case "--jitter":
+                        options.jitterMillis = Long.parseLong(value);
+                        break;
+                    case "--throttle":
+                        options.throttleRate = Double.parseDouble(value);
+                        break;
+                    case "--errors":
+                        options.errorRate = Double.parseDouble(value);
+                        break;
+                    case "--entry-throttle":
+                        options.entryThrottleRate = Double.parseDouble(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (options.messages < 1 || options.threads < 1 || options.partitions < 1 || options.size < HEADER_BYTES) {
+                throw new IllegalArgumentException("Counts must be positive and messages at least " + HEADER_BYTES + " bytes.");
+            }
+            return options;
+        }
+
+        private void injectFaults(FakeStreamingService service) {
+            service.setLatency(latencyMillis, jitterMillis);
+            service.setThrottleRate(throttleRate);
+            service.setErrorRate(errorRate);
+            service.setEntryThrottleRate(entryThrottleRate);
+        }
+
+        private void clearFaults(FakeStreamingService service) {
+            service.setLatency(0, 0);
+            service.setThrottleRate(0);
+            service.setErrorRate(0);
+            service.setEntryThrottleRate(0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency %s+%s ms, throttle %s, errors %s, entry throttle %s",
+                    latencyMillis, jitterMillis, throttleRate, errorRate, entryThrottleRate);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Class runs a group of tasks, each on its own thread from a ThreadFactory, and ties their lifetime to the scope:
+ * the first task that fails cancels the others, shutdown cancels them all, and close returns only once every thread
+ * has finished, so no loop outlives the code that started it. Cancelling interrupts the task's thread, which ends the
+ * sleeps, queue waits and AdaptivePollScheduler pauses the loops block in.
+ * It is the shutdown on failure policy of Java's StructuredTaskScope, which is still a preview API and not available
+ * on the Java 11 this code targets; with a ThreadMode.VIRTUAL factory it gives the same one virtual thread per task.
+ * Shutdown and close may come from another thread than the one forking; a task forked after shutdown never runs.
+ */
+public class TaskScope implements AutoCloseable {
+
+    private final ThreadFactory threadFactory;
+    private final List<Subtask<?>> subtasks = new CopyOnWriteArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean shutdown = false;
+
+    public TaskScope(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /*
+     * Starts the task on a new thread. After shutdown the task is not started and its subtask is cancelled.
+     */
+    public <T> Subtask<T> fork(Callable<T> task) {
+        Subtask<T> subtask = new Subtask<>(task);
+        subtasks.add(subtask);
+        if (shutdown) {
+            subtask.cancel(false);
+            return subtask;
+        }
+        subtask.thread = threadFactory.newThread(subtask);
+        subtask.thread.start();
+        return subtask;
+    }
+
+    public Subtask<Void> fork(Runnable task) {
+        return fork(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /*
+     * Cancels every task that is still running, interrupting its thread. Does not wait for them, close does.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Subtask<?> subtask : subtasks) {
+            subtask.cancel(true);
+        }
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /*
+     * Waits until every task has finished, or one failed and the rest were cancelled.
+     */
+    public TaskScope join() throws InterruptedException {
+        for (Subtask<?> subtask : subtasks) {
+            subtask.awaitThread(0);
+        }
+        return this;
+    }
+
+    /*
+     * Like join, but shuts the scope down when the timeout passes first and then throws a TimeoutException.
+     */
+    public TaskScope joinUntil(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Subtask<?> subtask : subtasks) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !subtask.awaitThread(remaining)) {
+                shutdown();
+                throw new TimeoutException("Tasks did not finish in time.");
+            }
+        }
+        return this;
+    }
+
+    /*
+     * Throws the first failure of any task, wrapped in an ExecutionException; after join.
+     */
+    public void throwIfFailed() throws ExecutionException {
+        Throwable error = failure.get();
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+    }
+
+    public Throwable getFailure() {
+        return failure.get();
+    }
+
+    /*
+     * Cancels what still runs and waits for every thread of the scope to exit.
+     */
+    @Override
+    public void close() {
+        shutdown();
+        boolean interrupted = false;
+        for (Subtask<?> subtask : subtasks) {
+            while (true) {
+                try {
+                    subtask.awaitThread(0);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * One forked task; a FutureTask so its result, failure or cancellation can be read once the scope was joined.
+     */
+    public class Subtask<T> extends FutureTask<T> {
+        // Set by fork, read by whichever thread joins or closes the scope.
+        private volatile Thread thread;
+
+        private Subtask(Callable<T> task) {
+            super(task);
+        }
+
+        @Override
+        protected void setException(Throwable error) {
+            super.setException(error);
+            if (!shutdown && failure.compareAndSet(null, error)) {
+                shutdown();
+            }
+        }
+
+        // Waits for the thread to exit, not just for the future, so the task's finally blocks have run too.
+        private boolean awaitThread(long timeoutNanos) throws InterruptedException {
+            if (thread == null) {
+                return true;
+            }
+            if (timeoutNanos <= 0) {
+                thread.join();
+                return true;
+            }
+            TimeUnit.NANOSECONDS.timedJoin(thread, timeoutNanos);
+            return !thread.isAlive();
+        }
+    }
+}
@@ -0,0 +1,465 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Class is a small columnar file format for exported telemetry, so analysis can scan hours of samples locally and
+ * read only the columns and row groups it needs instead of fetching them from the stream again.
+ *   file      = "TCF1", row group*, footer, int footerLength, "TCF1"
+ *   row group = one deflated chunk per column: a bitmap of the rows that have a value, then the values of those rows,
+ *               longs as zigzag varint deltas from the previous value and doubles as 8 bytes
+ *   footer    = int rowGroups, per row group: int rows, int columns, per column:
+ *               name, byte type, long position, int length, int values, long min, long max
+ * Min and max are per column and row group, doubles stored as their bits, so a reader skips whole row groups whose
+ * range cannot match without inflating them. Every row has the stream columns PARTITION, OFFSET, STREAM_TIME and
+ * EVENT_TIME, metrics are columns named after the metric and may be missing in some rows.
+ */
+public class TelemetryColumnFile {
+
+    public static final String SUFFIX = ".tcf";
+    public static final String PARTITION = "_partition";
+    public static final String OFFSET = "_offset";
+    // Message timestamp, when the stream accepted the message.
+    public static final String STREAM_TIME = "_streamTime";
+    // Sample time from the payload, the message timestamp when it has none.
+    public static final String EVENT_TIME = "_time";
+
+    private static final byte[] MAGIC = {'T', 'C', 'F', '1'};
+    private static final byte LONG = 0;
+    private static final byte DOUBLE = 1;
+
+    private TelemetryColumnFile() {
+    }
+
+    public static Writer create(Path file, int rowGroupRows) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        return new Writer(Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), rowGroupRows);
+    }
+
+    public static Reader open(Path file) throws IOException {
+        return new Reader(FileChannel.open(file, StandardOpenOption.READ), file);
+    }
+
+    /*
+     * Column files anywhere under the directory, in path order.
+     */
+    public static List<Path> list(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /*
+     * Writes rows and buffers them column by column until a row group is full. Not thread safe.
+     */
+    public static class Writer implements AutoCloseable {
+        private final DataOutputStream out;
+        private final int rowGroupRows;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final List<RowGroup> rowGroups = new ArrayList<>();
+        private final Map<String, ColumnBuffer> columns = new LinkedHashMap<>();
+        private int rows = 0;
+        private long position;
+        private long totalRows = 0;
+
+        private Writer(OutputStream out, int rowGroupRows) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+            this.rowGroupRows = rowGroupRows;
+            this.out.write(MAGIC);
+            this.position = MAGIC.length;
+        }
+
+        public void append(int partition, long offset, long streamTime, TelemetryRecord record) throws IOException {
+            setLong(PARTITION, partition);
+            setLong(OFFSET, offset);
+            setLong(STREAM_TIME, streamTime);
+            setLong(EVENT_TIME, record.getTimestampMillis() > 0 ? record.getTimestampMillis() : streamTime);
+            for (Map.Entry<String, Long> value : record.getLongValues().entrySet()) {
+                setLong(value.getKey(), value.getValue());
+            }
+            for (Map.Entry<String, Double> value : record.getDoubleValues().entrySet()) {
+                setDouble(value.getKey(), value.getValue());
+            }
+            rows++;
+            totalRows++;
+            if (rows == rowGroupRows) {
+                flushRowGroup();
+            }
+        }
+
+        public long getRows() {
+            return totalRows;
+        }
+
+        // Bytes written so far, the last row group and the footer come on close.
+        public long getBytes() {
+            return position;
+        }
+
+        public int getRowGroups() {
+            return rowGroups.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushRowGroup();
+                ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+                DataOutputStream footer = new DataOutputStream(footerBytes);
+                footer.writeInt(rowGroups.size());
+                for (RowGroup rowGroup : rowGroups) {
+                    footer.writeInt(rowGroup.rows);
+                    footer.writeInt(rowGroup.columns.size());
+                    for (Column column : rowGroup.columns.values()) {
+                        footer.writeUTF(column.name);
+                        footer.writeByte(column.type);
+                        footer.writeLong(column.position);
+                        footer.writeInt(column.length);
+                        footer.writeInt(column.values);
+                        footer.writeLong(column.min);
+                        footer.writeLong(column.max);
+                    }
+                }
+                footerBytes.writeTo(out);
+                out.writeInt(footerBytes.size());
+                out.write(MAGIC);
+                position += footerBytes.size() + 4 + MAGIC.length;
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+
+        // A metric that changes type between samples is converted to the type of its column in this file.
+        private void setLong(String name, long value) {
+            ColumnBuffer column = column(name, LONG);
+            column.set(rows, column.type == LONG ? value : Double.doubleToLongBits(value));
+        }
+
+        private void setDouble(String name, double value) {
+            ColumnBuffer column = column(name, DOUBLE);
+            column.set(rows, column.type == DOUBLE ? Double.doubleToLongBits(value) : Math.round(value));
+        }
+
+        private ColumnBuffer column(String name, byte type) {
+            return columns.computeIfAbsent(name, key -> new ColumnBuffer(key, type, rowGroupRows));
+        }
+
+        private void flushRowGroup() throws IOException {
+            if (rows == 0) {
+                return;
+            }
+            RowGroup rowGroup = new RowGroup(rows);
+            for (ColumnBuffer buffer : columns.values()) {
+                if (buffer.present.isEmpty()) {
+                    continue;
+                }
+                ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+                deflater.reset();
+                try (DataOutputStream data = new DataOutputStream(new DeflaterOutputStream(chunk, deflater, 4096))) {
+                    buffer.writeTo(data, rows);
+                }
+                chunk.writeTo(out);
+                rowGroup.columns.put(buffer.name, new Column(buffer.name, buffer.type, position, chunk.size(),
+                        buffer.present.cardinality(), buffer.min, buffer.max));
+                position += chunk.size();
+                buffer.clear();
+            }
+            rowGroups.add(rowGroup);
+            rows = 0;
+        }
+    }
+
+    // Values of one column for the rows of the row group being written.
+    private static class ColumnBuffer {
+        private final String name;
+        private final byte type;
+        private final BitSet present;
+        private long[] values;
+        private long min;
+        private long max;
+
+        private ColumnBuffer(String name, byte type, int capacity) {
+            this.name = name;
+            this.type = type;
+            this.present = new BitSet(capacity);
+            this.values = new long[Math.min(capacity, 1024)];
+            clear();
+        }
+
+        private void set(int row, long value) {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, Math.max(row + 1, values.length * 2));
+            }
+            values[row] = value;
+            present.set(row);
+            if (type == LONG) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            } else if (!Double.isNaN(Double.longBitsToDouble(value))) {
+                double number = Double.longBitsToDouble(value);
+                min = Double.doubleToLongBits(Math.min(Double.longBitsToDouble(min), number));
+                max = Double.doubleToLongBits(Math.max(Double.longBitsToDouble(max), number));
+            }
+        }
+
+        private void writeTo(DataOutputStream data, int rows) throws IOException {
+            byte[] bitmap = Arrays.copyOf(present.toByteArray(), (rows + 7) / 8);
+            data.write(bitmap);
+            long previous = 0;
+            for (int row = present.nextSetBit(0); row >= 0; row = present.nextSetBit(row + 1)) {
+                if (type == LONG) {
+                    long delta = values[row] - previous;
+                    writeVarLong(data, (delta << 1) ^ (delta >> 63));
+                    previous = values[row];
+                } else {
+                    data.writeLong(values[row]);
+                }
+            }
+        }
+
+        private void clear() {
+            present.clear();
+            min = type == LONG ? Long.MAX_VALUE : Double.doubleToLongBits(Double.POSITIVE_INFINITY);
+            max = type == LONG ? Long.MIN_VALUE : Double.doubleToLongBits(Double.NEGATIVE_INFINITY);
+        }
+    }
+
+    /*
+     * Reads the footer on open; column chunks are read and inflated on demand. Not thread safe.
+     */
+    public static class Reader implements AutoCloseable {
+        private final FileChannel channel;
+        private final Path file;
+        private final List<RowGroup> rowGroups;
+        // Reset for every chunk and ended on close; InflaterInputStream leaves ending an inflater it is given to us.
+        private final Inflater inflater = new Inflater();
+
+        private Reader(FileChannel channel, Path file) throws IOException {
+            this.channel = channel;
+            this.file = file;
+            try {
+                long size = channel.size();
+                ByteBuffer tail = read(size - 4 - MAGIC.length, 4 + MAGIC.length);
+                int footerLength = tail.getInt();
+                byte[] magic = new byte[MAGIC.length];
+                tail.get(magic);
+                if (!Arrays.equals(magic, MAGIC) || footerLength < 4 || footerLength > size) {
+                    throw new IOException(file + " is not a complete telemetry column file.");
+                }
+                ByteBuffer footerBuffer = read(size - 4 - MAGIC.length - footerLength, footerLength);
+                DataInputStream footer = new DataInputStream(new ByteArrayInputStream(footerBuffer.array()));
+                int count = footer.readInt();
+                List<RowGroup> groups = new ArrayList<>(count);
+                for (int g = 0; g < count; g++) {
+                    RowGroup rowGroup = new RowGroup(footer.readInt());
+                    int columns = footer.readInt();
+                    for (int c = 0; c < columns; c++) {
+                        Column column = new Column(footer.readUTF(), footer.readByte(), footer.readLong(), footer.readInt(),
+                                footer.readInt(), footer.readLong(), footer.readLong());
+                        rowGroup.columns.put(column.name, column);
+                    }
+                    groups.add(rowGroup);
+                }
+                this.rowGroups = Collections.unmodifiableList(groups);
+            } catch (IOException | RuntimeException e) {
+                inflater.end();
+                channel.close();
+                throw e;
+            }
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public List<RowGroup> getRowGroups() {
+            return rowGroups;
+        }
+
+        /*
+         * Values of a column in a row group, null when the row group has no value for it.
+         */
+        public ColumnData read(RowGroup rowGroup, String name) throws IOException {
+            Column column = rowGroup.columns.get(name);
+            if (column == null) {
+                return null;
+            }
+            ByteBuffer chunk = read(column.position, column.length);
+            inflater.reset();
+            try (DataInputStream data = new DataInputStream(new InflaterInputStream(
+                    new ByteArrayInputStream(chunk.array()), inflater, 4096))) {
+                byte[] bitmap = new byte[(rowGroup.rows + 7) / 8];
+                data.readFully(bitmap);
+                BitSet present = BitSet.valueOf(bitmap);
+                long[] values = new long[rowGroup.rows];
+                long previous = 0;
+                for (int row = present.nextSetBit(0); row >= 0; row = present.nextSetBit(row + 1)) {
+                    if (column.type == LONG) {
+                        long zigzag = readVarLong(data);
+                        previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                        values[row] = previous;
+                    } else {
+                        values[row] = data.readLong();
+                    }
+                }
+                return new ColumnData(column.type == DOUBLE, present, values);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            channel.close();
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            if (position < 0) {
+                throw new IOException(file + " is truncated.");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException(file + " is truncated.");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /*
+     * A row group as described by the footer: its row count and the statistics of its columns.
+     */
+    public static class RowGroup {
+        private final int rows;
+        private final Map<String, Column> columns = new LinkedHashMap<>();
+
+        private RowGroup(int rows) {
+            this.rows = rows;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public boolean hasColumn(String name) {
+            return columns.containsKey(name);
+        }
+
+        public List<String> getColumnNames() {
+            return new ArrayList<>(columns.keySet());
+        }
+
+        // Whether a long column may hold a value in [from, to); false when the column is missing.
+        public boolean mayContain(String name, long from, long to) {
+            Column column = columns.get(name);
+            return column != null && column.type == LONG && column.max >= from && column.min < to;
+        }
+
+        public double getMin(String name) {
+            Column column = columns.get(name);
+            return column == null ? Double.NaN : column.type == LONG ? column.min : Double.longBitsToDouble(column.min);
+        }
+
+        public double getMax(String name) {
+            Column column = columns.get(name);
+            return column == null ? Double.NaN : column.type == LONG ? column.max : Double.longBitsToDouble(column.max);
+        }
+    }
+
+    private static class Column {
+        private final String name;
+        private final byte type;
+        private final long position;
+        private final int length;
+        private final int values;
+        private final long min;
+        private final long max;
+
+        private Column(String name, byte type, long position, int length, int values, long min, long max) {
+            this.name = name;
+            this.type = type;
+            this.position = position;
+            this.length = length;
+            this.values = values;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /*
+     * Decoded values of one column chunk, by row of its row group.
+     */
+    public static class ColumnData {
+        private final boolean doubles;
+        private final BitSet present;
+        private final long[] values;
+
+        private ColumnData(boolean doubles, BitSet present, long[] values) {
+            this.doubles = doubles;
+            this.present = present;
+            this.values = values;
+        }
+
+        public boolean isPresent(int row) {
+            return present.get(row);
+        }
+
+        public long getLong(int row) {
+            return doubles ? (long) Double.longBitsToDouble(values[row]) : values[row];
+        }
+
+        public double getDouble(int row) {
+            return doubles ? Double.longBitsToDouble(values[row]) : values[row];
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Column chunk ends inside a value.");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in column chunk.");
+    }
+}
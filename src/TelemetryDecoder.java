@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class reads telemetry message values whatever format the producer chose. The serializer is picked per message
+ * from the first byte, so a stream can carry json and binary producers side by side while hosts are migrated.
+ * Compressed values are decompressed first, with the codecs of the given PayloadCompressor.
+ * Values no serializer recognises, or that a serializer cannot decode, yet or at all because they are truncated or
+ * malformed, are returned as null and left to the caller. Pass the message key along, stateful formats like the
+ * binary one keep their state per producer.
+ */
+public class TelemetryDecoder {
+
+    private final PayloadCompressor compressor;
+    private final List<TelemetrySerializer> serializers;
+
+    public TelemetryDecoder(TelemetrySerializer... serializers) {
+        this(PayloadCompressor.builder().build(), serializers);
+    }
+
+    public TelemetryDecoder(PayloadCompressor compressor, TelemetrySerializer... serializers) {
+        this.compressor = compressor;
+        this.serializers = new ArrayList<>(Arrays.asList(serializers));
+    }
+
+    /*
+     * Decoder for every format getCPU can produce; the binary serializer only needs its keyframe cache here.
+     */
+    public static TelemetryDecoder defaultDecoder() {
+        return new TelemetryDecoder(PayloadCompressor.telemetryCompressor(),
+                new JsonTelemetrySerializer(""), new BinaryTelemetrySerializer("", 0));
+    }
+
+    public TelemetryRecord decode(byte[] value) {
+        return decode(null, value);
+    }
+
+    public TelemetryRecord decode(byte[] key, byte[] value) {
+        return decodeDecompressed(key, decompress(value));
+    }
+
+    /*
+     * Text for printing a message value: json and values of no known format as they are, the others decoded, or a
+     * placeholder when that fails.
+     */
+    public String toDisplayString(byte[] value) {
+        return toDisplayString(null, value);
+    }
+
+    public String toDisplayString(byte[] key, byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        byte[] decompressed = decompress(value);
+        if (decompressed != null && (decompressed.length == 0 || decompressed[0] == '{')) {
+            return new String(decompressed, UTF_8);
+        }
+        TelemetryRecord record = decodeDecompressed(key, decompressed);
+        if (record != null) {
+            return record.toString();
+        }
+        if (decompressed != null && serializers.stream().noneMatch(serializer -> serializer.canDeserialize(decompressed))) {
+            return new String(decompressed, UTF_8);
+        }
+        return String.format("<%s bytes not decodable yet>", value.length);
+    }
+
+    private TelemetryRecord decodeDecompressed(byte[] key, byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        for (TelemetrySerializer serializer : serializers) {
+            if (serializer.canDeserialize(value)) {
+                try {
+                    return serializer.deserialize(key, value);
+                } catch (RuntimeException e) {
+                    // Unknown keyframe, or a truncated or malformed value: BufferUnderflowException and the like.
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Null when the value has a codec header but cannot be decompressed.
+    private byte[] decompress(byte[] value) {
+        try {
+            return compressor.decompress(value);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
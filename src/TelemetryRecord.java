@@ -0,0 +1,51 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Class holds one decoded telemetry message: the machine it came from, when it was sampled and its metric values.
+ * Integral metrics and floating point metrics are kept apart, mirroring the long and double columns of a Sample.
+ */
+public class TelemetryRecord {
+
+    private final String machineName;
+    private final long timestampMillis;
+    private final Map<String, Long> longValues;
+    private final Map<String, Double> doubleValues;
+
+    public TelemetryRecord(String machineName, long timestampMillis, Map<String, Long> longValues, Map<String, Double> doubleValues) {
+        this.machineName = machineName;
+        this.timestampMillis = timestampMillis;
+        this.longValues = Collections.unmodifiableMap(new LinkedHashMap<>(longValues));
+        this.doubleValues = Collections.unmodifiableMap(new LinkedHashMap<>(doubleValues));
+    }
+
+    public String getMachineName() {
+        return machineName;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public Map<String, Long> getLongValues() {
+        return longValues;
+    }
+
+    public Map<String, Double> getDoubleValues() {
+        return doubleValues;
+    }
+
+    public Long getLong(String name) {
+        return longValues.get(name);
+    }
+
+    public Double getDouble(String name) {
+        return doubleValues.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%s %s %s", machineName, timestampMillis, longValues, doubleValues);
+    }
+}
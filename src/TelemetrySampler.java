@@ -0,0 +1,259 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/*
+ * Class takes samples on a fixed rate timer and publishes them from a separate thread, so a slow PutMessages call
+ * or a full producer queue no longer stretches the interval between samples.
+ * The sampling thread runs the PayloadSource on a scheduleAtFixedRate timer and offers each payload to an SpscRing;
+ * the publisher thread drains the ring into the BatchingStreamProducer, which does the batching. When publishing
+ * falls behind, the ring fills and its overflow policy decides what is lost; every dropped sample is counted.
+ * With the binary serializer a dropped keyframe leaves the following delta frames undecodable until the next keyframe,
+ * prefer DROP_NEWEST or BLOCK there if gaps must stay short.
+ * Lateness is how far a sample started after its slot on the timer, its maximum shows how steady sampling was.
+ */
+public class TelemetrySampler implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    /*
+     * Produces the message value of one sample; called on the sampling thread only.
+     */
+    @FunctionalInterface
+    public interface PayloadSource {
+        byte[] next() throws Exception;
+    }
+
+    private final PayloadSource source;
+    private final BatchingStreamProducer producer;
+    private final byte[] key;
+    private final BiConsumer<BatchingStreamProducer.PublishResult, Throwable> onPublished;
+    private final long intervalNanos;
+    private final long maxSamples;
+    private final SpscRing<byte[]> ring;
+    private final ScheduledExecutorService timer;
+    private final Thread publisher;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong maxLatenessNanos = new AtomicLong();
+    private long startNanos;
+    private volatile boolean sampling = false;
+
+    private TelemetrySampler(Builder builder) {
+        this.source = builder.source;
+        this.producer = builder.producer;
+        this.key = builder.key;
+        this.onPublished = builder.onPublished;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.intervalMillis);
+        this.maxSamples = builder.maxSamples;
+        this.ring = new SpscRing<>(builder.ringCapacity, builder.overflowPolicy);
+        this.timer = Executors.newSingleThreadScheduledExecutor(builder.threadMode.factory("telemetry-sampler"));
+        this.publisher = builder.threadMode.factory("telemetry-publisher").newThread(this::publishLoop);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public void start() {
+        sampling = true;
+        publisher.start();
+        startNanos = System.nanoTime();
+        timer.scheduleAtFixedRate(this::sampleOnce, 0, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     * Blocks until maxSamples samples were taken, or until close.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        finished.await();
+    }
+
+    /*
+     * Stops sampling, publishes what is still in the ring and flushes the producer. The producer stays open.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            awaitQuietly();
+            return;
+        }
+        sampling = false;
+        timer.shutdown();
+        try {
+            timer.awaitTermination(1, TimeUnit.MINUTES);
+            LockSupport.unpark(publisher);
+            publisher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        producer.flush();
+        finished.countDown();
+        logger.info("Sampler stopped: " + this);
+    }
+
+    private void awaitQuietly() {
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getSampled() {
+        return sampled.get();
+    }
+
+    public long getDropped() {
+        return ring.getDropped();
+    }
+
+    public long getMaxLatenessMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLatenessNanos.get());
+    }
+
+    private void sampleOnce() {
+        if (!sampling) {
+            return;
+        }
+        long taken = sampled.get();
+        long lateness = System.nanoTime() - (startNanos + taken * intervalNanos);
+        maxLatenessNanos.accumulateAndGet(lateness, Math::max);
+        try {
+            ring.offer(source.next());
+        } catch (Throwable e) {
+            // Anything escaping would cancel the timer task without a trace, and with it all later samples.
+            logger.error("Sampling failed: " + e.toString());
+        }
+        LockSupport.unpark(publisher);
+        if (sampled.incrementAndGet() >= maxSamples) {
+            sampling = false;
+            timer.shutdown();
+            CompletableFuture.runAsync(this::close);
+        }
+    }
+
+    private void publishLoop() {
+        while (true) {
+            byte[] payload = ring.poll();
+            if (payload != null) {
+                publish(payload);
+            } else if (!sampling && timer.isTerminated()) {
+                // The last sample may have been offered after the poll above; once the timer is done nothing else comes.
+                while ((payload = ring.poll()) != null) {
+                    publish(payload);
+                }
+                return;
+            } else {
+                // Woken by the sampling thread after every sample; the timeout only covers a missed wake up.
+                LockSupport.parkNanos(intervalNanos);
+            }
+        }
+    }
+
+    private void publish(byte[] payload) {
+        producer.send(key, payload).whenComplete((result, error) -> {
+            if (error != null) {
+                failed.incrementAndGet();
+            } else {
+                published.incrementAndGet();
+            }
+            onPublished.accept(result, error);
+        });
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s sampled, %s published, %s failed, %s dropped, max lateness %s ms",
+                sampled.get(), published.get(), failed.get(), ring.getDropped(), getMaxLatenessMillis());
+    }
+
+    public static class Builder {
+        private PayloadSource source;
+        private BatchingStreamProducer producer;
+        private byte[] key;
+        private BiConsumer<BatchingStreamProducer.PublishResult, Throwable> onPublished = (result, error) -> {
+            if (error != null) {
+                logger.error(error.getMessage());
+            }
+        };
+        private long intervalMillis = 500;
+        private long maxSamples = Long.MAX_VALUE;
+        private int ringCapacity = 1024;
+        private SpscRing.OverflowPolicy overflowPolicy = SpscRing.OverflowPolicy.DROP_OLDEST;
+        private ThreadMode threadMode = ThreadMode.configured();
+
+        public Builder source(PayloadSource source) {
+            this.source = source;
+            return this;
+        }
+
+        public Builder producer(BatchingStreamProducer producer) {
+            this.producer = producer;
+            return this;
+        }
+
+        public Builder key(byte[] key) {
+            this.key = key;
+            return this;
+        }
+
+        // Called with the outcome of every sample sent, on the producer's thread; logs failures by default.
+        public Builder onPublished(BiConsumer<BatchingStreamProducer.PublishResult, Throwable> onPublished) {
+            this.onPublished = onPublished;
+            return this;
+        }
+
+        public Builder intervalMillis(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+            return this;
+        }
+
+        // Stop after this many samples; unlimited by default.
+        public Builder maxSamples(long maxSamples) {
+            this.maxSamples = maxSamples;
+            return this;
+        }
+
+        // Samples buffered between the two threads, rounded up to a power of two.
+        public Builder ringCapacity(int ringCapacity) {
+            this.ringCapacity = ringCapacity;
+            return this;
+        }
+
+        public Builder overflowPolicy(SpscRing.OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        // Threads the timer and the publisher run on; VIRTUAL lets thousands of simulated hosts share one JVM.
+        // Defaults to the streaming.threads system property.
+        public Builder threadMode(ThreadMode threadMode) {
+            this.threadMode = threadMode;
+            return this;
+        }
+
+        public TelemetrySampler build() {
+            if (source == null || producer == null || threadMode == null) {
+                throw new IllegalArgumentException("A payload source and a producer are required.");
+            }
+            if (intervalMillis < 1 || maxSamples < 1 || ringCapacity < 2) {
+                throw new IllegalArgumentException("Interval and sample count must be positive, the ring hold at least 2 samples.");
+            }
+            return new TelemetrySampler(this);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * Interface for the wire formats of host telemetry messages. A serializer turns an OsMetricSampler.Sample into the
+ * value of a PutMessagesDetailsEntry and reads such values back into a TelemetryRecord on the consumer side.
+ * Formats must be recognisable from their first byte so a TelemetryDecoder can pick the right one per message.
+ * Serializing is done by one sampling thread; deserializing may be called from several consumer threads.
+ */
+public interface TelemetrySerializer {
+
+    // Short name used on command lines and in benchmark output.
+    String getName();
+
+    byte[] serialize(OsMetricSampler.Sample sample);
+
+    boolean canDeserialize(byte[] value);
+
+    TelemetryRecord deserialize(byte[] value);
+
+    // Like deserialize(value), for formats whose state depends on the producer, which the message key identifies.
+    default TelemetryRecord deserialize(byte[] key, byte[] value) {
+        return deserialize(value);
+    }
+}
@@ -0,0 +1,63 @@
+import java.net.InetAddress;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Benchmark compares the telemetry wire formats on real samples of this host: message size, how many messages fit in
+ * one PutMessages request, and encode and decode cost per sample.
+ * Samples are taken once up front and replayed in order, so the binary format sees the same keyframe and delta mix
+ * as getCPU with its default keyframe interval. Run with the same classpath as getCPU.
+ */
+public class TelemetrySerializerBenchmark {
+
+    private static final int SAMPLES = 256;
+    private static final int KEYFRAME_INTERVAL = 64;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        MicroBenchmark benchmark = new MicroBenchmark(iterations, iterations);
+        String machineName = InetAddress.getLocalHost().getHostName();
+        byte[] key = machineName.getBytes(UTF_8);
+
+        OsMetricSampler sampler = new OsMetricSampler();
+        OsMetricSampler.Sample[] samples = new OsMetricSampler.Sample[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            samples[i] = sampler.newSample();
+            sampler.sample(samples[i]);
+        }
+
+        TelemetrySerializer[] serializers = {
+                new JsonTelemetrySerializer(machineName),
+                new BinaryTelemetrySerializer(machineName, KEYFRAME_INTERVAL)};
+        for (TelemetrySerializer serializer : serializers) {
+            byte[][] messages = new byte[SAMPLES][];
+            long totalBytes = 0;
+            long totalEncodedBytes = 0;
+            for (int i = 0; i < SAMPLES; i++) {
+                messages[i] = serializer.serialize(samples[i]);
+                totalBytes += messages[i].length;
+                totalEncodedBytes += BatchingStreamProducer.encodedSize(key, messages[i]);
+            }
+            System.out.println(String.format("%s: %.1f bytes/sample, %d samples per %d byte request",
+                    serializer.getName(),
+                    totalBytes / (double) SAMPLES,
+                    BatchingStreamProducer.MAX_REQUEST_BYTES * (long) SAMPLES / totalEncodedBytes,
+                    BatchingStreamProducer.MAX_REQUEST_BYTES));
+
+            int[] next = {0};
+            System.out.println(benchmark.measure(serializer.getName() + " serialize", () -> {
+                byte[] message = serializer.serialize(samples[next[0]++ & (SAMPLES - 1)]);
+                return message.length;
+            }));
+            // Decode with a separate instance, as a consumer would, after it has seen the first keyframe.
+            TelemetrySerializer reader = serializer instanceof BinaryTelemetrySerializer
+                    ? new BinaryTelemetrySerializer("", 0) : serializer;
+            reader.deserialize(messages[0]);
+            next[0] = 0;
+            System.out.println(benchmark.measure(serializer.getName() + " deserialize", () -> {
+                TelemetryRecord record = reader.deserialize(messages[next[0]++ & (SAMPLES - 1)]);
+                return record.getTimestampMillis();
+            }));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Enum picks the kind of thread the long running loops run on: samplers, partition fetch loops and lifecycle polls.
+ * PLATFORM threads are OS threads with their own stack, fine for a few loops per JVM. VIRTUAL threads are scheduled
+ * by the JVM onto a few carrier threads and park while a blocking SDK call waits for the network, so thousands of
+ * simulated hosts or partition readers fit in one JVM for load tests.
+ * The code targets Java 11, so virtual threads are created through reflection on Thread.ofVirtual(), which exists
+ * from Java 21 on; on older runtimes VIRTUAL falls back to platform threads with a warning.
+ * A virtual thread that blocks inside synchronized stays pinned to its carrier on Java 21 to 23, which is why the
+ * locks these loops wait on while doing I/O are ReentrantLocks. The mode can also be chosen with the system property
+ * streaming.threads=virtual|platform.
+ */
+public enum ThreadMode {
+
+    PLATFORM,
+    VIRTUAL;
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    public static final String PROPERTY = "streaming.threads";
+
+    // Thread.ofVirtual() and the Thread.Builder methods used on its result, null before Java 21.
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method IS_VIRTUAL;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method isVirtual = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            name = builderClass.getMethod("name", String.class, long.class);
+            factory = builderClass.getMethod("factory");
+            isVirtual = Thread.class.getMethod("isVirtual");
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        IS_VIRTUAL = isVirtual;
+    }
+
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    // The mode the streaming.threads system property asks for, PLATFORM when it is not set.
+    public static ThreadMode configured() {
+        return "virtual".equalsIgnoreCase(System.getProperty(PROPERTY)) ? VIRTUAL : PLATFORM;
+    }
+
+    /*
+     * Factory for threads named prefix-0, prefix-1 and so on. Platform threads are daemons, like virtual ones always are,
+     * so neither keeps the JVM alive.
+     */
+    public ThreadFactory factory(String prefix) {
+        if (this == VIRTUAL) {
+            if (isVirtualSupported()) {
+                try {
+                    // Builders are mutable, every factory gets its own.
+                    return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), prefix + "-", 0L));
+                } catch (ReflectiveOperationException e) {
+                    logger.warn("Cannot create virtual threads, using platform threads: " + e.toString());
+                }
+            } else {
+                logger.warn(String.format("Virtual threads need Java 21, running %s on platform threads.", prefix));
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /*
+     * Executor that starts a new thread for every task, what virtual threads are meant for instead of a pool.
+     */
+    public Executor threadPerTask(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        return task -> factory.newThread(task).start();
+    }
+
+    // Whether the thread is virtual, false on runtimes without virtual threads.
+    public static boolean isVirtual(Thread thread) {
+        if (!isVirtualSupported()) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+import com.oracle.bmc.ClientConfiguration;
+import com.oracle.bmc.auth.AuthenticationDetailsProvider;
+import com.oracle.bmc.streaming.StreamClient;
+import com.oracle.bmc.streaming.model.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Benchmark runs thousands of the long lived loops of the producer and consumer engines against a
+ * FakeStreamingService, once on platform threads and once on virtual threads, and reports what each costs: loop
+ * iterations per second, p50/p99 request latency, heap used after a GC, live platform threads and the process RSS
+ * while all loops run, and how long it takes to stop them.
+ * In producer mode every loop is a simulated getCPU host: a TelemetrySampler publishing one sample per interval
+ * through its own BatchingStreamProducer, three threads per host. In consumer mode every loop is a partition fetch
+ * loop of one PartitionedStreamConsumer reading a stream with that many partitions, polling every interval once it
+ * has caught up. Hosts are started and closed in a TaskScope, the consumer cancels its own loops on close.
+ * Virtual threads need Java 21; on older runtimes the virtual run falls back to platform threads.
+ * Requests go through one SDK client, so its connection pool bounds how many are in flight at once; the difference
+ * between the modes is the cost of the waiting loops. The fake serves requests on virtual threads where available,
+ * the same for both runs. Memory figures of the second run include what the first left behind, run --mode platform
+ * and --mode virtual in separate JVMs for clean RSS numbers.
+ * Usage: VirtualThreadBenchmark [--loops n] [--mode platform|virtual|both] [--loop producer|consumer]
+ *        [--interval ms] [--seconds n] [--latency ms]
+ * Platform runs of 10000 loops may need a raised ulimit -u; run with the same classpath as ChipsStreams.
+ */
+public class VirtualThreadBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+
+    // Messages written to every partition before a consumer run, so the fetch loops start with something to read.
+    private static final int BACKLOG_PER_PARTITION = 10;
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        System.out.println(String.format("%s %s loops, %s ms interval, %s s, %s ms service latency, virtual threads %s",
+                options.loops, options.loop, options.intervalMillis, options.seconds, options.latencyMillis,
+                ThreadMode.isVirtualSupported() ? "available" : "not available on Java " + Runtime.version().feature()));
+        try (FakeStreamingService service = FakeStreamingService.builder()
+                .threadMode(ThreadMode.VIRTUAL)
+                .latencyMillis(options.latencyMillis, 0)
+                .build()) {
+            AuthenticationDetailsProvider provider = FakeStreamingService.authenticationProvider();
+            StreamClient streamClient = new StreamClient(provider, ClientConfiguration.builder().build());
+            streamClient.setEndpoint(service.getEndpoint());
+            try {
+                for (ThreadMode mode : options.modes) {
+                    Report report = options.loop.equals("producer")
+                            ? runProducers(mode, service, streamClient, options)
+                            : runConsumer(mode, service, streamClient, options);
+                    System.out.println(report);
+                }
+                System.out.println("Service: " + service);
+            } finally {
+                streamClient.close();
+            }
+        }
+    }
+
+    // One TelemetrySampler and BatchingStreamProducer per simulated host, all publishing to one stream.
+    private static Report runProducers(ThreadMode mode, FakeStreamingService service, StreamClient streamClient,
+                                       Options options) throws Exception {
+        Stream stream = service.createStream("benchmark-" + System.nanoTime(), 16);
+        StreamMetrics metrics = new StreamMetrics();
+        OsMetricSampler osSampler = new OsMetricSampler();
+        OsMetricSampler.Sample sample = osSampler.newSample();
+        osSampler.sample(sample);
+        byte[] payload = new JsonTelemetrySerializer("benchmark-host").serialize(sample);
+        LongAdder published = new LongAdder();
+        LongAdder failures = new LongAdder();
+        List<BatchingStreamProducer> producers = new ArrayList<>();
+        List<TelemetrySampler> samplers = new ArrayList<>();
+        Report report = new Report(mode, options);
+        report.begin();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < options.loops; i++) {
+            BatchingStreamProducer producer = BatchingStreamProducer.builder()
+                    .streamClient(streamClient)
+                    .streamId(stream.getId())
+                    .queueCapacity(16)
+                    .metrics(metrics)
+                    .threadMode(mode)
+                    .build();
+            TelemetrySampler sampler = TelemetrySampler.builder()
+                    .source(() -> payload)
+                    .producer(producer)
+                    .key(("host-" + i).getBytes(UTF_8))
+                    .intervalMillis(options.intervalMillis)
+                    .ringCapacity(16)
+                    .threadMode(mode)
+                    .onPublished((result, error) -> (error == null ? published : failures).increment())
+                    .build();
+            producers.add(producer);
+            samplers.add(sampler);
+            sampler.start();
+        }
+        report.startMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        report.measure(published::sum, start);
+
+        // Every host is stopped on a thread of its own, the way its loops run, and the scope waits for all of them.
+        long stop = System.nanoTime();
+        try (TaskScope scope = new TaskScope(mode.factory("benchmark-close"))) {
+            for (int i = 0; i < samplers.size(); i++) {
+                TelemetrySampler sampler = samplers.get(i);
+                BatchingStreamProducer producer = producers.get(i);
+                scope.fork(() -> {
+                    sampler.close();
+                    producer.close();
+                });
+            }
+            scope.join();
+        }
+        report.stopMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stop);
+        report.failures = failures.sum();
+        report.latencies = metrics.operation(stream.getId(), StreamMetrics.Operation.PUT_MESSAGES).getLatency();
+        return report;
+    }
+
+    // One PartitionedStreamConsumer whose fetch loops, one per partition, are the loops measured.
+    private static Report runConsumer(ThreadMode mode, FakeStreamingService service, StreamClient streamClient,
+                                      Options options) throws Exception {
+        Stream stream = service.createStream("benchmark-" + System.nanoTime(), options.loops);
+        byte[] value = new byte[256];
+        for (int i = 0; i < options.loops * BACKLOG_PER_PARTITION; i++) {
+            service.append(stream.getId(), ("host-" + i).getBytes(UTF_8), value);
+        }
+        StreamMetrics metrics = new StreamMetrics();
+        StreamMetrics.OperationStats getStats = metrics.operation(stream.getId(), StreamMetrics.Operation.GET_MESSAGES);
+        LongAdder handled = new LongAdder();
+        Report report = new Report(mode, options);
+        report.begin();
+
+        long start = System.nanoTime();
+        PartitionedStreamConsumer consumer = PartitionedStreamConsumer.builder()
+                .streamClient(streamClient)
+                .stream(stream)
+                .handler(message -> handled.increment())
+                .maxIdleMillis(options.intervalMillis)
+                .threadFactory(mode.factory("benchmark-fetch"))
+                .metrics(metrics)
+                .build();
+        try {
+            consumer.start();
+            report.startMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            report.measure(getStats::getRequests, start);
+        } finally {
+            long stop = System.nanoTime();
+            consumer.close();
+            report.stopMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stop);
+        }
+        report.failures = getStats.getErrors();
+        report.latencies = getStats.getLatency();
+        if (handled.sum() < (long) options.loops * BACKLOG_PER_PARTITION) {
+            logger.warn(String.format("Only %s of the %s messages written were handled.",
+                    handled.sum(), (long) options.loops * BACKLOG_PER_PARTITION));
+        }
+        return report;
+    }
+
+    private static long heapAfterGc(MemoryMXBean memory) {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    // Resident set size from /proc, -1 where there is none.
+    private static long rssBytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("No RSS: " + e.toString());
+        }
+        return -1;
+    }
+
+    @FunctionalInterface
+    private interface Counter {
+        long get();
+    }
+
+    private static class Report {
+        private final ThreadMode mode;
+        private final Options options;
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        private long baseHeap;
+        private long baseRss;
+        private int baseThreads;
+        private long heap;
+        private long rss;
+        private int threads;
+        private long startMillis;
+        private long stopMillis;
+        private double iterationsPerSecond;
+        private long failures;
+        private LatencyHistogram latencies;
+
+        private Report(ThreadMode mode, Options options) {
+            this.mode = mode;
+            this.options = options;
+        }
+
+        private void begin() {
+            baseHeap = heapAfterGc(memory);
+            baseRss = rssBytes();
+            baseThreads = threadBean.getThreadCount();
+        }
+
+        // Reads memory halfway through the run, with every loop started and settled, and counts iterations after it.
+        private void measure(Counter iterations, long startNanos) throws InterruptedException {
+            long runNanos = TimeUnit.SECONDS.toNanos(options.seconds);
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, runNanos / 2 - (System.nanoTime() - startNanos)));
+            heap = heapAfterGc(memory);
+            rss = rssBytes();
+            threads = threadBean.getThreadCount();
+            long counted = iterations.get();
+            long countedAt = System.nanoTime();
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, runNanos - (countedAt - startNanos)));
+            iterationsPerSecond = (iterations.get() - counted) / ((System.nanoTime() - countedAt) / 1e9);
+        }
+
+        private static double millis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        private static double megabytes(long bytes) {
+            return bytes / (1024.0 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %10.0f loops/s (%.0f expected) p50 %8.2f ms p99 %8.2f ms failed %s | heap +%.1f MB, rss +%.1f MB, "
+                            + "platform threads %s (+%s) | started in %s ms, stopped in %s ms",
+                    mode, iterationsPerSecond, options.loops * 1000.0 / options.intervalMillis,
+                    millis(latencies.getValueAtPercentile(50)), millis(latencies.getValueAtPercentile(99)), failures,
+                    megabytes(heap - baseHeap), rss < 0 ? Double.NaN : megabytes(rss - baseRss),
+                    threads, threads - baseThreads, startMillis, stopMillis);
+        }
+    }
+
+    private static class Options {
+        private int loops = 10000;
+        private List<ThreadMode> modes = List.of(ThreadMode.PLATFORM, ThreadMode.VIRTUAL);
+        private String loop = "producer";
+        private long intervalMillis = 1000;
+        private long seconds = 30;
+        private long latencyMillis = 20;
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--loops":
+                        options.loops = Integer.parseInt(value);
+                        break;
+                    case "--mode":
+                        options.modes = new ArrayList<>();
+                        if (!value.equals("virtual")) {
+                            options.modes.add(ThreadMode.PLATFORM);
+                        }
+                        if (!value.equals("platform")) {
+                            options.modes.add(ThreadMode.VIRTUAL);
+                        }
+                        break;
+                    case "--loop":
+                        options.loop = value;
+                        break;
+                    case "--interval":
+                        options.intervalMillis = Long.parseLong(value);
+                        break;
+                    case "--seconds":
+                        options.seconds = Long.parseLong(value);
+                        break;
+                    case "--latency":
+                        options.latencyMillis = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (options.loops < 1 || options.intervalMillis < 1 || options.seconds < 2 || options.latencyMillis < 0) {
+                throw new IllegalArgumentException("Loops and interval must be positive, the run at least 2 seconds.");
+            }
+            if (!options.loop.equals("producer") && !options.loop.equals("consumer")) {
+                throw new IllegalArgumentException("Loops are producer or consumer, not " + options.loop);
+            }
+            return options;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+/*
+ * Receives the rollups WindowedAggregator emits, one result per machine, metric and window.
+ * Called while the aggregator holds its lock, so implementations should hand results off rather than block.
+ */
+@FunctionalInterface
+public interface WindowSink {
+
+    void emit(WindowedAggregator.WindowResult result);
+
+    static WindowSink printing() {
+        return System.out::println;
+    }
+}
@@ -0,0 +1,440 @@
+import com.oracle.bmc.streaming.model.Message;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Class rolls telemetry up per machine into min, max, average and p95 of selected metrics over event time windows.
+ * Windows are windowMillis long and start every slideMillis, tumbling when both are equal. Every sample is added once,
+ * to the pane of slideMillis it falls in, and a window is merged from its panes when it closes, so sliding windows cost
+ * no more per sample than tumbling ones. Pane state is kept in primitive arrays in a fixed ring per machine and reused,
+ * and p95 comes from a histogram of BUCKETS buckets over valueRange, so it is exact to one bucket width.
+ * Event time is the sample's messageTime, or the message timestamp when the payload has none. Each machine has its own
+ * watermark, its latest event time minus allowedLatenessMillis; a window is emitted to the sink once the watermark
+ * passes its end, and samples older than the watermark are counted as late and dropped. A machine's last windows close
+ * with its next sample, when it is evicted or on flush. At most maxKeys machines are tracked, the one idle longest is
+ * flushed and evicted to make room, which bounds memory for large fleets.
+ * Handles messages from live consumers as well as MessageRecording.replay; handle may be called from several threads.
+ */
+public class WindowedAggregator implements MessageHandler, AutoCloseable {
+
+    public static final int BUCKETS = 100;
+
+    private final TelemetryDecoder decoder;
+    private final String[] metrics;
+    private final long slideMillis;
+    private final int panesPerWindow;
+    private final int ringSize;
+    private final long allowedLatenessMillis;
+    private final double rangeMin;
+    private final double bucketWidth;
+    private final WindowSink sink;
+    private final Map<String, KeyState> keys;
+    // Scratch histogram for merging panes, only used under the lock.
+    private final int[] merged = new int[BUCKETS];
+    private long processed = 0;
+    private long late = 0;
+    private long undecodable = 0;
+    private long evicted = 0;
+    private long emitted = 0;
+
+    private WindowedAggregator(Builder builder) {
+        this.decoder = builder.decoder;
+        this.metrics = builder.metrics;
+        this.slideMillis = builder.slideMillis;
+        this.panesPerWindow = (int) (builder.windowMillis / builder.slideMillis);
+        this.allowedLatenessMillis = builder.allowedLatenessMillis;
+        // Panes of the open windows plus those the watermark still lets samples into.
+        this.ringSize = panesPerWindow + (int) ((allowedLatenessMillis + slideMillis - 1) / slideMillis) + 1;
+        this.rangeMin = builder.rangeMin;
+        this.bucketWidth = (builder.rangeMax - builder.rangeMin) / BUCKETS;
+        this.sink = builder.sink;
+        int maxKeys = builder.maxKeys;
+        this.keys = new LinkedHashMap<String, KeyState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, KeyState> eldest) {
+                if (size() <= maxKeys) {
+                    return false;
+                }
+                flushKey(eldest.getKey(), eldest.getValue());
+                evicted++;
+                return true;
+            }
+        };
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public void handle(Message message) {
+        TelemetryRecord record = decoder.decode(message.getKey(), message.getValue());
+        if (record == null) {
+            synchronized (this) {
+                undecodable++;
+            }
+            return;
+        }
+        String key = message.getKey() != null ? new String(message.getKey(), UTF_8) : record.getMachineName();
+        long eventTime = record.getTimestampMillis();
+        if (eventTime <= 0 && message.getTimestamp() != null) {
+            eventTime = message.getTimestamp().getTime();
+        }
+        add(key, eventTime, record);
+    }
+
+    public synchronized void add(String key, long eventTime, TelemetryRecord record) {
+        processed++;
+        KeyState state = keys.get(key);
+        if (state == null) {
+            state = new KeyState(eventTime);
+            keys.put(key, state);
+        }
+        if (eventTime < state.watermark) {
+            late++;
+            return;
+        }
+        // Windows the new watermark closes are emitted first: after a gap in the data the sample's pane may take the
+        // ring slot of a pane those windows still need.
+        if (eventTime > state.maxEventTime) {
+            state.maxEventTime = eventTime;
+            state.watermark = eventTime - allowedLatenessMillis;
+            emitClosed(key, state, state.watermark);
+        }
+        Pane pane = state.pane(Math.floorDiv(eventTime, slideMillis));
+        for (int i = 0; i < metrics.length; i++) {
+            Double value = record.getDouble(metrics[i]);
+            // The MXBean reports a negative load while it has no reading yet.
+            if (value != null && value >= 0) {
+                pane.add(i, value);
+            }
+        }
+    }
+
+    /*
+     * Emits every window still open, as if all machines had moved past them, and forgets all state.
+     */
+    public synchronized void flush() {
+        Iterator<Map.Entry<String, KeyState>> entries = keys.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, KeyState> entry = entries.next();
+            flushKey(entry.getKey(), entry.getValue());
+            entries.remove();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    public synchronized int getKeyCount() {
+        return keys.size();
+    }
+
+    public synchronized long getLate() {
+        return late;
+    }
+
+    public synchronized long getEmitted() {
+        return emitted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s samples, %s late, %s undecodable, %s windows emitted, %s machines tracked, %s evicted",
+                processed, late, undecodable, emitted, keys.size(), evicted);
+    }
+
+    private void flushKey(String key, KeyState state) {
+        emitClosed(key, state, state.maxEventTime + (long) panesPerWindow * slideMillis + slideMillis);
+    }
+
+    // Emits, in order, every window of the machine that ends at or before the watermark.
+    private void emitClosed(String key, KeyState state, long watermark) {
+        while ((state.nextEmitPane + 1) * slideMillis <= watermark) {
+            long oldest = state.oldestPaneFrom(state.nextEmitPane - panesPerWindow + 1);
+            if (oldest == Long.MAX_VALUE) {
+                // Nothing left in any window up to the watermark.
+                state.nextEmitPane = Math.max(state.nextEmitPane, Math.floorDiv(watermark, slideMillis));
+                return;
+            }
+            if (oldest > state.nextEmitPane) {
+                // Skip the empty windows of a gap in the data.
+                state.nextEmitPane = oldest;
+                continue;
+            }
+            emitWindow(key, state, state.nextEmitPane);
+            state.nextEmitPane++;
+        }
+    }
+
+    private void emitWindow(String key, KeyState state, long lastPane) {
+        long firstPane = lastPane - panesPerWindow + 1;
+        for (int metric = 0; metric < metrics.length; metric++) {
+            long count = 0;
+            double sum = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            Arrays.fill(merged, 0);
+            for (long index = firstPane; index <= lastPane; index++) {
+                Pane pane = state.existing(index);
+                if (pane == null || pane.count[metric] == 0) {
+                    continue;
+                }
+                count += pane.count[metric];
+                sum += pane.sum[metric];
+                min = Math.min(min, pane.min[metric]);
+                max = Math.max(max, pane.max[metric]);
+                for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                    merged[bucket] += pane.histogram[metric * BUCKETS + bucket];
+                }
+            }
+            if (count > 0) {
+                emitted++;
+                sink.emit(new WindowResult(key, metrics[metric], firstPane * slideMillis, (lastPane + 1) * slideMillis,
+                        count, min, max, sum / count, percentile(merged, count, 0.95, min, max)));
+            }
+        }
+    }
+
+    // Upper edge of the bucket holding the requested rank, kept within the values actually seen.
+    private double percentile(int[] histogram, long count, double quantile, double min, double max) {
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, rangeMin + (bucket + 1) * bucketWidth));
+            }
+        }
+        return max;
+    }
+
+    private int bucket(double value) {
+        int bucket = (int) ((value - rangeMin) / bucketWidth);
+        return Math.max(0, Math.min(BUCKETS - 1, bucket));
+    }
+
+    /*
+     * Windows state of one machine: a ring of panes, reused as the watermark moves on.
+     */
+    private class KeyState {
+        private final Pane[] ring = new Pane[ringSize];
+        private long maxEventTime;
+        private long watermark;
+        // Last pane of the next window to emit.
+        private long nextEmitPane;
+
+        private KeyState(long firstEventTime) {
+            this.maxEventTime = firstEventTime;
+            this.watermark = firstEventTime - allowedLatenessMillis;
+            this.nextEmitPane = Math.floorDiv(watermark, slideMillis);
+        }
+
+        private Pane pane(long index) {
+            int slot = (int) Math.floorMod(index, (long) ringSize);
+            Pane pane = ring[slot];
+            if (pane == null) {
+                pane = new Pane();
+                ring[slot] = pane;
+            }
+            if (pane.index != index) {
+                pane.reset(index);
+            }
+            return pane;
+        }
+
+        private Pane existing(long index) {
+            Pane pane = ring[(int) Math.floorMod(index, (long) ringSize)];
+            return pane != null && pane.index == index ? pane : null;
+        }
+
+        private long oldestPaneFrom(long from) {
+            long oldest = Long.MAX_VALUE;
+            for (Pane pane : ring) {
+                if (pane != null && pane.index >= from && pane.index < oldest) {
+                    oldest = pane.index;
+                }
+            }
+            return oldest;
+        }
+    }
+
+    /*
+     * Partial aggregates of one slide interval, one slot per metric.
+     */
+    private class Pane {
+        private long index = Long.MIN_VALUE;
+        private final long[] count = new long[metrics.length];
+        private final double[] sum = new double[metrics.length];
+        private final double[] min = new double[metrics.length];
+        private final double[] max = new double[metrics.length];
+        private final int[] histogram = new int[metrics.length * BUCKETS];
+
+        private void reset(long index) {
+            this.index = index;
+            Arrays.fill(count, 0);
+            Arrays.fill(sum, 0);
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            Arrays.fill(histogram, 0);
+        }
+
+        private void add(int metric, double value) {
+            count[metric]++;
+            sum[metric] += value;
+            min[metric] = Math.min(min[metric], value);
+            max[metric] = Math.max(max[metric], value);
+            histogram[metric * BUCKETS + bucket(value)]++;
+        }
+    }
+
+    /*
+     * Rollup of one metric of one machine over one window, start inclusive and end exclusive.
+     */
+    public static class WindowResult {
+        private final String key;
+        private final String metric;
+        private final long windowStartMillis;
+        private final long windowEndMillis;
+        private final long count;
+        private final double min;
+        private final double max;
+        private final double average;
+        private final double p95;
+
+        public WindowResult(String key, String metric, long windowStartMillis, long windowEndMillis,
+                            long count, double min, double max, double average, double p95) {
+            this.key = key;
+            this.metric = metric;
+            this.windowStartMillis = windowStartMillis;
+            this.windowEndMillis = windowEndMillis;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.average = average;
+            this.p95 = p95;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getMetric() {
+            return metric;
+        }
+
+        public long getWindowStartMillis() {
+            return windowStartMillis;
+        }
+
+        public long getWindowEndMillis() {
+            return windowEndMillis;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getAverage() {
+            return average;
+        }
+
+        public double getP95() {
+            return p95;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s [%s, %s) count=%s min=%.4f max=%.4f avg=%.4f p95=%.4f", key, metric,
+                    windowStartMillis, windowEndMillis, count, min, max, average, p95);
+        }
+    }
+
+    public static class Builder {
+        private TelemetryDecoder decoder = TelemetryDecoder.defaultDecoder();
+        private String[] metrics = {"getSystemCpuLoad", "getProcessCpuLoad"};
+        private long windowMillis = 60000;
+        private long slideMillis = 0;
+        private long allowedLatenessMillis = 5000;
+        private int maxKeys = 10000;
+        private double rangeMin = 0;
+        private double rangeMax = 1;
+        private WindowSink sink = WindowSink.printing();
+
+        public Builder decoder(TelemetryDecoder decoder) {
+            this.decoder = decoder;
+            return this;
+        }
+
+        // Double metrics to roll up, the cpu loads by default.
+        public Builder metrics(String... metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Builder windowMillis(long windowMillis) {
+            this.windowMillis = windowMillis;
+            return this;
+        }
+
+        // How often a window starts; defaults to the window length, which makes windows tumbling.
+        public Builder slideMillis(long slideMillis) {
+            this.slideMillis = slideMillis;
+            return this;
+        }
+
+        // How far behind a machine's newest sample a sample may arrive and still count.
+        public Builder allowedLatenessMillis(long allowedLatenessMillis) {
+            this.allowedLatenessMillis = allowedLatenessMillis;
+            return this;
+        }
+
+        public Builder maxKeys(int maxKeys) {
+            this.maxKeys = maxKeys;
+            return this;
+        }
+
+        // Range the p95 histogram covers, values outside it land in the first or last bucket. Loads are 0 to 1.
+        public Builder valueRange(double rangeMin, double rangeMax) {
+            this.rangeMin = rangeMin;
+            this.rangeMax = rangeMax;
+            return this;
+        }
+
+        public Builder sink(WindowSink sink) {
+            this.sink = sink;
+            return this;
+        }
+
+        public WindowedAggregator build() {
+            if (slideMillis == 0) {
+                slideMillis = windowMillis;
+            }
+            if (decoder == null || sink == null || metrics == null || metrics.length == 0) {
+                throw new IllegalArgumentException("A decoder, a sink and at least one metric are required.");
+            }
+            if (windowMillis < 1 || slideMillis < 1 || windowMillis % slideMillis != 0) {
+                throw new IllegalArgumentException("Window and slide must be positive and the window a multiple of the slide.");
+            }
+            if (allowedLatenessMillis < 0 || maxKeys < 1 || !(rangeMax > rangeMin)) {
+                throw new IllegalArgumentException("Lateness must not be negative, maxKeys positive and the value range not empty.");
+            }
+            return new WindowedAggregator(this);
+        }
+    }
+}
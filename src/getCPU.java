@@ -1,29 +1,16 @@
-import com.google.common.util.concurrent.Uninterruptibles;
 import com.oracle.bmc.ConfigFileReader;
-import com.oracle.bmc.auth.AuthenticationDetailsProvider;
-import com.oracle.bmc.auth.ConfigFileAuthenticationDetailsProvider;
 import com.oracle.bmc.streaming.StreamClient;
-import com.oracle.bmc.streaming.model.PutMessagesDetails;
-import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
-import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
-import com.oracle.bmc.streaming.requests.PutMessagesRequest;
-import com.oracle.bmc.streaming.responses.PutMessagesResponse;
-import org.apache.commons.lang3.StringUtils;
+import com.oracle.bmc.streaming.model.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import java.lang.invoke.MethodHandles;
-import java.lang.management.ManagementFactory;
-import java.lang.management.OperatingSystemMXBean;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.net.InetAddress;
+import java.nio.file.Paths;
 import java.time.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 
@@ -33,10 +20,24 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 public class getCPU {
 
     private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+    private static final int PUBLISHED_LOG_EVERY = 100;
+    private final AtomicLong published = new AtomicLong();
     private JsonArrayBuilder osStats = Json.createArrayBuilder();
     private String machineName ="";
     private JsonObject jsonParams;
     private LocalDateTime localDateTime ;
+    private final OsMetricSampler osSampler = new OsMetricSampler();
+    private final OsMetricSampler.Sample osSample = osSampler.newSample();
+    private TelemetrySerializer serializer;
+    //Compresses message values when set, see main for the options.
+    private PayloadCompressor compressor;
+    private byte[] machineKey;
+    //When true payloads are built through javax.json with the nested machineData array instead of the flat encoder.
+    private boolean useJsonApi = false;
+    //Port to serve metrics on with --metrics-port=<port>, off when negative.
+    private int metricsPort = -1;
+    //Threads the sampler and producer run on, virtual with --virtual-threads on Java 21 and later.
+    private ThreadMode threadMode = ThreadMode.configured();
     //Set OCI Variables to connect
     final String configurationFilePath = ".oci/config";
     final String profile = "DEFAULT";
@@ -52,51 +53,59 @@ public class getCPU {
         catch (Exception e) {
             logger.error("Error in getCPU instantiation: "+ e.toString());
         }
+        machineKey = machineName.getBytes(UTF_8);
+        serializer = new JsonTelemetrySerializer(machineName);
     }
 
     private void startStream(int sendCount) {
         try {
             //set Config & variables for method
             ConfigFileReader.ConfigFile config = ConfigFileReader.parse(configurationFilePath, profile);
-            PutMessagesRequest putRequest;
-            PutMessagesResponse putResponse;
-            PutMessagesDetails messagesDetails;
-            List<PutMessagesDetailsEntry> messages = new ArrayList<>();
-            int i=0;
-            //Create Connection
-            final AuthenticationDetailsProvider provider = new ConfigFileAuthenticationDetailsProvider(configurationFilePath, profile);
+            //Create Connection, the registry keeps the clients for the whole process and closes them on exit
+            final StreamClientRegistry clients = StreamClientRegistry.shared(configurationFilePath, profile);
+            String streamId = config.get("streamId");
+            String streamEndpoint = config.get("streamEndpoint");
+            if (streamId == null || streamEndpoint == null) {
+                // Not configured, resolve chips_stream by name; the warm cache spares the admin API on restarts.
+                Stream stream = StreamMetadataCache.builder()
+                        .adminClient(clients.adminClient())
+                        .warmCacheFile(Paths.get("cache", "streams.tsv"))
+                        .build()
+                        .get(config.get("compartment-id"), "chips_stream");
+                streamId = stream.getId();
+                streamEndpoint = stream.getMessagesEndpoint();
+            }
             // Create a stream client using the provided message endpoint.
-            StreamClient streamClient = new StreamClient(provider);
-            streamClient.setEndpoint(config.get("streamEndpoint"));
-
-            while (i<sendCount) {
-
-                    //Build Message json details
-                    getOsValues();
-                    buildElement();
-
-                    //build Message
-                    messages.add(PutMessagesDetailsEntry.builder()
-                            .key(machineName.getBytes(UTF_8))
-                            .value(jsonParams.toString().getBytes(UTF_8))
-                            .build());
-
-
-                messagesDetails = PutMessagesDetails.builder().messages(messages).build();
-
-                putRequest = PutMessagesRequest.builder()
-                                .streamId(config.get("streamId"))
-                                .putMessagesDetails(messagesDetails)
-                                .build();
-
-
-                //Send Message
-                putResponse = streamClient.putMessages(putRequest);
-                checkResponse(putResponse);
-                Uninterruptibles.sleepUninterruptibly(500, TimeUnit.MILLISECONDS);
-                i++;
-                messages.clear();
-            }//while
+            StreamClient streamClient = clients.streamClient(streamEndpoint);
+
+            // The sampler takes a sample every 500 ms on its own timer and hands it to the producer from a second
+            // thread, so slow PutMessages calls no longer stretch the interval. Batches the stream cannot take during
+            // an outage are spilled to disk and replayed once it is back, also by the next run if this one ends first.
+            // Registered as well, so samples still buffered are flushed if the JVM is stopped mid run.
+            try (SpillBuffer spill = clients.register(SpillBuffer.builder()
+                    .directory(Paths.get("spill", streamId.replaceAll("[^A-Za-z0-9._-]", "_")))
+                    .build());
+                 BatchingStreamProducer producer = clients.register(BatchingStreamProducer.builder()
+                    .streamClient(streamClient)
+                    .streamId(streamId)
+                    .compressor(compressor)
+                    .spillBuffer(spill)
+                    .threadMode(threadMode)
+                    .build())) {
+
+                TelemetrySampler sampler = clients.register(TelemetrySampler.builder()
+                        .source(this::buildPayload)
+                        .producer(producer)
+                        .key(machineKey)
+                        .onPublished(this::checkResponse)
+                        .intervalMillis(500)
+                        .maxSamples(sendCount)
+                        .threadMode(threadMode)
+                        .build());
+                sampler.start();
+                sampler.awaitCompletion();
+                logger.info("Partition spread of this host's messages: " + producer.getSkewStats());
+            }
 
 
         }
@@ -108,48 +117,52 @@ public class getCPU {
 
     /*
     * Method CheckResponse evaluates the result of a message send to Oracle Streams. If in error it outputs error on producer side.
-    * If successful provides the offset and partition.
+    * If successful provides the offset and partition of one in every PUBLISHED_LOG_EVERY messages at debug level.
     * */
 
-    private void checkResponse(PutMessagesResponse putResponse) {
-        //Check the response for errors.
-        for (PutMessagesResultEntry entry : putResponse.getPutMessagesResult().getEntries()) {
-            if (StringUtils.isNotBlank(entry.getError())) {
-                logger.error(String.format("Error(%s): %s", entry.getError(), entry.getErrorMessage()));
-            } else {
-                logger.info(
-                        String.format(
-                                "Published message to partition %s, offset %s.",
-                                entry.getPartition(),
-                                entry.getOffset()));
-            }//else
-        }//for
+    private void checkResponse(BatchingStreamProducer.PublishResult result, Throwable error) {
+        if (error != null) {
+            logger.error(error.getMessage());
+        } else if (result.isSpilled()) {
+            logger.warn("Stream unavailable, message spilled to disk for replay.");
+        } else if (logger.isDebugEnabled() && published.getAndIncrement() % PUBLISHED_LOG_EVERY == 0) {
+            // Sampled, a line per message costs more than publishing it; StreamMetrics has the totals.
+            logger.debug(
+                    String.format(
+                            "Published message to partition %s, offset %s (one in %s logged).",
+                            result.getPartition(),
+                            result.getOffset(),
+                            PUBLISHED_LOG_EVERY));
+        }//else
     }
 /*
+Method builds the message value for one sample. By default the sample is written by the configured serializer, flat
+json unless --binary was given; with useJsonApi the original javax.json document is built instead.
+ */
+    private byte[] buildPayload() {
+        if (useJsonApi) {
+            getOsValues();
+            buildElement();
+            return jsonParams.toString().getBytes(UTF_8);
+        }
+        osSampler.sample(osSample);
+        return serializer.serialize(osSample);
+    }
+
+/*
 Method gets core stats from the operating system running the java code. Adds elements to jsonArray.
+The sampler resolved the supported getters once at startup, each tick only reads primitives into the reused sample.
  */
     private void getOsValues(){
-        OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
-        for (Method method : operatingSystemMXBean.getClass().getDeclaredMethods()) {
-            method.setAccessible(true);
-            if (method.getName().startsWith("get") && Modifier.isPublic(method.getModifiers())) {
-                Object value;
-                try {
-                    value = method.invoke(operatingSystemMXBean);
-                } catch (Exception e) {
-                    value = e;
-                } // try
-               // System.out.println(method.getName() + " = " + value);
-                //convert to double for json
-                if (method.getName().equals("getSystemCpuLoad") || method.getName().equals("getProcessCpuLoad")) {
-                    double x= Double.parseDouble(value.toString());
-                    addElementToArray(method.getName(), x);
-                }
-                else {
-                    addElementToArray(method.getName(), Long.parseLong(value.toString()));
-                }
-            } // if
-        } // for
+        //start a fresh array each tick, otherwise every payload would carry all earlier samples too
+        osStats = Json.createArrayBuilder();
+        osSampler.sample(osSample);
+        for (int i = 0; i < osSample.longCount(); i++) {
+            addElementToArray(osSample.longName(i), osSample.longValue(i));
+        }
+        for (int i = 0; i < osSample.doubleCount(); i++) {
+            addElementToArray(osSample.doubleName(i), osSample.doubleValue(i));
+        }
     }
 
     //Adds element to JSON Array.
@@ -158,8 +171,8 @@ Method gets core stats from the operating system running the java code. Adds ele
                 .add(key, value));
     }
 
-    //overwrite for Long
-    public void addElementToArray(String key, Long value) {
+    //overwrite for long
+    public void addElementToArray(String key, long value) {
         osStats.add(Json.createObjectBuilder()
                 .add(key, value));
     }
@@ -208,7 +221,28 @@ Method gets core stats from the operating system running the java code. Adds ele
 
     public static void main(String[] args) throws Exception {
         getCPU a = new getCPU();
-         a.startStream(60);
+        for (String arg : args) {
+            if (arg.equals("--json-api")) {
+                a.useJsonApi = true;
+            } else if (arg.equals("--binary")) {
+                // Keyframe every 64 samples, a consumer joining mid-stream decodes again within about 30 seconds.
+                a.serializer = new BinaryTelemetrySerializer(a.machineName, 64);
+            } else if (arg.equals("--compress")) {
+                a.compressor = PayloadCompressor.telemetryCompressor();
+            } else if (arg.equals("--compress=deflate")) {
+                a.compressor = PayloadCompressor.builder().codec(new DeflatePayloadCodec()).build();
+            } else if (arg.equals("--compress=gzip")) {
+                a.compressor = PayloadCompressor.builder().codec(new GzipPayloadCodec()).build();
+            } else if (arg.equals("--virtual-threads")) {
+                a.threadMode = ThreadMode.VIRTUAL;
+            } else if (arg.startsWith("--metrics-port=")) {
+                a.metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+            }
+        }
+        // Request latencies and errors for Prometheus at /metrics, they are in JMX under "streaming" either way.
+        try (PrometheusEndpoint endpoint = a.metricsPort >= 0 ? PrometheusEndpoint.start(a.metricsPort, StreamMetrics.shared()) : null) {
+            a.startStream(60);
+        }
         /*a.getOsValues();
         a.buildElement();
         a.printJSON();*/